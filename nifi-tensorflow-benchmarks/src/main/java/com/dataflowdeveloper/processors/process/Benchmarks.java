@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Offline inputs for the benchmarks: a generated model and synthetic images,
+ * so nothing has to be downloaded.
+ */
+final class Benchmarks {
+
+	/** output size of the Inception model the generated graph stands in for */
+	static final int INCEPTION_LABELS = 1008;
+
+	private Benchmarks() {
+	}
+
+	/**
+	 * @param paddingBytes
+	 *            unused constant data added to the graph so importing it costs
+	 *            about as much as a real model of that size
+	 * @return directory holding the model
+	 */
+	static Path model(int paddingBytes) throws IOException {
+		Path dir = TestModels.createModel(Files.createTempDirectory("tf-benchmark"), INCEPTION_LABELS);
+		if (paddingBytes > 0) {
+			Files.write(dir.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB),
+					TestModels.graphDef(INCEPTION_LABELS, paddingBytes));
+		}
+		return dir;
+	}
+
+	static void delete(Path dir) {
+		if (dir == null) {
+			return;
+		}
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param size
+	 *            WIDTHxHEIGHT
+	 * @param format
+	 *            ImageIO format name
+	 * @return a noisy gradient image, noise keeps the encoder from compressing
+	 *         it unrealistically well
+	 */
+	static byte[] image(String size, String format) {
+		String[] dimensions = size.split("x");
+		int width = Integer.parseInt(dimensions[0]);
+		int height = Integer.parseInt(dimensions[1]);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(width * 31L + height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int r = (x * 255 / width + random.nextInt(32)) & 0xFF;
+				int g = (y * 255 / height + random.nextInt(32)) & 0xFF;
+				int b = ((x + y) * 127 / (width + height) + random.nextInt(32)) & 0xFF;
+				image.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+		Graphics2D graphics = image.createGraphics();
+		graphics.setColor(Color.DARK_GRAY);
+		graphics.fillOval(width / 4, height / 4, width / 2, height / 2);
+		graphics.dispose();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(image, format, out);
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
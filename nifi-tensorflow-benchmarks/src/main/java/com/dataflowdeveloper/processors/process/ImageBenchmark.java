@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per image cost of {@link TensorFlowService#getInception(byte[], String)} and
+ * of its decode and normalize stage across image sizes, for each
+ * preprocessing engine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageBenchmark {
+
+	@Param({ "320x240", "1280x720", "3840x2160" })
+	public String imageSize;
+
+	@Param({ "TENSORFLOW", "JAVA" })
+	public Preprocessor.Engine engine;
+
+	private Path modelDir;
+	private TensorFlowService service;
+	private Preprocessor preprocessor;
+	private byte[] bytes;
+	private ImageContent image;
+	private FloatBuffer input;
+
+	@Setup
+	public void setup() throws Exception {
+		modelDir = Benchmarks.model(0);
+		service = new TensorFlowService(0, 0, TensorFlowService.DEFAULT_MAX_MODELS,
+				TensorFlowService.DEFAULT_MAX_MODEL_BYTES, TensorFlowService.DEFAULT_RELOAD_CHECK_MILLIS, null, engine);
+		service.validateModel(modelDir.toString(), 1);
+		preprocessor = engine.create(ModelSignature.DEFAULT, TensorFlowService.configProto(0, 0));
+		bytes = Benchmarks.image(imageSize, "jpg");
+		image = ImageContent.wrap(bytes);
+		input = FloatBuffer.allocate(TensorFlowService.INPUT_HEIGHT * TensorFlowService.INPUT_WIDTH * 3);
+	}
+
+	@TearDown
+	public void tearDown() {
+		preprocessor.close();
+		service.close();
+		Benchmarks.delete(modelDir);
+	}
+
+	@Benchmark
+	public List<InceptionResult> endToEnd() {
+		return service.getInception(bytes, modelDir.toString());
+	}
+
+	@Benchmark
+	public float decodeAndNormalize() throws IOException {
+		input.clear();
+		preprocessor.normalize(image, input);
+		return input.get(0);
+	}
+}
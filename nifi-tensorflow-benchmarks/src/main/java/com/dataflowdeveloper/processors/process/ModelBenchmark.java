@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.Tensor;
+
+/**
+ * The stages after decoding: graph import, the model's session run, top-K
+ * selection and building the FlowFile attributes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModelBenchmark {
+
+	/** inception5h's graph is about 54 MB */
+	@Param({ "0", "54000000" })
+	public int graphPaddingBytes;
+
+	private Path modelDir;
+	private byte[] graphDef;
+	private List<String> labels;
+	private byte[] sessionConfig;
+	private TensorFlowService service;
+	private TensorFlowModel model;
+	private Tensor<Float> normalized;
+	private float[] probabilities;
+	private TopK topK;
+	private List<InceptionResult> results;
+
+	@Setup
+	public void setup() throws Exception {
+		modelDir = Benchmarks.model(graphPaddingBytes);
+		graphDef = Files.readAllBytes(modelDir.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB));
+		labels = Files.readAllLines(modelDir.resolve(TensorFlowService.IMAGENET_COMP_GRAPH_LABEL_STRINGS_TXT));
+		sessionConfig = TensorFlowService.configProto(0, 0);
+		service = new TensorFlowService();
+		model = service.acquireModel(modelDir.toString());
+		try (ImagePreprocessor preprocessor = new ImagePreprocessor(TensorFlowService.INPUT_HEIGHT,
+				TensorFlowService.INPUT_WIDTH, TensorFlowService.INPUT_MEAN, TensorFlowService.INPUT_SCALE,
+				sessionConfig)) {
+			final FloatBuffer floats = FloatBuffer.allocate(
+					TensorFlowService.INPUT_HEIGHT * TensorFlowService.INPUT_WIDTH * 3);
+			preprocessor.normalize(ImageContent.wrap(Benchmarks.image("640x480", "jpg")), floats);
+			floats.flip();
+			normalized = Tensor.create(
+					new long[] { 1, TensorFlowService.INPUT_HEIGHT, TensorFlowService.INPUT_WIDTH, 3 }, floats);
+		}
+		probabilities = new float[Benchmarks.INCEPTION_LABELS];
+		Random random = new Random(42);
+		for (int i = 0; i < probabilities.length; i++) {
+			probabilities[i] = random.nextFloat() / probabilities.length;
+		}
+		topK = new TopK();
+		results = service.getInception(Benchmarks.image("640x480", "jpg"), modelDir.toString());
+	}
+
+	@TearDown
+	public void tearDown() {
+		normalized.close();
+		model.release();
+		service.close();
+		Benchmarks.delete(modelDir);
+	}
+
+	@Benchmark
+	public Object graphImport() {
+		TensorFlowModel imported = new TensorFlowModel(modelDir, graphDef, labels, sessionConfig);
+		imported.close();
+		return imported;
+	}
+
+	@Benchmark
+	public long sessionRun() {
+		try (Tensor<?> result = model.getSession().runner().feed(TensorFlowService.INPUT_OPERATION, normalized)
+				.fetch(TensorFlowService.OUTPUT_OPERATION).run().get(0)) {
+			return result.numBytes();
+		}
+	}
+
+	@Benchmark
+	public int topK() {
+		return topK.select(probabilities, TensorFlowService.DEFAULT_TOP_K, 0f).index(0);
+	}
+
+	@Benchmark
+	public Map<String, String> buildAttributes() {
+		return TensorFlowProcessor.resultAttributes(results);
+	}
+}
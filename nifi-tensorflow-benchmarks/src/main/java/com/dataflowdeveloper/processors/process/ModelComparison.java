@@ -0,0 +1,285 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Runs a labeled image set through a baseline model and a candidate, usually
+ * a float model and its quantized copy, and reports top 1 and top 5 accuracy,
+ * how often the two agree and how long each takes. The image set is a
+ * directory with one sub directory per label, named as in the models' label
+ * file. Batches alternate between the models so both see the same machine
+ * state.
+ *
+ * <pre>
+ * java -cp nifi-tensorflow-benchmarks/target/benchmarks.jar \
+ *     com.dataflowdeveloper.processors.process.ModelComparison \
+ *     BASELINE_DIR CANDIDATE_DIR IMAGE_DIR [BATCH_SIZE] [ROUNDS] [TENSORFLOW|JAVA]
+ * </pre>
+ *
+ * Without arguments it compares the generated stand in model with its
+ * quantized copy on generated images.
+ */
+public final class ModelComparison {
+
+	private ModelComparison() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path generated = null;
+		final Path baseline;
+		final Path candidate;
+		final Path images;
+		if (args.length == 0) {
+			generated = Files.createTempDirectory("tf-comparison");
+			baseline = TestModels.createModel(generated.resolve("float"));
+			candidate = TestModels.createQuantizedModel(generated.resolve("quantized"));
+			images = labeledImages(generated.resolve("images"), 50);
+		} else if (args.length >= 3) {
+			baseline = Paths.get(args[0]);
+			candidate = Paths.get(args[1]);
+			images = Paths.get(args[2]);
+		} else {
+			System.err.println("usage: ModelComparison BASELINE_DIR CANDIDATE_DIR IMAGE_DIR [BATCH_SIZE] [ROUNDS] "
+					+ "[TENSORFLOW|JAVA]");
+			System.exit(2);
+			return;
+		}
+		final int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		final int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+		final Preprocessor.Engine engine = args.length > 5 ? Preprocessor.Engine.valueOf(args[5])
+				: Preprocessor.Engine.JAVA;
+
+		final TensorFlowService service = new TensorFlowService(0, 0, 2, Long.MAX_VALUE, 0, null, engine);
+		try {
+			compare(service, baseline, candidate, readImages(images), batchSize, rounds);
+		} finally {
+			service.close();
+			Benchmarks.delete(generated);
+		}
+	}
+
+	private static void compare(TensorFlowService service, Path baseline, Path candidate, List<LabeledImage> images,
+			int batchSize, int rounds) {
+		final Variant base = new Variant("baseline", baseline, images.size());
+		final Variant cand = new Variant("candidate", candidate, images.size());
+		for (Variant variant : new Variant[] { base, cand }) {
+			service.validateModel(variant.dir.toString(), batchSize);
+			variant.describe(service);
+		}
+		for (int round = 0; round < rounds; round++) {
+			for (int start = 0; start < images.size(); start += batchSize) {
+				final List<LabeledImage> batch = images.subList(start, Math.min(images.size(), start + batchSize));
+				final List<ImageContent> contents = batch.stream().map(image -> ImageContent.wrap(image.bytes))
+						.collect(Collectors.toList());
+				// alternate which model goes first so neither always runs on a
+				// warmer cache
+				final boolean baseFirst = (start / batchSize + round) % 2 == 0;
+				(baseFirst ? base : cand).run(service, contents, start, round == 0);
+				(baseFirst ? cand : base).run(service, contents, start, round == 0);
+			}
+		}
+
+		System.out.println(String.format(Locale.ROOT, "%d images, %d labels, batch size %d, %d rounds",
+				images.size(), images.stream().map(image -> image.label).distinct().count(), batchSize, rounds));
+		System.out.println(String.format(Locale.ROOT, "%-10s %8s %8s %10s %10s %10s %10s %10s", "model", "top1",
+				"top5", "failed", "ms/image", "run p50", "run p99", "images/s"));
+		for (Variant variant : new Variant[] { base, cand }) {
+			variant.report(images);
+		}
+
+		int agree = 0;
+		int compared = 0;
+		double difference = 0;
+		for (int i = 0; i < images.size(); i++) {
+			final List<InceptionResult> expected = base.results.get(i);
+			final List<InceptionResult> actual = cand.results.get(i);
+			if (expected == null || actual == null || expected.isEmpty() || actual.isEmpty()) {
+				continue;
+			}
+			compared++;
+			final InceptionResult top = expected.get(0);
+			if (top.getLabel().equals(actual.get(0).getLabel())) {
+				agree++;
+			}
+			// the candidate's probability for the baseline's best label, when
+			// it is in the candidate's top K
+			final float score = actual.stream().filter(result -> result.getLabel().equals(top.getLabel()))
+					.map(InceptionResult::getScore).findFirst().orElse(0f);
+			difference += Math.abs(top.getScore() - score);
+		}
+		System.out.println(String.format(Locale.ROOT,
+				"top 1 agreement %.2f%% of %d images, mean top 1 probability difference %.4f",
+				compared == 0 ? 0 : 100.0 * agree / compared, compared, compared == 0 ? 0 : difference / compared));
+	}
+
+	private static List<LabeledImage> readImages(Path dir) throws IOException {
+		final List<LabeledImage> images = new ArrayList<LabeledImage>();
+		try (Stream<Path> labels = Files.list(dir)) {
+			for (Path label : labels.filter(Files::isDirectory).sorted().collect(Collectors.toList())) {
+				try (Stream<Path> files = Files.list(label)) {
+					for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+						images.add(new LabeledImage(label.getFileName().toString(), Files.readAllBytes(file)));
+					}
+				}
+			}
+		}
+		if (images.isEmpty()) {
+			throw new IOException(dir + " has no label directories with images");
+		}
+		return images;
+	}
+
+	/**
+	 * noisy JPEGs labelled for the generated model, which picks its first
+	 * label when an image is more red than blue and its last when it is more
+	 * blue. Some are nearly balanced, so rounding in a quantized copy can
+	 * flip them.
+	 */
+	private static Path labeledImages(Path dir, int perLabel) throws IOException {
+		final Random random = new Random(42);
+		final String[] labels = { "label 0", "label " + (TestModels.LABEL_COUNT - 1) };
+		for (int l = 0; l < labels.length; l++) {
+			final Path labelDir = Files.createDirectories(dir.resolve(labels[l]));
+			for (int i = 0; i < perLabel; i++) {
+				// margin between the dominant and the other channel, 1 to 64
+				final int margin = 1 + random.nextInt(64);
+				final int base = random.nextInt(256 - 64 - 16);
+				final int red = l == 0 ? base + margin : base;
+				final int blue = l == 0 ? base : base + margin;
+				final BufferedImage image = new BufferedImage(96, 72, BufferedImage.TYPE_INT_RGB);
+				for (int y = 0; y < image.getHeight(); y++) {
+					for (int x = 0; x < image.getWidth(); x++) {
+						final int noise = random.nextInt(16);
+						image.setRGB(x, y, ((red + noise) << 16) | (random.nextInt(256) << 8) | (blue + noise));
+					}
+				}
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				ImageIO.write(image, "jpg", out);
+				Files.write(labelDir.resolve(i + ".jpg"), out.toByteArray());
+			}
+		}
+		return dir;
+	}
+
+	private static final class LabeledImage {
+		final String label;
+		final byte[] bytes;
+
+		LabeledImage(String label, byte[] bytes) {
+			this.label = label;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * One model's results and timings.
+	 */
+	private static final class Variant {
+		final String name;
+		final Path dir;
+		final List<List<InceptionResult>> results;
+		final List<Long> runNanos = new ArrayList<Long>();
+		long totalNanos;
+		long timedImages;
+
+		Variant(String name, Path dir, int images) {
+			this.name = name;
+			this.dir = dir;
+			this.results = new ArrayList<List<InceptionResult>>(
+					Collections.nCopies(images, (List<InceptionResult>) null));
+		}
+
+		void describe(TensorFlowService service) {
+			final TensorFlowModel model = service.acquireModel(dir.toString());
+			try {
+				System.out.println(String.format(Locale.ROOT, "%-10s %s input %s output %s, %d bytes", name, dir,
+						model.getInputType(), model.getOutputType(), model.getSizeInBytes()));
+			} finally {
+				model.release();
+			}
+		}
+
+		void run(TensorFlowService service, List<ImageContent> batch, int start, boolean keep) {
+			final BatchTimings timings = new BatchTimings(batch.size());
+			final long begin = System.nanoTime();
+			final List<List<InceptionResult>> batchResults = service.getInceptionBatch(batch, dir.toString(),
+					TensorFlowService.DEFAULT_TOP_K, 0f, timings);
+			totalNanos += System.nanoTime() - begin;
+			timedImages += batch.size();
+			if (timings.getRunSize() > 0) {
+				runNanos.add(timings.getInferenceNanos());
+			}
+			if (keep) {
+				for (int i = 0; i < batchResults.size(); i++) {
+					results.set(start + i, batchResults.get(i));
+				}
+			}
+		}
+
+		void report(List<LabeledImage> images) {
+			int top1 = 0;
+			int top5 = 0;
+			int failed = 0;
+			for (int i = 0; i < images.size(); i++) {
+				final List<InceptionResult> imageResults = results.get(i);
+				if (imageResults == null) {
+					failed++;
+					continue;
+				}
+				final String label = images.get(i).label;
+				for (InceptionResult result : imageResults) {
+					if (result.getLabel().equalsIgnoreCase(label)) {
+						top5++;
+						if (result.getRank() == 0) {
+							top1++;
+						}
+						break;
+					}
+				}
+			}
+			final long[] runs = runNanos.stream().mapToLong(Long::longValue).sorted().toArray();
+			System.out.println(String.format(Locale.ROOT, "%-10s %7.2f%% %7.2f%% %10d %10.3f %10.3f %10.3f %10.1f",
+					name, 100.0 * top1 / images.size(), 100.0 * top5 / images.size(), failed,
+					totalNanos / 1e6 / timedImages, percentile(runs, 0.5) / 1e6, percentile(runs, 0.99) / 1e6,
+					timedImages * 1e9 / totalNanos));
+		}
+
+		private static long percentile(long[] sorted, double quantile) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			final int index = (int) Math.ceil(quantile * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+		}
+	}
+}
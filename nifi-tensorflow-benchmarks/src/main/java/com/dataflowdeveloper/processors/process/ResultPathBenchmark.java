@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One FlowFile's result path, from the model's probabilities to its attribute
+ * map, as it was with formatted strings throughout and as it is with a
+ * {@link Classification} and precomputed attribute names. Run with
+ * {@code -prof gc}, gc.alloc.rate.norm is the bytes allocated per FlowFile.
+ *
+ * <pre>
+ * java -jar nifi-tensorflow-benchmarks/target/benchmarks.jar ResultPathBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResultPathBenchmark {
+
+	private static final Logger logger = LoggerFactory.getLogger(ResultPathBenchmark.class);
+
+	@Param({ "5" })
+	public int topK;
+
+	private float[] probabilities;
+	private List<String> labels;
+	private TopK selector;
+	private TensorFlowProcessor.AttributeKeys keys;
+
+	@Setup
+	public void setup() {
+		probabilities = new float[Benchmarks.INCEPTION_LABELS];
+		labels = new ArrayList<String>(1001);
+		Random random = new Random(42);
+		for (int i = 0; i < probabilities.length; i++) {
+			probabilities[i] = random.nextFloat() / probabilities.length;
+			if (i < 1001) {
+				labels.add("label " + i);
+			}
+		}
+		selector = new TopK();
+		keys = new TensorFlowProcessor.AttributeKeys("", topK);
+	}
+
+	/**
+	 * the path before results were kept as primitives: every probability
+	 * formatted as it is selected, debug messages formatted with debug off and
+	 * every attribute name formatted per FlowFile
+	 */
+	@Benchmark
+	public Map<String, String> formatted() {
+		final TopK top = selector.select(probabilities, topK, 0f);
+		final List<InceptionResult> results = new ArrayList<InceptionResult>(top.size());
+		for (int rank = 0; rank < top.size(); rank++) {
+			final InceptionResult result = new InceptionResult(labels.get(top.index(rank)),
+					String.format("%.2f%%", top.value(rank) * 100f), rank);
+			result.setScore(top.value(rank));
+			results.add(result);
+		}
+		logger.debug(String.format("Found %d results", new Object[] { results.size() }));
+		final HashMap<String, String> attributes = new HashMap<String, String>();
+		for (InceptionResult result : results) {
+			attributes.put(String.format("%slabel_%d", "", result.getDisplayRank()), result.getLabel());
+			attributes.put(String.format("%sprobability_%d", "", result.getDisplayRank()), result.getProbability());
+		}
+		return attributes;
+	}
+
+	@Benchmark
+	public Map<String, String> primitive() {
+		final Classification results = new Classification(labels, selector.select(probabilities, topK, 0f));
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("Found %d results", new Object[] { results.size() }));
+		}
+		final Map<String, String> attributes = new HashMap<String, String>((2 * results.size() + 6) * 4 / 3 + 1);
+		TensorFlowProcessor.putResults(keys, results, attributes);
+		return attributes;
+	}
+}
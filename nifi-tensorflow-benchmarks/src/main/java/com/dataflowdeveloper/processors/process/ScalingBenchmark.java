@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end throughput of one shared {@link TensorFlowService} as the number
+ * of calling threads grows, the way Concurrent Tasks drives the processor.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScalingBenchmark {
+
+	/** 0 lets TensorFlow size its pools, 1 leaves the parallelism to the callers */
+	@Param({ "0", "1" })
+	public int opThreads;
+
+	private Path modelDir;
+	private TensorFlowService service;
+	private byte[] image;
+
+	@Setup
+	public void setup() throws Exception {
+		modelDir = Benchmarks.model(0);
+		service = new TensorFlowService(opThreads, opThreads);
+		service.validateModel(modelDir.toString(), 1);
+		image = Benchmarks.image("640x480", "jpg");
+	}
+
+	@TearDown
+	public void tearDown() {
+		service.close();
+		Benchmarks.delete(modelDir);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public List<InceptionResult> threads1() {
+		return service.getInception(image, modelDir.toString());
+	}
+
+	@Benchmark
+	@Threads(2)
+	public List<InceptionResult> threads2() {
+		return service.getInception(image, modelDir.toString());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public List<InceptionResult> threads4() {
+		return service.getInception(image, modelDir.toString());
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public List<InceptionResult> threadsMax() {
+		return service.getInception(image, modelDir.toString());
+	}
+}
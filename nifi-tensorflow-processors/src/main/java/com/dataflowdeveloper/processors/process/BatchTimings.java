@@ -0,0 +1,86 @@
+package com.dataflowdeveloper.processors.process;
+
+/**
+ * Nanoseconds spent in each stage of one model run and which images were
+ * answered from the result cache, filled in by {@link TensorFlowService} for
+ * the caller to report.
+ *
+ * @author tspann
+ *
+ */
+public class BatchTimings {
+
+	private final long[] preprocessNanos;
+	private final boolean[] cached;
+	private int runSize;
+	private long inferenceNanos;
+	private long postProcessNanos;
+
+	/**
+	 * @param images
+	 *            images in the batch
+	 */
+	public BatchTimings(int images) {
+		this.preprocessNanos = new long[images];
+		this.cached = new boolean[images];
+	}
+
+	/**
+	 * @param image
+	 *            index in the batch
+	 * @return true if the results came from the result cache
+	 */
+	public boolean isCached(int image) {
+		return cached[image];
+	}
+
+	void setCached(int image) {
+		cached[image] = true;
+	}
+
+	/**
+	 * @return images fed to the model, leaving out cached and undecodable ones
+	 */
+	public int getRunSize() {
+		return runSize;
+	}
+
+	void setRunSize(int images) {
+		runSize = images;
+	}
+
+	/**
+	 * @param image
+	 *            index in the batch
+	 * @return decode and normalize time of one image
+	 */
+	public long getPreprocessNanos(int image) {
+		return preprocessNanos[image];
+	}
+
+	void setPreprocessNanos(int image, long nanos) {
+		preprocessNanos[image] = nanos;
+	}
+
+	/**
+	 * @return session run time for the whole batch, 0 when nothing decoded
+	 */
+	public long getInferenceNanos() {
+		return inferenceNanos;
+	}
+
+	void setInferenceNanos(long nanos) {
+		inferenceNanos = nanos;
+	}
+
+	/**
+	 * @return top-K selection and result building for the whole batch
+	 */
+	public long getPostProcessNanos() {
+		return postProcessNanos;
+	}
+
+	void setPostProcessNanos(long nanos) {
+		postProcessNanos = nanos;
+	}
+}
@@ -0,0 +1,70 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The top labels of one image as label indices and probabilities, the model's
+ * label list shared rather than copied. It reads as a list of
+ * {@link InceptionResult}, made on demand, while the attribute writer reads the
+ * primitives directly, so nothing is formatted until an attribute is written.
+ *
+ * @author tspann
+ *
+ */
+public final class Classification extends AbstractList<InceptionResult> implements RandomAccess {
+
+	private final List<String> labels;
+	private final int[] indices;
+	private final float[] scores;
+
+	/**
+	 * @param labels
+	 *            the model's labels, outputs past the end are named by index
+	 * @param top
+	 *            selected outputs, copied
+	 */
+	Classification(List<String> labels, TopK top) {
+		this.labels = labels;
+		this.indices = new int[top.size()];
+		this.scores = new float[top.size()];
+		for (int rank = 0; rank < indices.length; rank++) {
+			indices[rank] = top.index(rank);
+			scores[rank] = top.value(rank);
+		}
+	}
+
+	@Override
+	public int size() {
+		return indices.length;
+	}
+
+	/**
+	 * @return the model output of the label at this rank
+	 */
+	public int labelIndex(int rank) {
+		return indices[rank];
+	}
+
+	/**
+	 * inception5h pads its 1001 labels out to 1008 outputs, unlabeled outputs
+	 * are reported by index
+	 */
+	public String label(int rank) {
+		final int index = indices[rank];
+		return index < labels.size() ? labels.get(index) : String.valueOf(index);
+	}
+
+	/**
+	 * @return probability from 0 to 1
+	 */
+	public float score(int rank) {
+		return scores[rank];
+	}
+
+	@Override
+	public InceptionResult get(int rank) {
+		return new InceptionResult(label(rank), scores[rank], rank);
+	}
+}
@@ -0,0 +1,130 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 128 bit MurmurHash3 (x64 variant) of encoded image bytes. It is not
+ * cryptographic, but at 128 bits an accidental collision between two images is
+ * far less likely than a bit flip, and it hashes several GB/s, so keying
+ * results by it costs little next to decoding the image.
+ *
+ * @author tspann
+ *
+ */
+public final class ContentHash {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final long h1;
+	private final long h2;
+
+	private ContentHash(long h1, long h2) {
+		this.h1 = h1;
+		this.h2 = h2;
+	}
+
+	/**
+	 * @param data
+	 *            bytes between position and limit are hashed, the buffer itself
+	 *            is not moved
+	 */
+	public static ContentHash of(ByteBuffer data) {
+		final ByteBuffer buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		final int start = buffer.position();
+		final int length = buffer.remaining();
+		long h1 = 0;
+		long h2 = 0;
+
+		final int blocks = length / 16;
+		for (int i = 0; i < blocks; i++) {
+			long k1 = buffer.getLong(start + i * 16);
+			long k2 = buffer.getLong(start + i * 16 + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		final int tail = start + blocks * 16;
+		final int remaining = length & 15;
+		long k1 = 0;
+		long k2 = 0;
+		for (int i = remaining - 1; i >= 8; i--) {
+			k2 ^= (buffer.get(tail + i) & 0xFFL) << ((i - 8) * 8);
+		}
+		for (int i = Math.min(remaining, 8) - 1; i >= 0; i--) {
+			k1 ^= (buffer.get(tail + i) & 0xFFL) << (i * 8);
+		}
+		if (remaining > 8) {
+			h2 ^= mixK2(k2);
+		}
+		if (remaining > 0) {
+			h1 ^= mixK1(k1);
+		}
+
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+		return new ContentHash(h1, h2);
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) h1;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ContentHash)) {
+			return false;
+		}
+		ContentHash other = (ContentHash) obj;
+		return h1 == other.h1 && h2 == other.h2;
+	}
+
+	/**
+	 * @return the 16 byte hash in hex, in the byte order of the reference
+	 *         implementation
+	 */
+	@Override
+	public String toString() {
+		return String.format("%016x%016x", Long.reverseBytes(h1), Long.reverseBytes(h2));
+	}
+}
@@ -0,0 +1,77 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers bucketed by power of two capacity, so image content
+ * can be staged off heap without allocating a new direct buffer per FlowFile.
+ * Direct memory is only returned to the OS when a buffer is garbage collected,
+ * which makes per image allocation both slow and hard to bound.
+ *
+ * @author tspann
+ *
+ */
+public class DirectBufferPool {
+
+	private static final int MIN_SHIFT = 12;
+
+	private final long maxPooledBytes;
+	private final AtomicLong pooledBytes = new AtomicLong();
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final Queue<ByteBuffer>[] buckets = new Queue[Integer.SIZE];
+
+	/**
+	 * @param maxPooledBytes
+	 *            most bytes kept in idle buffers, buffers released beyond this
+	 *            are left to the garbage collector
+	 */
+	public DirectBufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+	}
+
+	/**
+	 * @param capacity
+	 * @return a cleared native order buffer with at least the given capacity
+	 */
+	public ByteBuffer acquire(int capacity) {
+		final int bucket = bucket(capacity);
+		final ByteBuffer pooled = buckets[bucket].poll();
+		if (pooled != null) {
+			pooledBytes.addAndGet(-pooled.capacity());
+			pooled.clear();
+			return pooled;
+		}
+		final int size = bucket >= Integer.SIZE - 1 ? Integer.MAX_VALUE : 1 << bucket;
+		return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+	}
+
+	public void release(ByteBuffer buffer) {
+		final int capacity = buffer.capacity();
+		if (Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SHIFT)) {
+			return;
+		}
+		if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+			pooledBytes.addAndGet(-capacity);
+			return;
+		}
+		buckets[Integer.numberOfTrailingZeros(capacity)].offer(buffer);
+	}
+
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	private static int bucket(int capacity) {
+		if (capacity <= 1 << MIN_SHIFT) {
+			return MIN_SHIFT;
+		}
+		return Integer.SIZE - Integer.numberOfLeadingZeros(capacity - 1);
+	}
+}
@@ -0,0 +1,308 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers images from every onTrigger thread into shared model runs. A run
+ * starts once it has the maximum number of images or the oldest image has
+ * waited the maximum time, whichever comes first, and each caller gets its own
+ * image's results back. Under light traffic an image waits at most the
+ * maximum time; under heavy traffic runs fill up and the queue drains at
+ * batched throughput.
+ * <p>
+ * Each caller decodes its own image into model input before queueing it, so
+ * decoding scales with the onTrigger threads. One dispatcher thread only
+ * stacks the ready rows and runs the models, one run after another, so images
+ * keep queueing while a run is in progress and the next run picks them all up.
+ * Images for different models, or with a different top K or minimum
+ * probability, never share a run.
+ *
+ * @author tspann
+ *
+ */
+public class DynamicBatcher implements AutoCloseable {
+
+	private final TensorFlowService service;
+	private final int maxBatchSize;
+	private final long maxWaitNanos;
+	private final Object lock = new Object();
+	private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+	private final Thread dispatcher;
+	private boolean closed;
+
+	/**
+	 * @param service
+	 *            runs the batches, still owned by the caller
+	 * @param maxBatchSize
+	 *            most images in one run
+	 * @param maxWaitNanos
+	 *            longest an image waits for others before its run starts
+	 * @param name
+	 *            of the dispatcher thread
+	 */
+	public DynamicBatcher(TensorFlowService service, int maxBatchSize, long maxWaitNanos, String name) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be positive, not " + maxBatchSize);
+		}
+		this.service = service;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWaitNanos = maxWaitNanos;
+		this.dispatcher = new Thread(this::dispatch, name);
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * decode one image on the calling thread and queue it for the next run of
+	 * its models
+	 *
+	 * @param image
+	 *            encoded image, only read during this call
+	 * @param modelDirs
+	 *            models to run, several run as a fan out
+	 * @param topK
+	 *            most probable labels to return
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @return the image's results, failed with the exception of its
+	 *         preparation or its run
+	 */
+	public CompletableFuture<Slot> submit(ImageContent image, List<String> modelDirs, int topK,
+			float minProbability) {
+		final BatchTimings timings = new BatchTimings(1);
+		final List<PreparedBatch> prepared;
+		try {
+			if (modelDirs.size() == 1) {
+				prepared = Collections.singletonList(service.prepareBatch(Collections.singletonList(image),
+						modelDirs.get(0), topK, minProbability, timings));
+			} else {
+				prepared = service.prepareFanOut(Collections.singletonList(image), modelDirs, topK, minProbability,
+						timings);
+			}
+		} catch (RuntimeException e) {
+			final CompletableFuture<Slot> failed = new CompletableFuture<Slot>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		final Request request = new Request(prepared, timings, new Key(modelDirs, topK, minProbability));
+		synchronized (lock) {
+			if (closed) {
+				for (PreparedBatch batch : prepared) {
+					batch.close();
+				}
+				throw new IllegalStateException("Dynamic batcher is closed");
+			}
+			queue.add(request);
+			lock.notifyAll();
+		}
+		return request.result;
+	}
+
+	private void dispatch() {
+		for (;;) {
+			final List<Request> batch;
+			try {
+				batch = nextBatch();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (batch == null) {
+				return;
+			}
+			run(batch);
+		}
+	}
+
+	/**
+	 * @return the oldest image and those queued for the same run, null once
+	 *         closed and drained
+	 */
+	private List<Request> nextBatch() throws InterruptedException {
+		synchronized (lock) {
+			while (queue.isEmpty()) {
+				if (closed) {
+					return null;
+				}
+				lock.wait();
+			}
+			final Request first = queue.peek();
+			final long deadline = first.queued + maxWaitNanos;
+			for (;;) {
+				final long remaining = deadline - System.nanoTime();
+				if (closed || remaining <= 0 || queued(first.key) >= maxBatchSize) {
+					break;
+				}
+				TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+			}
+			final List<Request> batch = new ArrayList<Request>(Math.min(maxBatchSize, queue.size()));
+			for (Iterator<Request> requests = queue.iterator(); requests.hasNext()
+					&& batch.size() < maxBatchSize;) {
+				final Request request = requests.next();
+				if (request.key.equals(first.key)) {
+					batch.add(request);
+					requests.remove();
+				}
+			}
+			return batch;
+		}
+	}
+
+	private int queued(Key key) {
+		int count = 0;
+		for (Request request : queue) {
+			if (request.key.equals(key)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void run(List<Request> batch) {
+		final BatchTimings timings = new BatchTimings(batch.size());
+		final List<List<PreparedBatch>> prepared = new ArrayList<List<PreparedBatch>>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			final Request request = batch.get(i);
+			prepared.add(request.prepared);
+			timings.setPreprocessNanos(i, request.timings.getPreprocessNanos(0));
+			if (request.timings.isCached(0)) {
+				timings.setCached(i);
+			}
+		}
+		try {
+			service.runStacked(prepared, timings);
+		} catch (RuntimeException | Error e) {
+			for (Request request : batch) {
+				request.result.completeExceptionally(e);
+			}
+			return;
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			final List<PreparedBatch> models = prepared.get(i);
+			final List<List<InceptionResult>> imageResults = new ArrayList<List<InceptionResult>>(models.size());
+			for (PreparedBatch model : models) {
+				imageResults.add(model.results.get(0));
+			}
+			batch.get(i).result.complete(new Slot(imageResults, timings, i));
+		}
+	}
+
+	/**
+	 * run whatever is queued and stop the dispatcher
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				dispatcher.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * One image's place in the run that classified it.
+	 */
+	public static final class Slot {
+		private final List<List<InceptionResult>> results;
+		private final BatchTimings timings;
+		private final int index;
+
+		Slot(List<List<InceptionResult>> results, BatchTimings timings, int index) {
+			this.results = results;
+			this.timings = timings;
+			this.index = index;
+		}
+
+		/**
+		 * @return per model, the image's results or null if it could not be
+		 *         decoded
+		 */
+		public List<List<InceptionResult>> getResults() {
+			return results;
+		}
+
+		/**
+		 * @return timings of the whole run, shared by every image in it
+		 */
+		public BatchTimings getTimings() {
+			return timings;
+		}
+
+		/**
+		 * @return the image's index in {@link #getTimings()}
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return true for exactly one image of each run, whose caller reports
+		 *         the run
+		 */
+		public boolean isFirst() {
+			return index == 0;
+		}
+	}
+
+	private static final class Request {
+		// per model, the image decoded on the submitting thread
+		final List<PreparedBatch> prepared;
+		final BatchTimings timings;
+		final Key key;
+		final long queued = System.nanoTime();
+		final CompletableFuture<Slot> result = new CompletableFuture<Slot>();
+
+		Request(List<PreparedBatch> prepared, BatchTimings timings, Key key) {
+			this.prepared = prepared;
+			this.timings = timings;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * What images must agree on to share a run.
+	 */
+	private static final class Key {
+		final List<String> modelDirs;
+		final int topK;
+		final float minProbability;
+
+		Key(List<String> modelDirs, int topK, float minProbability) {
+			this.modelDirs = modelDirs;
+			this.topK = topK;
+			this.minProbability = minProbability;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final Key other = (Key) obj;
+			return topK == other.topK && Float.compare(minProbability, other.minProbability) == 0
+					&& modelDirs.equals(other.modelDirs);
+		}
+
+		@Override
+		public int hashCode() {
+			return (modelDirs.hashCode() * 31 + topK) * 31 + Float.floatToIntBits(minProbability);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Intermediate tensors fetched next to the probabilities in one model run,
+ * kept as the bytes the tensors held so an image's rows are written out
+ * without passing through float arrays or strings. Each image is written as
+ * a small header followed by its row of every tensor, little-endian:
+ *
+ * <pre>
+ * "TFEM"                magic
+ * u8                    version, 1
+ * u8                    element type, 1 for float32 or 2 for float16
+ * u16                   tensor count
+ * per tensor:
+ *   u16, UTF-8 bytes    tensor name
+ *   u8                  rank of the image's row
+ *   i32 * rank          dimensions
+ * per tensor:
+ *   elements            the image's row
+ * </pre>
+ *
+ * @author tspann
+ *
+ */
+public final class Embeddings {
+
+	/**
+	 * Element type written.
+	 */
+	public enum Format {
+		/** IEEE 754 single precision, exactly what the model produced */
+		FLOAT32(1, 4),
+		/** IEEE 754 half precision rounded to nearest even, half the size */
+		FLOAT16(2, 2);
+
+		private final int code;
+		private final int bytes;
+
+		Format(int code, int bytes) {
+			this.code = code;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return bytes per element
+		 */
+		public int getBytes() {
+			return bytes;
+		}
+	}
+
+	static final byte[] MAGIC = { 'T', 'F', 'E', 'M' };
+	static final int VERSION = 1;
+
+	private final List<String> tensors;
+	// dimensions of one image's row of each tensor
+	private final int[][] shapes;
+	// elements in one image's row of each tensor
+	private final int[] elements;
+	// each tensor's values for the whole run as copied out of it, heap buffers in native order
+	private final ByteBuffer[] data;
+	// row of the run holding each image, -1 where it could not be decoded
+	private final int[] rows;
+	private final List<List<InceptionResult>> results;
+	// built on first use per format, the same for every image of the run
+	private final byte[][] headers = new byte[Format.values().length][];
+
+	/**
+	 * @param tensors
+	 *            names of the tensors fetched
+	 * @param shapes
+	 *            each tensor's shape, the run first
+	 * @param data
+	 *            each tensor's values, heap buffers in native order
+	 * @param rows
+	 *            row of each image in the run, -1 for none
+	 * @param results
+	 *            labels of each image, null where it could not be decoded
+	 */
+	Embeddings(List<String> tensors, long[][] shapes, ByteBuffer[] data, int[] rows,
+			List<List<InceptionResult>> results) {
+		this.tensors = tensors;
+		this.shapes = new int[shapes.length][];
+		this.elements = new int[shapes.length];
+		for (int t = 0; t < shapes.length; t++) {
+			this.shapes[t] = new int[shapes[t].length - 1];
+			int count = 1;
+			for (int d = 1; d < shapes[t].length; d++) {
+				this.shapes[t][d - 1] = (int) shapes[t][d];
+				count *= (int) shapes[t][d];
+			}
+			this.elements[t] = count;
+		}
+		this.data = data;
+		this.rows = rows;
+		this.results = results;
+	}
+
+	/**
+	 * @return labels of each image, null where it could not be decoded
+	 */
+	public List<List<InceptionResult>> getResults() {
+		return results;
+	}
+
+	public List<String> getTensors() {
+		return tensors;
+	}
+
+	/**
+	 * @return elements in one image's row of the tensor
+	 */
+	public int getElements(int tensor) {
+		return elements[tensor];
+	}
+
+	/**
+	 * @return true if the image was decoded and has rows to write
+	 */
+	public boolean contains(int image) {
+		return rows[image] >= 0;
+	}
+
+	/**
+	 * @return bytes {@link #write} produces for any image
+	 */
+	public long size(Format format) {
+		long size = header(format).length;
+		for (int count : elements) {
+			size += (long) count * format.getBytes();
+		}
+		return size;
+	}
+
+	/**
+	 * write the header and the image's row of every tensor
+	 *
+	 * @param image
+	 *            index in the batch, must be {@link #contains contained}
+	 * @param format
+	 * @param out
+	 *            left open
+	 * @throws IOException
+	 */
+	public void write(int image, Format format, OutputStream out) throws IOException {
+		final int row = rows[image];
+		if (row < 0) {
+			throw new IllegalArgumentException("Image " + image + " was not decoded");
+		}
+		out.write(header(format));
+		byte[] scratch = null;
+		for (int t = 0; t < data.length; t++) {
+			if (format == Format.FLOAT32 && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+				// the tensor's bytes are already the encoding
+				out.write(data[t].array(), data[t].arrayOffset() + row * elements[t] * 4, elements[t] * 4);
+				continue;
+			}
+			final int size = elements[t] * format.getBytes();
+			if (scratch == null || scratch.length < size) {
+				scratch = new byte[size];
+			}
+			final FloatBuffer values = data[t].asFloatBuffer();
+			final int first = row * elements[t];
+			final ByteBuffer encoded = ByteBuffer.wrap(scratch, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = first; i < first + elements[t]; i++) {
+				if (format == Format.FLOAT32) {
+					encoded.putFloat(values.get(i));
+				} else {
+					encoded.putShort(toHalf(values.get(i)));
+				}
+			}
+			out.write(scratch, 0, size);
+		}
+	}
+
+	private byte[] header(Format format) {
+		if (headers[format.ordinal()] == null) {
+			headers[format.ordinal()] = buildHeader(format);
+		}
+		return headers[format.ordinal()];
+	}
+
+	private byte[] buildHeader(Format format) {
+		final ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+		header.write(MAGIC, 0, MAGIC.length);
+		header.write(VERSION);
+		header.write(format.code);
+		writeShort(header, tensors.size());
+		for (int t = 0; t < tensors.size(); t++) {
+			final byte[] name = tensors.get(t).getBytes(StandardCharsets.UTF_8);
+			writeShort(header, name.length);
+			header.write(name, 0, name.length);
+			header.write(shapes[t].length);
+			for (int dimension : shapes[t]) {
+				writeInt(header, dimension);
+			}
+		}
+		return header.toByteArray();
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int value) {
+		writeShort(out, value);
+		writeShort(out, value >>> 16);
+	}
+
+	/**
+	 * @return the half precision bits nearest the value, ties to even, NaN
+	 *         kept as a quiet NaN and values past 65504 as infinity
+	 */
+	static short toHalf(float value) {
+		final int bits = Float.floatToRawIntBits(value);
+		final int sign = (bits >>> 16) & 0x8000;
+		final int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+		int mantissa = bits & 0x7FFFFF;
+		if (exponent == 0xFF - 127 + 15) {
+			return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		if (exponent >= 0x1F) {
+			return (short) (sign | 0x7C00);
+		}
+		final int shift;
+		int half;
+		if (exponent <= 0) {
+			if (exponent < -10) {
+				return (short) sign;
+			}
+			// subnormal, the implicit bit becomes part of the mantissa
+			mantissa |= 0x800000;
+			shift = 14 - exponent;
+			half = mantissa >> shift;
+		} else {
+			shift = 13;
+			half = (exponent << 10) | (mantissa >> shift);
+		}
+		final int rest = mantissa & ((1 << shift) - 1);
+		final int halfway = 1 << (shift - 1);
+		if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+			// a carry out of the mantissa correctly bumps the exponent
+			half++;
+		}
+		return (short) (sign | half);
+	}
+}
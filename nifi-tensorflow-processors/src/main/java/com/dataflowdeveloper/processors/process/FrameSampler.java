@@ -0,0 +1,239 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which frames of a camera stream or animation are worth a model run.
+ * Each stream keeps a 16x16 grey thumbnail of the last frame it classified. A
+ * new frame runs the model when its thumbnail differs from that one by at
+ * least the change threshold, or when the stream has already reused its
+ * results for the maximum number of frames in a row; otherwise it takes the
+ * last classified frame's results as its own.
+ *
+ * @author tspann
+ *
+ */
+public class FrameSampler {
+
+	/** side of the grey thumbnail frames are compared by */
+	static final int THUMBNAIL_SIZE = 16;
+
+	/** points sampled per thumbnail cell along each side */
+	private static final int SAMPLES = 4;
+
+	private final float changeThreshold;
+	private final int maxSkip;
+	private final Map<String, Stream> streams;
+
+	/**
+	 * @param changeThreshold
+	 *            mean grey difference from 0 to 1 at which a frame is
+	 *            classified again
+	 * @param maxSkip
+	 *            most frames in a row that reuse results, 0 classifies every
+	 *            frame
+	 * @param maxStreams
+	 *            streams remembered, the least recently seen is forgotten
+	 */
+	public FrameSampler(float changeThreshold, int maxSkip, final int maxStreams) {
+		this.changeThreshold = changeThreshold;
+		this.maxSkip = maxSkip;
+		this.streams = new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+				return size() > maxStreams;
+			}
+		};
+	}
+
+	/**
+	 * @return a stream that is not remembered, for frames without a key
+	 */
+	public Stream newStream() {
+		return new Stream();
+	}
+
+	/**
+	 * @return the stream's state, created on first sight
+	 */
+	public synchronized Stream stream(String key) {
+		Stream stream = streams.get(key);
+		if (stream == null) {
+			stream = new Stream();
+			streams.put(key, stream);
+		}
+		return stream;
+	}
+
+	/**
+	 * @return streams remembered
+	 */
+	public synchronized int getStreamCount() {
+		return streams.size();
+	}
+
+	/**
+	 * compare a frame with the last one its stream classified
+	 *
+	 * @param stream
+	 * @param frame
+	 *            decoded frame
+	 * @param run
+	 *            the model run the frame would join, a reference still waiting
+	 *            for another run's results is not reused
+	 * @return the frame, to be classified unless it reuses another
+	 */
+	public Frame sample(Stream stream, BufferedImage frame, Object run) {
+		final byte[] thumbnail = thumbnail(frame);
+		synchronized (this) {
+			final Frame reference = stream.reference;
+			final float change = reference == null ? 1f : difference(thumbnail, reference.thumbnail);
+			final boolean usable = reference != null && (reference.run == run || reference.results != null);
+			if (usable && change < changeThreshold && stream.skipped < maxSkip) {
+				stream.skipped++;
+				return new Frame(thumbnail, change, reference, run);
+			}
+			final Frame classified = new Frame(thumbnail, change, null, run);
+			stream.reference = classified;
+			stream.skipped = 0;
+			return classified;
+		}
+	}
+
+	/**
+	 * @return mean of the absolute grey differences, 0 for identical
+	 *         thumbnails and 1 for black against white
+	 */
+	static float difference(byte[] a, byte[] b) {
+		long sum = 0;
+		for (int i = 0; i < a.length; i++) {
+			sum += Math.abs((a[i] & 0xFF) - (b[i] & 0xFF));
+		}
+		return sum / (255f * a.length);
+	}
+
+	/**
+	 * @return average grey of each cell of a 16x16 grid over the frame, from
+	 *         a few points per cell so it costs the same for any frame size
+	 */
+	static byte[] thumbnail(BufferedImage frame) {
+		final int width = frame.getWidth();
+		final int height = frame.getHeight();
+		final int grid = THUMBNAIL_SIZE * SAMPLES;
+		final int[] sums = new int[THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+		for (int sy = 0; sy < grid; sy++) {
+			final int y = (int) ((sy + 0.5f) * height / grid);
+			final int row = sy / SAMPLES * THUMBNAIL_SIZE;
+			for (int sx = 0; sx < grid; sx++) {
+				final int rgb = frame.getRGB((int) ((sx + 0.5f) * width / grid), y);
+				// integer Rec. 601 luma
+				sums[row + sx / SAMPLES] += (((rgb >> 16) & 0xFF) * 299 + ((rgb >> 8) & 0xFF) * 587
+						+ (rgb & 0xFF) * 114) / 1000;
+			}
+		}
+		final byte[] thumbnail = new byte[sums.length];
+		for (int i = 0; i < sums.length; i++) {
+			thumbnail[i] = (byte) (sums[i] / (SAMPLES * SAMPLES));
+		}
+		return thumbnail;
+	}
+
+	/**
+	 * merge the results of an animation's classified frames, each label at
+	 * its highest probability in any frame
+	 *
+	 * @param frames
+	 *            results of each frame
+	 * @param topK
+	 *            most probable labels to keep
+	 * @return labels ranked by their highest probability
+	 */
+	static List<InceptionResult> merge(List<List<InceptionResult>> frames, int topK) {
+		if (frames.size() == 1) {
+			return frames.get(0);
+		}
+		final Map<String, Float> best = new LinkedHashMap<String, Float>();
+		for (List<InceptionResult> results : frames) {
+			for (InceptionResult result : results) {
+				final Float score = best.get(result.getLabel());
+				if (score == null || result.getScore() > score) {
+					best.put(result.getLabel(), result.getScore());
+				}
+			}
+		}
+		final List<Map.Entry<String, Float>> ranked = new ArrayList<Map.Entry<String, Float>>(best.entrySet());
+		Collections.sort(ranked, (a, b) -> Float.compare(b.getValue(), a.getValue()));
+		final List<InceptionResult> merged = new ArrayList<InceptionResult>(Math.min(topK, ranked.size()));
+		for (int rank = 0; rank < ranked.size() && rank < topK; rank++) {
+			merged.add(new InceptionResult(ranked.get(rank).getKey(), ranked.get(rank).getValue(), rank));
+		}
+		return merged;
+	}
+
+	/**
+	 * The last classified frame of one stream and how many frames since
+	 * reused its results.
+	 */
+	public static final class Stream {
+		private Frame reference;
+		private int skipped;
+	}
+
+	/**
+	 * One sampled frame, either classified in its own right or reusing the
+	 * results of the frame it was compared with.
+	 */
+	public static final class Frame {
+		private final byte[] thumbnail;
+		private final float change;
+		private final Frame reuses;
+		private final Object run;
+		private volatile List<InceptionResult> results;
+
+		Frame(byte[] thumbnail, float change, Frame reuses, Object run) {
+			this.thumbnail = thumbnail;
+			this.change = change;
+			this.reuses = reuses;
+			this.run = run;
+		}
+
+		/**
+		 * @return true if the frame needs a model run
+		 */
+		public boolean isClassified() {
+			return reuses == null;
+		}
+
+		/**
+		 * @return difference from 0 to 1 to the stream's last classified
+		 *         frame, 1 for a stream's first frame
+		 */
+		public float getChange() {
+			return change;
+		}
+
+		/**
+		 * @return the frame's own results or those it reuses, null until its
+		 *         run has finished
+		 */
+		public List<InceptionResult> getResults() {
+			return reuses == null ? results : reuses.results;
+		}
+
+		/**
+		 * @param results
+		 *            of the frame's model run, reused by later frames of its
+		 *            stream
+		 */
+		public void setResults(List<InceptionResult> results) {
+			this.results = results;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram over fixed bucket bounds. Recording is a short scan of
+ * the bounds and a {@link LongAdder} increment, so concurrent onTrigger threads
+ * never contend on a lock or a single cache line.
+ *
+ * @author tspann
+ *
+ */
+public class Histogram {
+
+	private final long[] upperBounds;
+	private final LongAdder[] counts;
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * @param upperBounds
+	 *            ascending inclusive upper bound of each bucket, larger values
+	 *            fall into one extra overflow bucket
+	 */
+	public Histogram(long... upperBounds) {
+		for (int i = 1; i < upperBounds.length; i++) {
+			if (upperBounds[i] <= upperBounds[i - 1]) {
+				throw new IllegalArgumentException("Bucket bounds must be ascending " + Arrays.toString(upperBounds));
+			}
+		}
+		this.upperBounds = upperBounds.clone();
+		this.counts = new LongAdder[upperBounds.length + 1];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param value
+	 * @return index of the bucket the value was counted in
+	 */
+	public int record(long value) {
+		final int bucket = bucket(value);
+		counts[bucket].increment();
+		sum.add(value);
+		return bucket;
+	}
+
+	public int bucket(long value) {
+		int bucket = 0;
+		while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	/**
+	 * @return number of buckets, including the overflow bucket
+	 */
+	public int getBucketCount() {
+		return counts.length;
+	}
+
+	/**
+	 * @param bucket
+	 * @return inclusive upper bound, Long.MAX_VALUE for the overflow bucket
+	 */
+	public long getUpperBound(int bucket) {
+		return bucket < upperBounds.length ? upperBounds[bucket] : Long.MAX_VALUE;
+	}
+
+	/**
+	 * @return per bucket counts, each read independently while recording may
+	 *         continue
+	 */
+	public long[] getCounts() {
+		final long[] snapshot = new long[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			snapshot[i] = counts[i].sum();
+		}
+		return snapshot;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : counts) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @param quantile
+	 *            0 to 1
+	 * @return upper bound of the bucket holding the quantile, 0 when empty
+	 */
+	public long getQuantileBound(double quantile) {
+		final long[] snapshot = getCounts();
+		long total = 0;
+		for (long count : snapshot) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return getUpperBound(i);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,131 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import org.tensorflow.Tensor;
+
+/**
+ * Encoded image bytes ready to be fed as a scalar string tensor. Content read
+ * from a stream goes straight into a pooled direct buffer laid out the way
+ * TensorFlow stores a string tensor (an 8 byte offset, a varint length, then
+ * the bytes), so creating the tensor is the only copy into native memory.
+ *
+ * @author tspann
+ *
+ */
+public final class ImageContent implements AutoCloseable {
+
+	private static final int OFFSET_BYTES = 8;
+
+	private final byte[] bytes;
+	private final ByteBuffer encoded;
+	private final int headerLength;
+	private final int length;
+	private final DirectBufferPool pool;
+	private boolean closed;
+
+	private ImageContent(byte[] bytes, ByteBuffer encoded, int headerLength, int length, DirectBufferPool pool) {
+		this.bytes = bytes;
+		this.encoded = encoded;
+		this.headerLength = headerLength;
+		this.length = length;
+		this.pool = pool;
+	}
+
+	/**
+	 * @param bytes
+	 *            encoded image held on heap
+	 */
+	public static ImageContent wrap(byte[] bytes) {
+		return new ImageContent(bytes, null, 0, bytes.length, null);
+	}
+
+	/**
+	 * read exactly length bytes of an image into a buffer from the pool
+	 *
+	 * @param in
+	 * @param length
+	 * @param pool
+	 * @return content to be closed by the caller
+	 * @throws IOException
+	 *             when the stream does not hold exactly length bytes
+	 */
+	public static ImageContent read(InputStream in, int length, DirectBufferPool pool) throws IOException {
+		final int headerLength = OFFSET_BYTES + varintSize(length);
+		final ByteBuffer buffer = pool.acquire(headerLength + length);
+		try {
+			buffer.putLong(0L);
+			int value = length;
+			while ((value & ~0x7F) != 0) {
+				buffer.put((byte) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			buffer.put((byte) value);
+			buffer.limit(headerLength + length);
+
+			final ReadableByteChannel channel = Channels.newChannel(in);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException("Expected " + length + " bytes of content but read "
+							+ (buffer.position() - headerLength));
+				}
+			}
+			if (in.read() != -1) {
+				throw new IOException("Content is longer than the expected " + length + " bytes");
+			}
+			buffer.flip();
+			return new ImageContent(null, buffer, headerLength, length, pool);
+		} catch (IOException | RuntimeException e) {
+			pool.release(buffer);
+			throw e;
+		}
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return read only view of the encoded image bytes
+	 */
+	public ByteBuffer data() {
+		if (bytes != null) {
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+		ByteBuffer data = encoded.asReadOnlyBuffer();
+		data.position(headerLength);
+		return data.slice();
+	}
+
+	/**
+	 * @return scalar string tensor holding the image, to be closed by the caller
+	 */
+	Tensor<String> toTensor() {
+		if (bytes != null) {
+			return Tensor.create(bytes, String.class);
+		}
+		return Tensor.create(String.class, new long[0], encoded.duplicate());
+	}
+
+	@Override
+	public void close() {
+		if (pool != null && !closed) {
+			closed = true;
+			pool.release(encoded);
+		}
+	}
+
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,139 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.tensorflow.Graph;
+import org.tensorflow.Output;
+import org.tensorflow.Session;
+
+import com.dataflowdeveloper.processors.process.NativeResources.TensorHandle;
+import com.dataflowdeveloper.processors.process.TensorFlowService.GraphBuilder;
+
+/**
+ * Decode, resize and normalize pipeline built once with a placeholder for the
+ * encoded image, so every image is just a feed into a long-lived session.
+ *
+ * @author tspann
+ *
+ */
+public class ImagePreprocessor implements Preprocessor {
+
+	public static final String INPUT_NAME = "image_bytes";
+
+	private final Graph graph;
+	private final Session session;
+	private final String outputName;
+	private final String pixelsName;
+	private final int imageFloats;
+	private final ThreadLocal<FloatBuffer> pixelScratch;
+	private final NativeResources resources;
+	private final long graphBytes;
+
+	/**
+	 * @param height
+	 *            model input height
+	 * @param width
+	 *            model input width
+	 * @param mean
+	 *            subtracted from every channel value
+	 * @param scale
+	 *            channel values are divided by this after the mean is removed
+	 * @param sessionConfig
+	 *            serialized ConfigProto for the session
+	 */
+	public ImagePreprocessor(int height, int width, float mean, float scale, byte[] sessionConfig) {
+		this(height, width, mean, scale, ModelSignature.ChannelOrder.RGB, sessionConfig);
+	}
+
+	/**
+	 * @param height
+	 *            model input height
+	 * @param width
+	 *            model input width
+	 * @param mean
+	 *            subtracted from every channel value
+	 * @param scale
+	 *            channel values are divided by this after the mean is removed
+	 * @param channelOrder
+	 *            order of the channels in the output
+	 * @param sessionConfig
+	 *            serialized ConfigProto for the session
+	 */
+	public ImagePreprocessor(int height, int width, float mean, float scale,
+			ModelSignature.ChannelOrder channelOrder, byte[] sessionConfig) {
+		this(height, width, mean, scale, channelOrder, sessionConfig, NativeResources.GLOBAL);
+	}
+
+	/**
+	 * @param resources
+	 *            counts the graph, the session and the tensors of every run
+	 */
+	ImagePreprocessor(int height, int width, float mean, float scale, ModelSignature.ChannelOrder channelOrder,
+			byte[] sessionConfig, NativeResources resources) {
+		this.resources = resources;
+		graph = new Graph();
+		try {
+			GraphBuilder b = new GraphBuilder(graph);
+			final Output<String> input = b.placeholder(INPUT_NAME, String.class);
+			Output<Float> resized = b.resizeBilinear(
+					b.expandDims(b.cast(b.decodeJpeg(input, 3), Float.class), b.constant("make_batch", 0)),
+					b.constant("size", new int[] { height, width }));
+			if (channelOrder == ModelSignature.ChannelOrder.BGR) {
+				resized = b.reverse(resized, b.constant("channel_axis", new int[] { 3 }));
+			}
+			pixelsName = resized.op().name();
+			final Output<Float> output = b.div(b.sub(resized, b.constant("mean", mean)), b.constant("scale", scale));
+			outputName = output.op().name();
+			session = new Session(graph, sessionConfig);
+			graphBytes = graph.toGraphDef().length;
+		} catch (RuntimeException e) {
+			graph.close();
+			throw e;
+		}
+		resources.opened(NativeResources.Kind.GRAPH, graphBytes);
+		resources.opened(NativeResources.Kind.SESSION, 0);
+		imageFloats = height * width * 3;
+		pixelScratch = ThreadLocal.withInitial(() -> FloatBuffer.allocate(imageFloats));
+	}
+
+	@Override
+	public void normalize(ImageContent image, FloatBuffer out) {
+		try (TensorHandle<?> normalized = fetch(image, outputName)) {
+			normalized.get().expect(Float.class).writeTo(out);
+		}
+	}
+
+	/**
+	 * @return the fetched tensor, its handle to be closed by the caller
+	 */
+	private TensorHandle<?> fetch(ImageContent image, String name) {
+		try (TensorHandle<String> input = resources.track(image.toTensor())) {
+			return resources.track(session.runner().feed(INPUT_NAME, input.get()).fetch(name).run().get(0));
+		}
+	}
+
+	/**
+	 * fetches the resized image before normalization and rounds it half to
+	 * even, as TensorFlow's Round would
+	 */
+	@Override
+	public void pixels(ImageContent image, ByteBuffer out) {
+		final FloatBuffer resized = pixelScratch.get();
+		resized.clear();
+		try (TensorHandle<?> pixels = fetch(image, pixelsName)) {
+			pixels.get().expect(Float.class).writeTo(resized);
+		}
+		for (int i = 0; i < imageFloats; i++) {
+			out.put((byte) Math.rint(resized.get(i)));
+		}
+	}
+
+	@Override
+	public void close() {
+		session.close();
+		graph.close();
+		resources.closed(NativeResources.Kind.SESSION, 0);
+		resources.closed(NativeResources.Kind.GRAPH, graphBytes);
+	}
+}
@@ -1,6 +1,7 @@
 package com.dataflowdeveloper.processors.process;
 
 import java.io.Serializable;
+import java.util.Locale;
 
 /**
  * 
@@ -16,6 +17,7 @@ public class InceptionResult implements Serializable {
 	
 	private String label;
 	private String probability;
+	private float score;
 	private int rank;
 	
 	@Override
@@ -24,7 +26,7 @@ public class InceptionResult implements Serializable {
 		builder.append("InceptionResult [label=");
 		builder.append(label);
 		builder.append(", probability=");
-		builder.append(probability);
+		builder.append(getProbability());
 		builder.append(", rank=");
 		builder.append(rank);
 		builder.append("]");
@@ -45,6 +47,43 @@ public class InceptionResult implements Serializable {
 	}
 
 
+	/**
+	 * @param label
+	 * @param score
+	 *            probability from 0 to 1, formatted as a percentage when first
+	 *            asked for
+	 * @param rank
+	 */
+	public InceptionResult(String label, float score, int rank) {
+		this(label, (String) null, rank);
+		this.score = score;
+	}
+
+	/**
+	 * the probability as a percentage with two decimals, as
+	 * String.format("%.2f%%") writes it in an English locale, without a
+	 * Formatter
+	 * 
+	 * @param score
+	 *            probability from 0 to 1
+	 */
+	public static String percent(float score) {
+		final float percent = score * 100f;
+		if (Float.isNaN(percent) || Math.abs(percent) >= 1e12f) {
+			return String.format(Locale.ROOT, "%.2f%%", percent);
+		}
+		// a float times 100 is exact in a double, so only the half up step rounds
+		final long hundredths = (long) Math.floor(Math.abs((double) percent) * 100 + 0.5);
+		final StringBuilder builder = new StringBuilder(16);
+		if (Float.floatToRawIntBits(percent) < 0) {
+			builder.append('-');
+		}
+		final long fraction = hundredths % 100;
+		return builder.append(hundredths / 100).append(fraction < 10 ? ".0" : ".").append(fraction).append('%')
+				.toString();
+	}
+
+
 	public String getLabel() {
 		return label;
 	}
@@ -52,11 +91,23 @@ public class InceptionResult implements Serializable {
 		this.label = label;
 	}
 	public String getProbability() {
+		if (probability == null) {
+			probability = percent(score);
+		}
 		return probability;
 	}
 	public void setProbability(String probability) {
 		this.probability = probability;
 	}
+	/**
+	 * @return probability from 0 to 1
+	 */
+	public float getScore() {
+		return score;
+	}
+	public void setScore(float score) {
+		this.score = score;
+	}
 	public int getRank() {
 		return rank;
 	}
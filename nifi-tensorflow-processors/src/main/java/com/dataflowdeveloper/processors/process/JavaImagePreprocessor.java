@@ -0,0 +1,545 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Decode with ImageIO and resize in Java, writing normalized floats or uint8
+ * pixels straight into the batch input. Images much larger than the model input are subsampled
+ * while they are decoded, so a 12 megapixel photo never becomes a 12
+ * megapixel raster. The resize matches TensorFlow's ResizeBilinear without
+ * corner alignment, so both engines feed the model nearly the same values.
+ *
+ * @author tspann
+ *
+ */
+public class JavaImagePreprocessor implements Preprocessor {
+
+	private final int height;
+	private final int width;
+	private final float mean;
+	private final float inverseScale;
+	private final boolean bgr;
+	private final ThreadLocal<Scratch> scratch;
+
+	/**
+	 * @param height
+	 *            model input height
+	 * @param width
+	 *            model input width
+	 * @param mean
+	 *            subtracted from every channel value
+	 * @param scale
+	 *            channel values are divided by this after the mean is removed
+	 */
+	public JavaImagePreprocessor(int height, int width, float mean, float scale) {
+		this(height, width, mean, scale, ModelSignature.ChannelOrder.RGB);
+	}
+
+	/**
+	 * @param height
+	 *            model input height
+	 * @param width
+	 *            model input width
+	 * @param mean
+	 *            subtracted from every channel value
+	 * @param scale
+	 *            channel values are divided by this after the mean is removed
+	 * @param channelOrder
+	 *            order of the channels in the output
+	 */
+	public JavaImagePreprocessor(int height, int width, float mean, float scale,
+			ModelSignature.ChannelOrder channelOrder) {
+		this.height = height;
+		this.width = width;
+		this.mean = mean;
+		this.inverseScale = 1f / scale;
+		this.bgr = channelOrder == ModelSignature.ChannelOrder.BGR;
+		this.scratch = ThreadLocal.withInitial(() -> new Scratch(width));
+	}
+
+	@Override
+	public void normalize(ImageContent image, FloatBuffer out) throws IOException {
+		resize(decode(image.data()), out);
+	}
+
+	@Override
+	public void pixels(ImageContent image, ByteBuffer out) throws IOException {
+		pixels(decode(image.data()), out);
+	}
+
+	/**
+	 * decode one image once and write every tile as {@link #normalize} would
+	 * write a whole image, tile after tile. Nothing is written when the image
+	 * cannot be decoded.
+	 *
+	 * @param image
+	 *            encoded image
+	 * @param tiling
+	 *            crops to write
+	 * @param out
+	 *            batch input, advanced past tiling.size() images
+	 * @throws IOException
+	 *             when the image cannot be decoded
+	 */
+	public void normalizeTiles(ImageContent image, Tiling tiling, FloatBuffer out) throws IOException {
+		final BufferedImage decoded = decode(image.data(), tiling.getColumns(), tiling.getRows());
+		for (int t = 0; t < tiling.size(); t++) {
+			resizeTile(decoded, tiling, t, mean, inverseScale, out::put);
+		}
+	}
+
+	/**
+	 * {@link #normalizeTiles} for quantized models, writing uint8 pixels
+	 */
+	public void pixelsTiles(ImageContent image, Tiling tiling, ByteBuffer out) throws IOException {
+		final BufferedImage decoded = decode(image.data(), tiling.getColumns(), tiling.getRows());
+		final RowSink rows = rounded(out);
+		for (int t = 0; t < tiling.size(); t++) {
+			resizeTile(decoded, tiling, t, 0f, 1f, rows);
+		}
+	}
+
+	private RowSink rounded(ByteBuffer out) {
+		final byte[] bytes = scratch.get().bytes;
+		return row -> {
+			// round half to even, as TensorFlow's Round would
+			for (int i = 0; i < row.length; i++) {
+				bytes[i] = (byte) Math.rint(row[i]);
+			}
+			out.put(bytes);
+		};
+	}
+
+	private void resizeTile(BufferedImage image, Tiling tiling, int tile, float mean, float inverseScale,
+			RowSink out) {
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		resize(image, tiling.x(tile) * w, tiling.y(tile) * h, tiling.width(tile) * w, tiling.height(tile) * h,
+				mean, inverseScale, out);
+	}
+
+	/**
+	 * decode the first frame, subsampled by the largest whole factor that keeps
+	 * it at least as big as the model input
+	 *
+	 * @param data
+	 *            encoded image
+	 * @return decoded image
+	 * @throws IOException
+	 *             when no reader recognizes the image or it is corrupt
+	 */
+	BufferedImage decode(ByteBuffer data) throws IOException {
+		return decode(data, 1, 1);
+	}
+
+	/**
+	 * decode the first frame, subsampled by the largest whole factor that keeps
+	 * it at least columns model inputs wide and rows model inputs high
+	 */
+	private BufferedImage decode(ByteBuffer data, int columns, int rows) throws IOException {
+		try (ImageInputStream in = new MemoryCacheImageInputStream(new ByteBufferInputStream(data))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new IOException("Unsupported image format");
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				return read(reader, columns, rows);
+			} catch (RuntimeException e) {
+				// some readers fail on corrupt input with unchecked exceptions
+				throw new IOException("Failed to decode image: " + e.getMessage(), e);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	private BufferedImage read(ImageReader reader, int columns, int rows) throws IOException {
+		final int factor = Math.max(1, Math.min(reader.getWidth(0) / (width * columns),
+				reader.getHeight(0) / (height * rows)));
+		ImageReadParam param = reader.getDefaultReadParam();
+		if (factor > 1) {
+			param.setSourceSubsampling(factor, factor, 0, 0);
+		}
+		return reader.read(0, param);
+	}
+
+	/**
+	 * decode the frames of an animated GIF as they are shown, each drawn over
+	 * what the frames before it left, or the one frame of any other image as
+	 * {@link #decode} would. Animation frames are not subsampled.
+	 *
+	 * @param data
+	 *            encoded image
+	 * @param maxFrames
+	 *            frames past this are not decoded
+	 * @param frames
+	 *            receives each frame, an animation's canvas is drawn over once
+	 *            the consumer returns
+	 * @return frames decoded
+	 * @throws IOException
+	 *             when no reader recognizes the image or it is corrupt, after
+	 *             the frames decoded so far
+	 */
+	int decodeFrames(ByteBuffer data, int maxFrames, Consumer<BufferedImage> frames) throws IOException {
+		try (ImageInputStream in = new MemoryCacheImageInputStream(new ByteBufferInputStream(data))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				throw new IOException("Unsupported image format");
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, false, false);
+				final int count = Math.min(reader.getNumImages(true), maxFrames);
+				if (count <= 1) {
+					frames.accept(read(reader, 1, 1));
+					return 1;
+				}
+				final Element screen = metadata(reader.getStreamMetadata(), "LogicalScreenDescriptor");
+				final BufferedImage canvas = new BufferedImage(
+						attribute(screen, "logicalScreenWidth", reader.getWidth(0)),
+						attribute(screen, "logicalScreenHeight", reader.getHeight(0)), BufferedImage.TYPE_3BYTE_BGR);
+				final Graphics2D graphics = canvas.createGraphics();
+				try {
+					for (int i = 0; i < count; i++) {
+						final IIOMetadata metadata = reader.getImageMetadata(i);
+						final Element descriptor = metadata(metadata, "ImageDescriptor");
+						final Element control = metadata(metadata, "GraphicControlExtension");
+						final BufferedImage frame = reader.read(i);
+						final int x = attribute(descriptor, "imageLeftPosition", 0);
+						final int y = attribute(descriptor, "imageTopPosition", 0);
+						graphics.drawImage(frame, x, y, null);
+						frames.accept(canvas);
+						if (control != null && "restoreToBackground".equals(control.getAttribute("disposalMethod"))) {
+							graphics.clearRect(x, y, frame.getWidth(), frame.getHeight());
+						}
+					}
+				} finally {
+					graphics.dispose();
+				}
+				return count;
+			} catch (RuntimeException e) {
+				throw new IOException("Failed to decode image: " + e.getMessage(), e);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * @return the first element of that name in the metadata's native tree,
+	 *         null without one
+	 */
+	private static Element metadata(IIOMetadata metadata, String name) {
+		if (metadata == null || metadata.getNativeMetadataFormatName() == null) {
+			return null;
+		}
+		final Node root = metadata.getAsTree(metadata.getNativeMetadataFormatName());
+		final NodeList nodes = ((Element) root).getElementsByTagName(name);
+		return nodes.getLength() == 0 ? null : (Element) nodes.item(0);
+	}
+
+	private static int attribute(Element element, String name, int missing) {
+		if (element == null || element.getAttribute(name).isEmpty()) {
+			return missing;
+		}
+		return Integer.parseInt(element.getAttribute(name));
+	}
+
+	/**
+	 * bilinear resize to the model input, normalizing each channel
+	 *
+	 * @param image
+	 * @param out
+	 *            receives height * width * 3 floats
+	 */
+	void resize(BufferedImage image, FloatBuffer out) {
+		resize(image, 0, 0, image.getWidth(), image.getHeight(), mean, inverseScale, out::put);
+	}
+
+	/**
+	 * bilinear resize to the model input as rounded uint8 pixels
+	 *
+	 * @param image
+	 * @param out
+	 *            receives height * width * 3 bytes
+	 */
+	void pixels(BufferedImage image, ByteBuffer out) {
+		resize(image, 0, 0, image.getWidth(), image.getHeight(), 0f, 1f, rounded(out));
+	}
+
+	/**
+	 * bilinear resize of a crop to the model input, sampling from the same
+	 * pixels as a resize of the whole image would at the crop's position
+	 *
+	 * @param image
+	 * @param left
+	 *            crop position and size in image pixels
+	 * @param top
+	 * @param cropWidth
+	 * @param cropHeight
+	 * @param mean
+	 *            subtracted from every channel value
+	 * @param inverseScale
+	 *            channel values are multiplied by this after the mean is
+	 *            removed
+	 * @param out
+	 *            receives each row of width * 3 values
+	 */
+	private void resize(BufferedImage image, float left, float top, float cropWidth, float cropHeight, float mean,
+			float inverseScale, RowSink out) {
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		final Scratch s = scratch.get();
+		final float xScale = cropWidth / width;
+		final float yScale = cropHeight / height;
+		for (int x = 0; x < width; x++) {
+			final float in = left + x * xScale;
+			s.x0[x] = (int) in;
+			s.x1[x] = Math.min(s.x0[x] + 1, w - 1);
+			s.xLerp[x] = in - s.x0[x];
+		}
+
+		final Raster raster = image.getRaster();
+		final int[] bands = byteBands(image, bgr);
+		if (bands != null) {
+			final ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+			final byte[] pixels = ((DataBufferByte) raster.getDataBuffer()).getData();
+			final int offset = raster.getDataBuffer().getOffset();
+			final int stride = model.getScanlineStride();
+			final int pixelStride = model.getPixelStride();
+			for (int x = 0; x < width; x++) {
+				s.x0[x] *= pixelStride;
+				s.x1[x] *= pixelStride;
+			}
+			resize(pixels, offset, stride, bands, h, top, yScale, s, mean, inverseScale, out);
+		} else {
+			// convert only the columns of the crop, two source rows at a time
+			final int first = s.x0[0];
+			for (int x = 0; x < width; x++) {
+				s.x0[x] -= first;
+				s.x1[x] -= first;
+			}
+			resize(image, first, s.x1[width - 1] + 1, h, top, yScale, s, mean, inverseScale, out);
+		}
+	}
+
+	/**
+	 * @return offsets of the samples to write, in output channel order, for 8
+	 *         bit sRGB or grey rasters that can be read directly, null when
+	 *         the image has to be converted through getRGB
+	 */
+	private static int[] byteBands(BufferedImage image, boolean bgr) {
+		final Raster raster = image.getRaster();
+		if (!(raster.getDataBuffer() instanceof DataBufferByte)
+				|| !(raster.getSampleModel() instanceof ComponentSampleModel) || raster.getParent() != null
+				|| image.getColorModel().isAlphaPremultiplied()) {
+			return null;
+		}
+		final int[] offsets = ((ComponentSampleModel) raster.getSampleModel()).getBandOffsets();
+		switch (image.getType()) {
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+			return bgr ? new int[] { offsets[2], offsets[1], offsets[0] }
+					: new int[] { offsets[0], offsets[1], offsets[2] };
+		case BufferedImage.TYPE_BYTE_GRAY:
+			// TensorFlow replicates grey into every channel, getRGB would apply
+			// a gamma curve
+			return new int[] { offsets[0], offsets[0], offsets[0] };
+		default:
+			return null;
+		}
+	}
+
+	private void resize(byte[] pixels, int offset, int stride, int[] bands, int h, float cropTop, float yScale,
+			Scratch s, float mean, float inverseScale, RowSink out) {
+		final int[] x0 = s.x0;
+		final int[] x1 = s.x1;
+		final float[] xLerp = s.xLerp;
+		final float[] row = s.row;
+		final int r = bands[0];
+		final int g = bands[1];
+		final int b = bands[2];
+		for (int y = 0; y < height; y++) {
+			final float in = cropTop + y * yScale;
+			final int y0 = (int) in;
+			final float yLerp = in - y0;
+			final int top = offset + y0 * stride;
+			final int bottom = offset + Math.min(y0 + 1, h - 1) * stride;
+			for (int x = 0, i = 0; x < width; x++, i += 3) {
+				final float t = xLerp[x];
+				final int tl = top + x0[x];
+				final int tr = top + x1[x];
+				final int bl = bottom + x0[x];
+				final int br = bottom + x1[x];
+				row[i] = normalize(pixels[tl + r] & 0xFF, pixels[tr + r] & 0xFF, pixels[bl + r] & 0xFF,
+						pixels[br + r] & 0xFF, t, yLerp, mean, inverseScale);
+				row[i + 1] = normalize(pixels[tl + g] & 0xFF, pixels[tr + g] & 0xFF, pixels[bl + g] & 0xFF,
+						pixels[br + g] & 0xFF, t, yLerp, mean, inverseScale);
+				row[i + 2] = normalize(pixels[tl + b] & 0xFF, pixels[tr + b] & 0xFF, pixels[bl + b] & 0xFF,
+						pixels[br + b] & 0xFF, t, yLerp, mean, inverseScale);
+			}
+			out.put(row);
+		}
+	}
+
+	/**
+	 * resize through getRGB, converting the two source rows each output row
+	 * reads into a buffer span pixels wide
+	 *
+	 * @param left
+	 *            first source column read, the column lookups are relative
+	 *            to it
+	 * @param span
+	 *            source columns read
+	 */
+	private void resize(BufferedImage image, int left, int span, int h, float cropTop, float yScale, Scratch s,
+			float mean, float inverseScale, RowSink out) {
+		final int[] x0 = s.x0;
+		final int[] x1 = s.x1;
+		final float[] xLerp = s.xLerp;
+		final float[] row = s.row;
+		final int[] rgb = s.pixels(2 * span);
+		final int first = bgr ? 0 : 16;
+		final int last = bgr ? 16 : 0;
+		int converted = -1;
+		for (int y = 0; y < height; y++) {
+			final float in = cropTop + y * yScale;
+			final int y0 = (int) in;
+			final float yLerp = in - y0;
+			final int rows = y0 + 1 < h ? 2 : 1;
+			if (y0 != converted) {
+				image.getRGB(left, y0, span, rows, rgb, 0, span);
+				converted = y0;
+			}
+			final int bottom = rows == 2 ? span : 0;
+			for (int x = 0, i = 0; x < width; x++, i += 3) {
+				final float t = xLerp[x];
+				final int tl = rgb[x0[x]];
+				final int tr = rgb[x1[x]];
+				final int bl = rgb[bottom + x0[x]];
+				final int br = rgb[bottom + x1[x]];
+				row[i] = normalize((tl >> first) & 0xFF, (tr >> first) & 0xFF, (bl >> first) & 0xFF,
+						(br >> first) & 0xFF, t, yLerp, mean, inverseScale);
+				row[i + 1] = normalize((tl >> 8) & 0xFF, (tr >> 8) & 0xFF, (bl >> 8) & 0xFF, (br >> 8) & 0xFF, t,
+						yLerp, mean, inverseScale);
+				row[i + 2] = normalize((tl >> last) & 0xFF, (tr >> last) & 0xFF, (bl >> last) & 0xFF,
+						(br >> last) & 0xFF, t, yLerp, mean, inverseScale);
+			}
+			out.put(row);
+		}
+	}
+
+	/**
+	 * interpolate along x on both rows then along y, in the same order as
+	 * ResizeBilinear, and normalize
+	 */
+	private static float normalize(int topLeft, int topRight, int bottomLeft, int bottomRight, float xLerp,
+			float yLerp, float mean, float inverseScale) {
+		final float top = topLeft + (topRight - topLeft) * xLerp;
+		final float bottom = bottomLeft + (bottomRight - bottomLeft) * xLerp;
+		return (top + (bottom - top) * yLerp - mean) * inverseScale;
+	}
+
+	@Override
+	public void close() {
+		// nothing native to free
+	}
+
+	/**
+	 * Receives the resized image a row at a time.
+	 */
+	private interface RowSink {
+		void put(float[] row);
+	}
+
+	/**
+	 * Per thread column lookups and row buffers, reused for every image. The
+	 * getRGB rows are only kept while they are small, so one very wide image
+	 * does not pin its rows on every thread that decoded it.
+	 */
+	private static final class Scratch {
+		static final int MAX_KEPT_PIXELS = 1 << 16;
+
+		final int[] x0;
+		final int[] x1;
+		final float[] xLerp;
+		final float[] row;
+		final byte[] bytes;
+		int[] pixels = new int[0];
+
+		Scratch(int width) {
+			x0 = new int[width];
+			x1 = new int[width];
+			xLerp = new float[width];
+			row = new float[width * 3];
+			bytes = new byte[width * 3];
+		}
+
+		int[] pixels(int size) {
+			if (size > MAX_KEPT_PIXELS) {
+				return new int[size];
+			}
+			if (pixels.length < size) {
+				pixels = new int[size];
+			}
+			return pixels;
+		}
+	}
+
+	/**
+	 * Reads a buffer without copying it to the heap first.
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			final int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,392 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded LRU cache of loaded models keyed by model directory. Entries are
+ * evicted once the cache holds more models or more graph bytes than allowed,
+ * and reloaded when the graph file on disk changes. The lock only guards the
+ * map, models load outside of it and concurrent callers for the same model
+ * wait on a single load. A load still running when the cache is closed closes
+ * its model as soon as it finishes.
+ *
+ * @author tspann
+ *
+ */
+public class ModelCache implements AutoCloseable {
+
+	private final Logger logger = LoggerFactory.getLogger(ModelCache.class);
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final long reloadCheckNanos;
+	private final Function<Path, Path> graphFile;
+	private final Function<Path, TensorFlowModel> loader;
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+	private long totalBytes;
+	private boolean closed;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong reloads = new AtomicLong();
+	private final AtomicLong loadNanos = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            most models kept loaded at once
+	 * @param maxBytes
+	 *            most graph bytes kept loaded at once, a single larger model is
+	 *            still loaded but evicts everything else
+	 * @param reloadCheckMillis
+	 *            how often a cached model's graph file is checked for changes
+	 * @param graphFileName
+	 *            graph file inside the model directory
+	 * @param loader
+	 *            loads the model for a directory
+	 */
+	public ModelCache(int maxEntries, long maxBytes, long reloadCheckMillis, String graphFileName,
+			Function<Path, TensorFlowModel> loader) {
+		this(maxEntries, maxBytes, reloadCheckMillis, dir -> dir.resolve(graphFileName), loader);
+	}
+
+	/**
+	 * @param maxEntries
+	 *            most models kept loaded at once
+	 * @param maxBytes
+	 *            most model bytes kept loaded at once, a single larger model is
+	 *            still loaded but evicts everything else
+	 * @param reloadCheckMillis
+	 *            how often a cached model's graph file is checked for changes
+	 * @param graphFile
+	 *            finds the graph file of a model directory, its size is used
+	 *            until the model has loaded and reports its own
+	 * @param loader
+	 *            loads the model for a directory
+	 */
+	public ModelCache(int maxEntries, long maxBytes, long reloadCheckMillis, Function<Path, Path> graphFile,
+			Function<Path, TensorFlowModel> loader) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.reloadCheckNanos = TimeUnit.MILLISECONDS.toNanos(reloadCheckMillis);
+		this.graphFile = graphFile;
+		this.loader = loader;
+	}
+
+	/**
+	 * get the model for a directory, loading it if needed. The caller must
+	 * {@link TensorFlowModel#release()} it when done.
+	 *
+	 * @param dir
+	 * @return acquired model
+	 * @throws IllegalStateException
+	 *             once the cache is closed
+	 */
+	public TensorFlowModel acquire(Path dir) {
+		for (;;) {
+			Entry entry;
+			synchronized (this) {
+				entry = entries.get(dir);
+			}
+			if (entry != null && entry.isStale()) {
+				synchronized (this) {
+					if (entries.get(dir) == entry) {
+						remove(entry);
+						reloads.incrementAndGet();
+						logger.info("Reloading changed model " + dir);
+					}
+				}
+				entry = null;
+			}
+			if (entry == null) {
+				final Entry created = new Entry(dir);
+				synchronized (this) {
+					if (closed) {
+						throw new IllegalStateException("Model cache is closed, cannot load " + dir);
+					}
+					entry = entries.get(dir);
+					if (entry == null) {
+						entry = created;
+						entries.put(dir, created);
+						totalBytes += created.bytes;
+						evict(created);
+					}
+				}
+				if (entry == created) {
+					misses.incrementAndGet();
+					long start = System.nanoTime();
+					created.load.run();
+					loadNanos.addAndGet(System.nanoTime() - start);
+					created.loaded();
+				} else {
+					hits.incrementAndGet();
+				}
+			} else {
+				hits.incrementAndGet();
+			}
+
+			TensorFlowModel model = entry.get();
+			if (model.acquire()) {
+				return model;
+			}
+			// evicted between lookup and acquire, look it up again
+		}
+	}
+
+	private void evict(Entry keep) {
+		Iterator<Entry> eldest = entries.values().iterator();
+		while ((entries.size() > maxEntries || totalBytes > maxBytes) && eldest.hasNext()) {
+			Entry entry = eldest.next();
+			// a model still loading has nothing to free yet
+			if (entry == keep || !entry.load.isDone()) {
+				continue;
+			}
+			eldest.remove();
+			totalBytes -= entry.bytes;
+			entry.close();
+			evictions.incrementAndGet();
+			logger.debug("Evicted model " + entry.dir);
+		}
+	}
+
+	private void remove(Entry entry) {
+		entries.remove(entry.dir);
+		totalBytes -= entry.bytes;
+		entry.close();
+	}
+
+	/**
+	 * @return counters since the cache was created
+	 */
+	public Stats getStats() {
+		int size;
+		long bytes;
+		synchronized (this) {
+			size = entries.size();
+			bytes = totalBytes;
+		}
+		return new Stats(hits.get(), misses.get(), evictions.get(), reloads.get(), loadNanos.get(), size, bytes);
+	}
+
+	/**
+	 * close every loaded model, a model still loading is closed by its loader
+	 * once the load finishes
+	 */
+	@Override
+	public void close() {
+		List<Entry> closing;
+		synchronized (this) {
+			closed = true;
+			closing = new ArrayList<Entry>(entries.values());
+			entries.clear();
+			totalBytes = 0;
+		}
+		for (Entry entry : closing) {
+			entry.close();
+		}
+	}
+
+	private final class Entry {
+		final Path dir;
+		final FutureTask<TensorFlowModel> load;
+		// guarded by the cache, corrected once the model has loaded
+		long bytes;
+		final BasicFileAttributes loadedFrom;
+		volatile long checkedAt = System.nanoTime();
+
+		Entry(final Path dir) {
+			this.dir = dir;
+			this.load = new FutureTask<TensorFlowModel>(() -> loader.apply(dir));
+			this.loadedFrom = graphAttributes();
+			this.bytes = loadedFrom == null ? 0 : loadedFrom.size();
+		}
+
+		BasicFileAttributes graphAttributes() {
+			try {
+				return Files.readAttributes(graphFile.apply(dir), BasicFileAttributes.class);
+			} catch (IOException | RuntimeException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * account for the loaded model's own size, which for a SavedModel
+		 * includes its variables, or close it when the cache was closed
+		 * during the load
+		 */
+		void loaded() {
+			final TensorFlowModel model;
+			try {
+				model = load.get();
+			} catch (InterruptedException | ExecutionException e) {
+				// get() reports the failure to the caller
+				return;
+			}
+			synchronized (ModelCache.this) {
+				if (closed) {
+					// close() skipped it while loading, closing twice is harmless
+					model.close();
+					return;
+				}
+				if (entries.get(dir) == this && model.getSizeInBytes() != bytes) {
+					totalBytes += model.getSizeInBytes() - bytes;
+					bytes = model.getSizeInBytes();
+					evict(this);
+				}
+			}
+		}
+
+		/**
+		 * at most once per check interval, compare the graph file's
+		 * modification time and size with the ones it was loaded from
+		 */
+		boolean isStale() {
+			long now = System.nanoTime();
+			if (loadedFrom == null || now - checkedAt < reloadCheckNanos || !load.isDone()) {
+				return false;
+			}
+			checkedAt = now;
+			BasicFileAttributes current = graphAttributes();
+			return current != null && (!current.lastModifiedTime().equals(loadedFrom.lastModifiedTime())
+					|| current.size() != loadedFrom.size());
+		}
+
+		TensorFlowModel get() {
+			try {
+				return load.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while loading model " + dir, e);
+			} catch (ExecutionException e) {
+				// forget the failed load so a later call can retry
+				synchronized (ModelCache.this) {
+					if (entries.get(dir) == this) {
+						entries.remove(dir);
+						totalBytes -= bytes;
+					}
+				}
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new RuntimeException("Failed to load model " + dir, e.getCause());
+			}
+		}
+
+		void close() {
+			if (load.isDone()) {
+				try {
+					load.get().close();
+				} catch (InterruptedException | ExecutionException e) {
+					// never loaded, nothing to close
+				}
+			}
+		}
+	}
+
+	/**
+	 * Snapshot of the cache counters.
+	 */
+	public static class Stats {
+		private final long hits;
+		private final long misses;
+		private final long evictions;
+		private final long reloads;
+		private final long loadNanos;
+		private final int entries;
+		private final long bytes;
+
+		Stats(long hits, long misses, long evictions, long reloads, long loadNanos, int entries, long bytes) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.reloads = reloads;
+			this.loadNanos = loadNanos;
+			this.entries = entries;
+			this.bytes = bytes;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		public long getEvictions() {
+			return evictions;
+		}
+
+		public long getReloads() {
+			return reloads;
+		}
+
+		public long getLoadNanos() {
+			return loadNanos;
+		}
+
+		public int getEntries() {
+			return entries;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * counter growth since an earlier snapshot, entries and bytes are kept
+		 * as current values
+		 */
+		public Stats since(Stats earlier) {
+			return new Stats(hits - earlier.hits, misses - earlier.misses, evictions - earlier.evictions,
+					reloads - earlier.reloads, loadNanos - earlier.loadNanos, entries, bytes);
+		}
+
+		public Map<String, Long> toCounters() {
+			Map<String, Long> counters = new LinkedHashMap<String, Long>();
+			counters.put("Model Cache Hits", hits);
+			counters.put("Model Cache Misses", misses);
+			counters.put("Model Cache Evictions", evictions);
+			counters.put("Model Cache Reloads", reloads);
+			counters.put("Model Load Time (ms)", TimeUnit.NANOSECONDS.toMillis(loadNanos));
+			return counters;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("Stats [hits=");
+			builder.append(hits);
+			builder.append(", misses=");
+			builder.append(misses);
+			builder.append(", evictions=");
+			builder.append(evictions);
+			builder.append(", reloads=");
+			builder.append(reloads);
+			builder.append(", loadNanos=");
+			builder.append(loadNanos);
+			builder.append(", entries=");
+			builder.append(entries);
+			builder.append(", bytes=");
+			builder.append(bytes);
+			builder.append("]");
+			return builder.toString();
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.dataflowdeveloper.processors.process;
+
+/**
+ * A model directory could not be read or does not hold a usable model.
+ *
+ * @author tspann
+ *
+ */
+public class ModelLoadException extends RuntimeException {
+
+	private static final long serialVersionUID = 4127006414416322071L;
+
+	public ModelLoadException(String message) {
+		super(message);
+	}
+
+	public ModelLoadException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
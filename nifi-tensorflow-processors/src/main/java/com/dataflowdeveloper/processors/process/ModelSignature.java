@@ -0,0 +1,340 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * How to feed a model and read its output: where its graph and labels are, the
+ * names of its input and output tensors, the image size it expects and how
+ * pixel values are normalized. A model directory may hold a
+ * {@value #DESCRIPTOR_FILE} that overrides any of these for that model, with
+ * the keys
+ * <ul>
+ * <li>graph.file, label.file</li>
+ * <li>input.name, output.name, either an operation name or name:index</li>
+ * <li>input.width, input.height</li>
+ * <li>input.mean, input.scale, each value becomes (value - mean) / scale</li>
+ * <li>channel.order, RGB or BGR</li>
+ * <li>tags, comma separated SavedModel tags</li>
+ * <li>output.scale, output.zero.point, each uint8 output q becomes the
+ * probability (q - zero point) * scale</li>
+ * </ul>
+ * A directory holding a {@value #SAVED_MODEL_FILE} is loaded as a SavedModel
+ * bundle and its graph file setting is ignored.
+ * <p>
+ * Whether a model is quantized is read from its graph: a uint8 input is fed
+ * the resized pixels without mean and scale, and a uint8 output is
+ * dequantized with the output scale and zero point.
+ *
+ * @author tspann
+ *
+ */
+public final class ModelSignature {
+
+	public static final String DESCRIPTOR_FILE = "model.properties";
+	public static final String SAVED_MODEL_FILE = "saved_model.pb";
+	public static final String DEFAULT_TAG = "serve";
+	/** quantized classifiers commonly map 0 to 255 onto 0 to 255/256 */
+	public static final float DEFAULT_OUTPUT_SCALE = 1f / 256;
+	public static final int DEFAULT_OUTPUT_ZERO_POINT = 0;
+
+	/**
+	 * Order of the colour channels in the model input.
+	 */
+	public enum ChannelOrder {
+		RGB, BGR
+	}
+
+	/**
+	 * Inception5h, the model this processor was written for.
+	 */
+	public static final ModelSignature DEFAULT = new ModelSignature(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB,
+			TensorFlowService.IMAGENET_COMP_GRAPH_LABEL_STRINGS_TXT, TensorFlowService.INPUT_OPERATION,
+			TensorFlowService.OUTPUT_OPERATION, TensorFlowService.INPUT_WIDTH, TensorFlowService.INPUT_HEIGHT,
+			TensorFlowService.INPUT_MEAN, TensorFlowService.INPUT_SCALE, ChannelOrder.RGB,
+			new String[] { DEFAULT_TAG });
+
+	private final String graphFile;
+	private final String labelFile;
+	private final String inputName;
+	private final String outputName;
+	private final int width;
+	private final int height;
+	private final float mean;
+	private final float scale;
+	private final ChannelOrder channelOrder;
+	private final String[] tags;
+	private final float outputScale;
+	private final int outputZeroPoint;
+
+	/**
+	 * @param graphFile
+	 *            frozen GraphDef, relative to the model directory
+	 * @param labelFile
+	 *            one label per output class, relative to the model directory
+	 * @param inputName
+	 *            tensor fed the [batch, height, width, 3] images
+	 * @param outputName
+	 *            tensor holding the [batch, classes] probabilities
+	 * @param width
+	 *            model input width
+	 * @param height
+	 *            model input height
+	 * @param mean
+	 *            subtracted from every channel value
+	 * @param scale
+	 *            channel values are divided by this after the mean is removed
+	 * @param channelOrder
+	 * @param tags
+	 *            tags of the meta graph to load from a SavedModel
+	 * @throws IllegalArgumentException
+	 *             when a size is not positive or the scale is 0
+	 */
+	public ModelSignature(String graphFile, String labelFile, String inputName, String outputName, int width,
+			int height, float mean, float scale, ChannelOrder channelOrder, String[] tags) {
+		this(graphFile, labelFile, inputName, outputName, width, height, mean, scale, channelOrder, tags,
+				DEFAULT_OUTPUT_SCALE, DEFAULT_OUTPUT_ZERO_POINT);
+	}
+
+	/**
+	 * @param graphFile
+	 *            frozen GraphDef, relative to the model directory
+	 * @param labelFile
+	 *            one label per output class, relative to the model directory
+	 * @param inputName
+	 *            tensor fed the [batch, height, width, 3] images
+	 * @param outputName
+	 *            tensor holding the [batch, classes] probabilities
+	 * @param width
+	 *            model input width
+	 * @param height
+	 *            model input height
+	 * @param mean
+	 *            subtracted from every channel value of a float input
+	 * @param scale
+	 *            channel values of a float input are divided by this after the
+	 *            mean is removed
+	 * @param channelOrder
+	 * @param tags
+	 *            tags of the meta graph to load from a SavedModel
+	 * @param outputScale
+	 *            probability step of a uint8 output
+	 * @param outputZeroPoint
+	 *            uint8 output value that stands for probability 0
+	 * @throws IllegalArgumentException
+	 *             when a size or the output scale is not positive, the input
+	 *             scale is 0 or the zero point is not a uint8
+	 */
+	public ModelSignature(String graphFile, String labelFile, String inputName, String outputName, int width,
+			int height, float mean, float scale, ChannelOrder channelOrder, String[] tags, float outputScale,
+			int outputZeroPoint) {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Input size must be positive, not " + width + "x" + height);
+		}
+		if (scale == 0f || Float.isNaN(scale) || Float.isNaN(mean)) {
+			throw new IllegalArgumentException("Input scale must be a non zero number and mean a number");
+		}
+		if (!(outputScale > 0f) || Float.isInfinite(outputScale)) {
+			throw new IllegalArgumentException("Output scale must be a positive number, not " + outputScale);
+		}
+		if (outputZeroPoint < 0 || outputZeroPoint > 255) {
+			throw new IllegalArgumentException("Output zero point must be 0 to 255, not " + outputZeroPoint);
+		}
+		this.graphFile = graphFile;
+		this.labelFile = labelFile;
+		this.inputName = inputName;
+		this.outputName = outputName;
+		this.width = width;
+		this.height = height;
+		this.mean = mean;
+		this.scale = scale;
+		this.channelOrder = channelOrder;
+		this.tags = tags.clone();
+		this.outputScale = outputScale;
+		this.outputZeroPoint = outputZeroPoint;
+	}
+
+	/**
+	 * @param dir
+	 *            model directory
+	 * @return this signature with the directory's {@value #DESCRIPTOR_FILE}
+	 *         applied, or this when it has none
+	 * @throws ModelLoadException
+	 *             when the descriptor cannot be read or holds a bad value
+	 */
+	public ModelSignature forDirectory(Path dir) {
+		final Path descriptor = dir.resolve(DESCRIPTOR_FILE);
+		if (!Files.exists(descriptor)) {
+			return this;
+		}
+		final Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(descriptor)) {
+			properties.load(in);
+			return with(properties);
+		} catch (IOException | IllegalArgumentException e) {
+			throw new ModelLoadException("Failed to read [" + descriptor + "]: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param properties
+	 *            descriptor keys, missing keys keep this signature's values
+	 * @return the combined signature
+	 * @throws IllegalArgumentException
+	 *             on a value that does not parse
+	 */
+	public ModelSignature with(Properties properties) {
+		return new ModelSignature(properties.getProperty("graph.file", graphFile).trim(),
+				properties.getProperty("label.file", labelFile).trim(),
+				properties.getProperty("input.name", inputName).trim(),
+				properties.getProperty("output.name", outputName).trim(),
+				Integer.parseInt(properties.getProperty("input.width", String.valueOf(width)).trim()),
+				Integer.parseInt(properties.getProperty("input.height", String.valueOf(height)).trim()),
+				Float.parseFloat(properties.getProperty("input.mean", String.valueOf(mean)).trim()),
+				Float.parseFloat(properties.getProperty("input.scale", String.valueOf(scale)).trim()),
+				ChannelOrder.valueOf(properties.getProperty("channel.order", channelOrder.name()).trim()
+						.toUpperCase(Locale.ROOT)),
+				properties.containsKey("tags") ? parseTags(properties.getProperty("tags")) : tags,
+				Float.parseFloat(properties.getProperty("output.scale", String.valueOf(outputScale)).trim()),
+				Integer.parseInt(properties.getProperty("output.zero.point", String.valueOf(outputZeroPoint)).trim()));
+	}
+
+	/**
+	 * @param tags
+	 *            comma separated
+	 */
+	public static String[] parseTags(String tags) {
+		return Arrays.stream(tags.split(",")).map(String::trim).filter(tag -> !tag.isEmpty())
+				.toArray(String[]::new);
+	}
+
+	/**
+	 * @param dir
+	 *            model directory
+	 * @return true when the directory holds a SavedModel bundle
+	 */
+	public boolean isSavedModel(Path dir) {
+		return Files.exists(dir.resolve(SAVED_MODEL_FILE));
+	}
+
+	/**
+	 * @param dir
+	 *            model directory
+	 * @return the file whose change means the model must be reloaded
+	 */
+	public Path graphPath(Path dir) {
+		return dir.resolve(isSavedModel(dir) ? SAVED_MODEL_FILE : graphFile);
+	}
+
+	public Path labelPath(Path dir) {
+		return dir.resolve(labelFile);
+	}
+
+	public String getGraphFile() {
+		return graphFile;
+	}
+
+	public String getLabelFile() {
+		return labelFile;
+	}
+
+	public String getInputName() {
+		return inputName;
+	}
+
+	public String getOutputName() {
+		return outputName;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return floats in one normalized image
+	 */
+	public int getImageFloats() {
+		return height * width * 3;
+	}
+
+	public float getMean() {
+		return mean;
+	}
+
+	public float getScale() {
+		return scale;
+	}
+
+	public ChannelOrder getChannelOrder() {
+		return channelOrder;
+	}
+
+	public String[] getTags() {
+		return tags.clone();
+	}
+
+	public float getOutputScale() {
+		return outputScale;
+	}
+
+	public int getOutputZeroPoint() {
+		return outputZeroPoint;
+	}
+
+	/**
+	 * @param quantized
+	 *            uint8 output value
+	 * @return the probability it stands for
+	 */
+	public float dequantize(int quantized) {
+		return (quantized - outputZeroPoint) * outputScale;
+	}
+
+	/**
+	 * @return identifies the preprocessing this signature needs, signatures
+	 *         with the same key can share a preprocessor
+	 */
+	String preprocessingKey() {
+		return width + "x" + height + " " + mean + "/" + scale + " " + channelOrder;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("ModelSignature [graphFile=");
+		builder.append(graphFile);
+		builder.append(", labelFile=");
+		builder.append(labelFile);
+		builder.append(", inputName=");
+		builder.append(inputName);
+		builder.append(", outputName=");
+		builder.append(outputName);
+		builder.append(", size=");
+		builder.append(width);
+		builder.append("x");
+		builder.append(height);
+		builder.append(", mean=");
+		builder.append(mean);
+		builder.append(", scale=");
+		builder.append(scale);
+		builder.append(", channelOrder=");
+		builder.append(channelOrder);
+		builder.append(", tags=");
+		builder.append(Arrays.toString(tags));
+		builder.append(", outputScale=");
+		builder.append(outputScale);
+		builder.append(", outputZeroPoint=");
+		builder.append(outputZeroPoint);
+		builder.append("]");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,181 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.tensorflow.Tensor;
+
+/**
+ * Counts the TensorFlow objects that hold native memory, which JVM heap
+ * monitoring cannot see: tensors, graphs and sessions, with the bytes they
+ * hold where known. Each {@link TensorFlowService} has its own tracker, so
+ * whatever is still open once the service is closed has leaked; every tracker
+ * also adds to {@link #GLOBAL}, the whole JVM's count.
+ * <p>
+ * Tensors are tracked through {@link #track(Tensor)}, whose handle closes the
+ * tensor and counts it closed exactly once. Graphs and sessions live as long
+ * as their model or preprocessor, which calls {@link #opened(Kind, long)} and
+ * {@link #closed(Kind, long)} itself.
+ *
+ * @author tspann
+ *
+ */
+public final class NativeResources {
+
+	public enum Kind {
+		TENSOR, GRAPH, SESSION
+	}
+
+	private static final int KINDS = Kind.values().length;
+
+	/** everything opened in this JVM */
+	public static final NativeResources GLOBAL = new NativeResources(null);
+
+	private final NativeResources parent;
+	private final AtomicLongArray live = new AtomicLongArray(KINDS);
+	private final AtomicLongArray bytes = new AtomicLongArray(KINDS);
+	private final AtomicLongArray opened = new AtomicLongArray(KINDS);
+
+	/**
+	 * a tracker that also counts into {@link #GLOBAL}
+	 */
+	public NativeResources() {
+		this(GLOBAL);
+	}
+
+	private NativeResources(NativeResources parent) {
+		this.parent = parent;
+	}
+
+	void opened(Kind kind, long size) {
+		live.incrementAndGet(kind.ordinal());
+		bytes.addAndGet(kind.ordinal(), size);
+		opened.incrementAndGet(kind.ordinal());
+		if (parent != null) {
+			parent.opened(kind, size);
+		}
+	}
+
+	void closed(Kind kind, long size) {
+		live.decrementAndGet(kind.ordinal());
+		bytes.addAndGet(kind.ordinal(), -size);
+		if (parent != null) {
+			parent.closed(kind, size);
+		}
+	}
+
+	/**
+	 * @param tensor
+	 *            newly created or fetched from a run, owned by the handle from
+	 *            now on
+	 */
+	<T> TensorHandle<T> track(Tensor<T> tensor) {
+		return new TensorHandle<T>(this, tensor);
+	}
+
+	public Snapshot snapshot() {
+		final long[] counts = new long[KINDS * 3];
+		for (int i = 0; i < KINDS; i++) {
+			counts[i] = live.get(i);
+			counts[KINDS + i] = bytes.get(i);
+			counts[2 * KINDS + i] = opened.get(i);
+		}
+		return new Snapshot(counts);
+	}
+
+	/**
+	 * A tensor and the tracker counting it, closed once by try-with-resources
+	 * or whoever the tensor is handed to.
+	 */
+	static final class TensorHandle<T> implements AutoCloseable {
+		private final NativeResources owner;
+		private final Tensor<T> tensor;
+		private final long size;
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		private TensorHandle(NativeResources owner, Tensor<T> tensor) {
+			this.owner = owner;
+			this.tensor = tensor;
+			this.size = tensor.numBytes();
+			owner.opened(Kind.TENSOR, size);
+		}
+
+		Tensor<T> get() {
+			return tensor;
+		}
+
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				tensor.close();
+				owner.closed(Kind.TENSOR, size);
+			}
+		}
+	}
+
+	/**
+	 * Live objects and bytes per kind at one moment, with the number ever
+	 * opened.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+
+		private Snapshot(long[] counts) {
+			this.counts = counts;
+		}
+
+		public long getLive(Kind kind) {
+			return counts[kind.ordinal()];
+		}
+
+		public long getBytes(Kind kind) {
+			return counts[KINDS + kind.ordinal()];
+		}
+
+		public long getOpened(Kind kind) {
+			return counts[2 * KINDS + kind.ordinal()];
+		}
+
+		/**
+		 * @return true if no tensor, graph or session is open
+		 */
+		public boolean isEmpty() {
+			for (Kind kind : Kind.values()) {
+				if (getLive(kind) != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return live objects and bytes by counter name, to be published as
+		 *         gauges
+		 */
+		public Map<String, Long> toGauges() {
+			final Map<String, Long> gauges = new LinkedHashMap<String, Long>();
+			for (Kind kind : Kind.values()) {
+				final String name = kind.name().charAt(0) + kind.name().substring(1).toLowerCase(Locale.ROOT);
+				gauges.put("Native " + name + "s Live", getLive(kind));
+				gauges.put("Native " + name + " Bytes", getBytes(kind));
+			}
+			return gauges;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder builder = new StringBuilder();
+			for (Kind kind : Kind.values()) {
+				if (builder.length() > 0) {
+					builder.append(", ");
+				}
+				builder.append(getLive(kind)).append(' ').append(kind.name().toLowerCase(Locale.ROOT)).append("s (")
+						.append(getBytes(kind)).append(" bytes)");
+			}
+			return builder.toString();
+		}
+	}
+}
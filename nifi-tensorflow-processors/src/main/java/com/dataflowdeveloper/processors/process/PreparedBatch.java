@@ -0,0 +1,65 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A batch that has been looked up in the result cache and decoded, waiting for
+ * its model run. It holds a reference on the model and a pooled input buffer,
+ * so it must be passed to {@link TensorFlowService#runBatch(PreparedBatch)} or
+ * closed.
+ *
+ * @author tspann
+ *
+ */
+public final class PreparedBatch implements AutoCloseable {
+
+	final TensorFlowModel model;
+	final List<List<InceptionResult>> results;
+	final ResultCache.Key[] keys;
+	final int[] rows;
+	final int decoded;
+	// pooled, holds the decoded images in the model's input type
+	final ByteBuffer input;
+	private final DirectBufferPool pool;
+	final int topK;
+	final float minProbability;
+	final BatchTimings timings;
+	private boolean closed;
+
+	PreparedBatch(TensorFlowModel model, List<List<InceptionResult>> results, ResultCache.Key[] keys, int[] rows,
+			int decoded, ByteBuffer input, DirectBufferPool pool, int topK, float minProbability,
+			BatchTimings timings) {
+		this.model = model;
+		this.results = results;
+		this.keys = keys;
+		this.rows = rows;
+		this.decoded = decoded;
+		this.input = input;
+		this.pool = pool;
+		this.topK = topK;
+		this.minProbability = minProbability;
+		this.timings = timings;
+	}
+
+	/**
+	 * @return images to feed to the model
+	 */
+	public int getDecoded() {
+		return decoded;
+	}
+
+	/**
+	 * release the model and return the input buffer to its pool, once
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			model.release();
+			if (input != null) {
+				pool.release(input);
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Turns an encoded image into the model's [H, W, 3] input, normalized floats
+ * or, for quantized models, uint8 pixels.
+ *
+ * @author tspann
+ *
+ */
+public interface Preprocessor extends AutoCloseable {
+
+	/**
+	 * Available implementations.
+	 */
+	enum Engine {
+		/** TensorFlow DecodeJpeg and ResizeBilinear ops, JPEG only */
+		TENSORFLOW,
+		/** ImageIO decode with a bilinear resize in Java, JPEG, PNG and GIF */
+		JAVA;
+
+		/**
+		 * @param signature
+		 *            input size, normalization and channel order to produce
+		 * @param sessionConfig
+		 *            serialized ConfigProto for engines that run TensorFlow
+		 */
+		public Preprocessor create(ModelSignature signature, byte[] sessionConfig) {
+			return create(signature, sessionConfig, NativeResources.GLOBAL);
+		}
+
+		/**
+		 * @param resources
+		 *            counts the native objects of engines that run TensorFlow
+		 */
+		Preprocessor create(ModelSignature signature, byte[] sessionConfig, NativeResources resources) {
+			if (this == JAVA) {
+				return new JavaImagePreprocessor(signature.getHeight(), signature.getWidth(), signature.getMean(),
+						signature.getScale(), signature.getChannelOrder());
+			}
+			return new ImagePreprocessor(signature.getHeight(), signature.getWidth(), signature.getMean(),
+					signature.getScale(), signature.getChannelOrder(), sessionConfig, resources);
+		}
+	}
+
+	/**
+	 * decode, resize and normalize one image, writing H * W * 3 floats in the
+	 * configured channel order at the buffer's position. Nothing is written
+	 * when the image cannot be decoded.
+	 *
+	 * @param image
+	 *            encoded image
+	 * @param out
+	 *            batch input, advanced past the written floats
+	 * @throws IOException
+	 *             when the image cannot be decoded
+	 */
+	void normalize(ImageContent image, FloatBuffer out) throws IOException;
+
+	/**
+	 * decode and resize one image, writing H * W * 3 rounded uint8 channel
+	 * values in the configured channel order at the buffer's position, without
+	 * mean or scale. Nothing is written when the image cannot be decoded.
+	 *
+	 * @param image
+	 *            encoded image
+	 * @param out
+	 *            batch input, advanced past the written bytes
+	 * @throws IOException
+	 *             when the image cannot be decoded
+	 */
+	void pixels(ImageContent image, ByteBuffer out) throws IOException;
+
+	@Override
+	void close();
+}
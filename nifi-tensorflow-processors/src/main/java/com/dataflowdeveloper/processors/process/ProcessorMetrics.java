@@ -0,0 +1,117 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.processor.ProcessSession;
+
+/**
+ * Latency histograms for each stage of classifying a FlowFile and a histogram
+ * of model run batch sizes. Every observation is also added to the session's
+ * counters: the stage's total time in microseconds and one count in the
+ * latency bucket it fell in. Counter names are built once up front.
+ *
+ * @author tspann
+ *
+ */
+public class ProcessorMetrics {
+
+	public enum Stage {
+		CONTENT_READ("Content Read"), PREPROCESS("Preprocess"), INFERENCE("Inference"), POST_PROCESS(
+				"Post-Process"), ATTRIBUTE_WRITE("Attribute Write");
+
+		private final String displayName;
+
+		Stage(String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
+	/** 1, 2, 5 steps from 100 us to 10 s */
+	private static final long[] LATENCY_BOUNDS_MICROS = { 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000,
+			100000, 200000, 500000, 1000000, 2000000, 5000000, 10000000 };
+
+	private static final long[] BATCH_SIZE_BOUNDS = { 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024 };
+
+	private final Map<Stage, Histogram> latencies = new EnumMap<Stage, Histogram>(Stage.class);
+	private final Map<Stage, String[]> latencyCounters = new EnumMap<Stage, String[]>(Stage.class);
+	private final Map<Stage, String> timeCounters = new EnumMap<Stage, String>(Stage.class);
+	private final Histogram batchSizes = new Histogram(BATCH_SIZE_BOUNDS);
+	private final String[] batchSizeCounters = new String[BATCH_SIZE_BOUNDS.length + 1];
+
+	public ProcessorMetrics() {
+		long[] boundsNanos = new long[LATENCY_BOUNDS_MICROS.length];
+		for (int i = 0; i < boundsNanos.length; i++) {
+			boundsNanos[i] = TimeUnit.MICROSECONDS.toNanos(LATENCY_BOUNDS_MICROS[i]);
+		}
+		for (Stage stage : Stage.values()) {
+			latencies.put(stage, new Histogram(boundsNanos));
+			timeCounters.put(stage, stage.getDisplayName() + " Time (us)");
+			String[] names = new String[LATENCY_BOUNDS_MICROS.length + 1];
+			for (int i = 0; i < LATENCY_BOUNDS_MICROS.length; i++) {
+				names[i] = stage.getDisplayName() + " Latency <= " + formatMicros(LATENCY_BOUNDS_MICROS[i]);
+			}
+			names[LATENCY_BOUNDS_MICROS.length] = stage.getDisplayName() + " Latency > "
+					+ formatMicros(LATENCY_BOUNDS_MICROS[LATENCY_BOUNDS_MICROS.length - 1]);
+			latencyCounters.put(stage, names);
+		}
+		long lower = 1;
+		for (int i = 0; i < BATCH_SIZE_BOUNDS.length; i++) {
+			long upper = BATCH_SIZE_BOUNDS[i];
+			batchSizeCounters[i] = "Batch Size " + (lower == upper ? String.valueOf(upper) : lower + "-" + upper);
+			lower = upper + 1;
+		}
+		batchSizeCounters[BATCH_SIZE_BOUNDS.length] = "Batch Size > "
+				+ BATCH_SIZE_BOUNDS[BATCH_SIZE_BOUNDS.length - 1];
+	}
+
+	private static String formatMicros(long micros) {
+		if (micros >= 1000000) {
+			return micros / 1000000 + " s";
+		}
+		if (micros >= 1000) {
+			return micros / 1000 + " ms";
+		}
+		return micros + " us";
+	}
+
+	/**
+	 * @param stage
+	 * @param nanos
+	 *            time the stage took
+	 * @param session
+	 *            session whose counters are updated
+	 */
+	public void record(Stage stage, long nanos, ProcessSession session) {
+		final int bucket = latencies.get(stage).record(nanos);
+		session.adjustCounter(timeCounters.get(stage), TimeUnit.NANOSECONDS.toMicros(nanos), false);
+		session.adjustCounter(latencyCounters.get(stage)[bucket], 1, false);
+	}
+
+	/**
+	 * @param size
+	 *            images in one model run
+	 * @param session
+	 *            session whose counters are updated
+	 */
+	public void recordBatchSize(int size, ProcessSession session) {
+		session.adjustCounter(batchSizeCounters[batchSizes.record(size)], 1, false);
+	}
+
+	/**
+	 * @param stage
+	 * @return latencies in nanoseconds
+	 */
+	public Histogram getLatencies(Stage stage) {
+		return latencies.get(stage);
+	}
+
+	public Histogram getBatchSizes() {
+		return batchSizes;
+	}
+}
@@ -0,0 +1,200 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of classification results keyed by a hash of the encoded
+ * image and the model that classified it, so feeds that resend the same bytes
+ * skip decoding and inference. Entries expire after a time to live and beyond
+ * the maximum size the least recently used (LRU) or oldest (FIFO) entry is
+ * dropped.
+ *
+ * @author tspann
+ *
+ */
+public class ResultCache {
+
+	public enum EvictionPolicy {
+		LRU, FIFO
+	}
+
+	/** longest time between two scans of {@link #expire()} */
+	static final long EXPIRE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final long ttlNanos;
+	// least time between two scans, the time to live when that is shorter
+	private final long expireIntervalNanos;
+	private final LinkedHashMap<Key, Entry> entries;
+	private long lastExpired;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            most results kept
+	 * @param ttlMillis
+	 *            how long a result is reused
+	 * @param policy
+	 *            which entry goes first when full
+	 */
+	public ResultCache(final int maxEntries, long ttlMillis, EvictionPolicy policy) {
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.expireIntervalNanos = Math.min(ttlNanos, EXPIRE_INTERVAL_NANOS);
+		this.lastExpired = System.nanoTime() - expireIntervalNanos;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, policy == EvictionPolicy.LRU) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @param model
+	 *            model the results come from, a reloaded model does not share
+	 *            results with its previous version
+	 * @param image
+	 *            encoded image bytes
+	 * @param topK
+	 * @param minProbability
+	 * @return key for the results of classifying the image
+	 */
+	public static Key key(TensorFlowModel model, ByteBuffer image, int topK, float minProbability) {
+		return new Key(model.getGeneration(), ContentHash.of(image), topK, minProbability);
+	}
+
+	/**
+	 * @param model
+	 *            model the results come from
+	 * @param content
+	 *            hash of the encoded image, computed once for every model
+	 *            classifying it
+	 * @param topK
+	 * @param minProbability
+	 * @return key for the results of classifying the image
+	 */
+	public static Key key(TensorFlowModel model, ContentHash content, int topK, float minProbability) {
+		return new Key(model.getGeneration(), content, topK, minProbability);
+	}
+
+	/**
+	 * @param key
+	 * @return cached results, shared and not to be modified, or null
+	 */
+	public List<InceptionResult> get(Key key) {
+		final long now = System.nanoTime();
+		synchronized (this) {
+			final Entry entry = entries.get(key);
+			if (entry != null) {
+				if (now - entry.createdAt < ttlNanos) {
+					hits.incrementAndGet();
+					return entry.results;
+				}
+				entries.remove(key);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(Key key, List<InceptionResult> results) {
+		final Entry entry = new Entry(results, System.nanoTime());
+		synchronized (this) {
+			entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * drop expired entries, they are otherwise only dropped when looked up or
+	 * pushed out by newer ones. Cheap enough to call on every trigger, the
+	 * entries are scanned at most once per time to live or
+	 * {@link #EXPIRE_INTERVAL_NANOS}, whichever is shorter.
+	 */
+	public void expire() {
+		final long now = System.nanoTime();
+		synchronized (this) {
+			if (now - lastExpired < expireIntervalNanos) {
+				return;
+			}
+			lastExpired = now;
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (iterator.hasNext()) {
+				if (now - iterator.next().createdAt >= ttlNanos) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private static final class Entry {
+		final List<InceptionResult> results;
+		final long createdAt;
+
+		Entry(List<InceptionResult> results, long createdAt) {
+			this.results = results;
+			this.createdAt = createdAt;
+		}
+	}
+
+	/**
+	 * Identity of one classification: image content, model version and the
+	 * result options.
+	 */
+	public static final class Key {
+		private final long modelGeneration;
+		private final ContentHash content;
+		private final int topK;
+		private final int minProbabilityBits;
+
+		Key(long modelGeneration, ContentHash content, int topK, float minProbability) {
+			this.modelGeneration = modelGeneration;
+			this.content = content;
+			this.topK = topK;
+			this.minProbabilityBits = Float.floatToIntBits(minProbability);
+		}
+
+		@Override
+		public int hashCode() {
+			return content.hashCode() * 31 + (int) modelGeneration;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return modelGeneration == other.modelGeneration && topK == other.topK
+					&& minProbabilityBits == other.minProbabilityBits && content.equals(other.content);
+		}
+
+		@Override
+		public String toString() {
+			return "Key [model=" + modelGeneration + ", content=" + content + ", topK=" + topK + "]";
+		}
+	}
+}
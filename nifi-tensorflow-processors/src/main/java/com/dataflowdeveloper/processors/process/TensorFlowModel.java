@@ -0,0 +1,260 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.tensorflow.DataType;
+import org.tensorflow.Graph;
+import org.tensorflow.Operation;
+import org.tensorflow.SavedModelBundle;
+import org.tensorflow.Session;
+
+/**
+ * A loaded model: the imported graph or SavedModel bundle, a long-lived session
+ * over it, the labels for its output classes and the signature it is fed
+ * with. The input and output types are read from the graph, float or, for a
+ * quantized model, uint8. Instances are shared across FlowFiles and
+ * closed by the owning {@link ModelCache}. TensorFlow sessions accept
+ * concurrent runs, so one session serves every onTrigger thread.
+ * <p>
+ * Callers {@link #acquire()} the model for the length of a run and
+ * {@link #release()} it afterwards; the native graph and session are only
+ * freed once the cache has closed the model and no run still holds it.
+ *
+ * @author tspann
+ *
+ */
+public class TensorFlowModel implements AutoCloseable {
+
+	private static final AtomicLong GENERATIONS = new AtomicLong();
+
+	private final Path directory;
+	private final Graph graph;
+	private final Session session;
+	private final SavedModelBundle bundle;
+	private final List<String> labels;
+	private final ModelSignature signature;
+	private final DataType inputType;
+	private final DataType outputType;
+	private final long sizeInBytes;
+	private final NativeResources resources;
+	private final long generation = GENERATIONS.incrementAndGet();
+	// one reference belongs to the cache until close()
+	private final AtomicInteger references = new AtomicInteger(1);
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * a model fed like Inception5h
+	 */
+	TensorFlowModel(Path directory, byte[] graphDef, List<String> labels, byte[] sessionConfig) {
+		this(directory, graphDef, labels, sessionConfig, ModelSignature.DEFAULT);
+	}
+
+	/**
+	 * the serialized graph is only needed for the import and is not kept, so
+	 * once constructed a model's heap footprint is its labels
+	 */
+	TensorFlowModel(Path directory, byte[] graphDef, List<String> labels, byte[] sessionConfig,
+			ModelSignature signature) {
+		this(directory, graphDef, labels, sessionConfig, signature, NativeResources.GLOBAL);
+	}
+
+	/**
+	 * @param resources
+	 *            counts the graph and session until they are freed
+	 */
+	TensorFlowModel(Path directory, byte[] graphDef, List<String> labels, byte[] sessionConfig,
+			ModelSignature signature, NativeResources resources) {
+		this.directory = directory;
+		this.sizeInBytes = graphDef.length;
+		this.labels = labels;
+		this.signature = signature;
+		this.resources = resources;
+		this.bundle = null;
+		this.graph = new Graph();
+		try {
+			graph.importGraphDef(graphDef);
+			this.inputType = tensorType(signature.getInputName());
+			this.outputType = tensorType(signature.getOutputName());
+			this.session = new Session(graph, sessionConfig);
+		} catch (ModelLoadException e) {
+			graph.close();
+			throw e;
+		} catch (RuntimeException e) {
+			graph.close();
+			throw new ModelLoadException(directory + " graph could not be imported: " + e.getMessage(), e);
+		}
+		resources.opened(NativeResources.Kind.GRAPH, sizeInBytes);
+		resources.opened(NativeResources.Kind.SESSION, 0);
+	}
+
+	/**
+	 * @param bundle
+	 *            loaded SavedModel, owned by this model from now on
+	 * @param sizeInBytes
+	 *            size of the bundle's files
+	 * @param resources
+	 *            counts the bundle's graph and session until they are freed
+	 */
+	TensorFlowModel(Path directory, SavedModelBundle bundle, List<String> labels, long sizeInBytes,
+			ModelSignature signature, NativeResources resources) {
+		this.directory = directory;
+		this.sizeInBytes = sizeInBytes;
+		this.labels = labels;
+		this.signature = signature;
+		this.resources = resources;
+		this.bundle = bundle;
+		this.graph = bundle.graph();
+		this.session = bundle.session();
+		try {
+			this.inputType = tensorType(signature.getInputName());
+			this.outputType = tensorType(signature.getOutputName());
+		} catch (ModelLoadException e) {
+			bundle.close();
+			throw e;
+		}
+		resources.opened(NativeResources.Kind.GRAPH, sizeInBytes);
+		resources.opened(NativeResources.Kind.SESSION, 0);
+	}
+
+	/**
+	 * @param tensor
+	 *            named either by its operation or operation:index
+	 * @return the tensor's type, float or uint8
+	 * @throws ModelLoadException
+	 *             when the graph has no such tensor or it has another type
+	 */
+	DataType tensorType(String tensor) {
+		final int colon = tensor.lastIndexOf(':');
+		final String name = colon < 0 ? tensor : tensor.substring(0, colon);
+		final Operation operation = graph.operation(name);
+		if (operation == null) {
+			throw new ModelLoadException(directory + " graph has no '" + name + "' operation");
+		}
+		final int index;
+		try {
+			index = colon < 0 ? 0 : Integer.parseInt(tensor.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			throw new ModelLoadException(directory + " tensor '" + tensor + "' has a bad output index", e);
+		}
+		if (index < 0 || index >= operation.numOutputs()) {
+			throw new ModelLoadException(directory + " operation '" + name + "' has no output " + index);
+		}
+		final DataType type = operation.output(index).dataType();
+		if (type != DataType.FLOAT && type != DataType.UINT8) {
+			throw new ModelLoadException(
+					directory + " tensor '" + tensor + "' is " + type + ", only FLOAT and UINT8 are supported");
+		}
+		return type;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public Graph getGraph() {
+		return graph;
+	}
+
+	public Session getSession() {
+		return session;
+	}
+
+	public List<String> getLabels() {
+		return labels;
+	}
+
+	public ModelSignature getSignature() {
+		return signature;
+	}
+
+	/**
+	 * @return FLOAT for normalized images, UINT8 for pixels
+	 */
+	public DataType getInputType() {
+		return inputType;
+	}
+
+	/**
+	 * @return FLOAT for probabilities, UINT8 for quantized probabilities
+	 */
+	public DataType getOutputType() {
+		return outputType;
+	}
+
+	/**
+	 * @return bytes of input per image
+	 */
+	public int getImageBytes() {
+		return signature.getImageFloats() * (inputType == DataType.UINT8 ? 1 : 4);
+	}
+
+	/**
+	 * @return size of the serialized graph, the closest measure available of
+	 *         the native memory it holds
+	 */
+	public long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	/**
+	 * @return unique per loaded instance, a reloaded model gets a new one
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return false if the model has already been freed and must be looked up
+	 *         again
+	 */
+	boolean acquire() {
+		for (;;) {
+			int count = references.get();
+			if (count == 0) {
+				return false;
+			}
+			if (references.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void release() {
+		if (references.decrementAndGet() == 0) {
+			if (bundle != null) {
+				bundle.close();
+			} else {
+				session.close();
+				graph.close();
+			}
+			resources.closed(NativeResources.Kind.SESSION, 0);
+			resources.closed(NativeResources.Kind.GRAPH, sizeInBytes);
+		}
+	}
+
+	/**
+	 * drop the cache's reference, the model is freed once the last run releases
+	 * it
+	 */
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			release();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("TensorFlowModel [directory=");
+		builder.append(directory);
+		builder.append(", labels=");
+		builder.append(labels == null ? 0 : labels.size());
+		builder.append("]");
+		return builder.toString();
+	}
+}
@@ -18,18 +18,35 @@ package com.dataflowdeveloper.processors.process;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 // see:   https://raw.githubusercontent.com/tensorflow/tensorflow/r1.2/tensorflow/java/src/main/java/org/tensorflow/examples/LabelImage.java
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.behavior.EventDriven;
 import org.apache.nifi.annotation.behavior.SideEffectFree;
 import org.apache.nifi.annotation.behavior.SupportsBatching;
@@ -39,30 +56,59 @@ import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.context.PropertyContext;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 
+import com.dataflowdeveloper.processors.process.ProcessorMetrics.Stage;
+
 @EventDriven
 @SupportsBatching
 @SideEffectFree
 @Tags({ "tensorflow", "computer vision", "image" })
 @CapabilityDescription("Run TensorFlow Image Recognition")
 @SeeAlso({})
-@WritesAttributes({ @WritesAttribute(attribute = "probilities", description = "The probabilites and labels") })
+@DynamicProperty(name = "Attribute namespace", value = "Model directory", supportsExpressionLanguage = true,
+		description = "Also runs the model in the directory on every image, writing its labels and probabilities as "
+				+ "<namespace>.label_N and <namespace>.probability_N. Each image is read and decoded once for all "
+				+ "models fed the same input, and those models run in parallel.")
+@WritesAttributes({ @WritesAttribute(attribute = "probilities", description = "The probabilites and labels"),
+		@WritesAttribute(attribute = "<namespace>.label_N, <namespace>.probability_N", description = "The labels "
+				+ "and probabilities of the model named by each dynamic property"),
+		@WritesAttribute(attribute = "tile.N.label_M, tile.N.probability_M", description = "The labels and "
+				+ "probabilities of each tile, when Tiles and Write Tile Attributes are set"),
+		@WritesAttribute(attribute = "tf.frames, tf.frames.classified, tf.frame.change", description = "Frames "
+				+ "decoded, frames that ran the model and the last frame's change from its stream's last classified "
+				+ "frame, when Sequence Key Attribute is set"),
+		@WritesAttribute(attribute = "tf.embedding.tensors, tf.embedding.format", description = "The tensors and "
+				+ "element type held by an embedding FlowFile, when Embedding Tensors is set"),
+		@WritesAttribute(attribute = "tf.time.*", description = "Microseconds spent reading, preprocessing, "
+				+ "in inference and post-processing, when Write Timing Attributes is set"),
+		@WritesAttribute(attribute = "tf.cache.hit", description = "true if the results were reused from the result "
+				+ "cache, when Result Cache Size is above 0"),
+		@WritesAttribute(attribute = "tf.batch.size", description = "Images in the model run, when Write Timing "
+				+ "Attributes is set") })
 /**
  * 
  * @author tspann
  *
  */
-public class TensorFlowProcessor extends AbstractProcessor {
+public class TensorFlowProcessor extends AbstractSessionFactoryProcessor {
 
 	public static final String ATTRIBUTE_OUTPUT_NAME = "tf.probabilities";
 	public static final String MODEL_DIR_NAME = "modeldir";
@@ -72,21 +118,370 @@ public class TensorFlowProcessor extends AbstractProcessor {
 			.description("Model Directory").required(true).expressionLanguageSupported(true)
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
 
+	public static final PropertyDescriptor GRAPH_FILE = new PropertyDescriptor.Builder()
+			.name("Graph File")
+			.description("Frozen GraphDef inside the model directory. A directory holding a "
+					+ ModelSignature.SAVED_MODEL_FILE + " is loaded as a SavedModel instead. Any of the model "
+					+ "properties can be overridden per model by a " + ModelSignature.DESCRIPTOR_FILE
+					+ " in the model directory.")
+			.required(true).defaultValue(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor LABEL_FILE = new PropertyDescriptor.Builder()
+			.name("Label File")
+			.description("File inside the model directory with one label per line, in output order")
+			.required(true).defaultValue(TensorFlowService.IMAGENET_COMP_GRAPH_LABEL_STRINGS_TXT)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor INPUT_TENSOR = new PropertyDescriptor.Builder()
+			.name("Input Tensor")
+			.description("Tensor fed the [batch, height, width, 3] float or uint8 images, an operation name or "
+					+ "name:index")
+			.required(true).defaultValue(TensorFlowService.INPUT_OPERATION)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor OUTPUT_TENSOR = new PropertyDescriptor.Builder()
+			.name("Output Tensor")
+			.description("Tensor holding the [batch, classes] probabilities, an operation name or name:index")
+			.required(true).defaultValue(TensorFlowService.OUTPUT_OPERATION)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor INPUT_SIZE = new PropertyDescriptor.Builder()
+			.name("Input Size")
+			.description("Width and height images are resized to, as WIDTHxHEIGHT")
+			.required(true).defaultValue(TensorFlowService.INPUT_WIDTH + "x" + TensorFlowService.INPUT_HEIGHT)
+			.addValidator(StandardValidators.createRegexMatchingValidator(Pattern.compile("[1-9]\\d*x[1-9]\\d*")))
+			.build();
+
+	public static final PropertyDescriptor INPUT_MEAN = new PropertyDescriptor.Builder()
+			.name("Input Mean")
+			.description("Subtracted from every channel value (0 to 255) before it is divided by Input Scale")
+			.required(true).defaultValue("117").addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	public static final PropertyDescriptor INPUT_SCALE = new PropertyDescriptor.Builder()
+			.name("Input Scale")
+			.description("Channel values are divided by this after Input Mean is subtracted, for example 127.5 "
+					+ "with a mean of 127.5 gives the -1 to 1 range MobileNet expects")
+			.required(true).defaultValue("1").addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	public static final PropertyDescriptor CHANNEL_ORDER = new PropertyDescriptor.Builder()
+			.name("Channel Order")
+			.description("Order of the colour channels the model expects")
+			.required(true)
+			.allowableValues(ModelSignature.ChannelOrder.RGB.name(), ModelSignature.ChannelOrder.BGR.name())
+			.defaultValue(ModelSignature.ChannelOrder.RGB.name()).build();
+
+	public static final PropertyDescriptor OUTPUT_SCALE = new PropertyDescriptor.Builder()
+			.name("Output Scale")
+			.description("For a quantized model whose output tensor is uint8, the probability step of one output "
+					+ "value: a value q becomes the probability (q - Output Zero Point) * Output Scale. Whether the "
+					+ "input and output are uint8 is read from the graph, a uint8 input is fed the resized pixels "
+					+ "without Input Mean and Input Scale.")
+			.required(true).defaultValue(String.valueOf(ModelSignature.DEFAULT_OUTPUT_SCALE))
+			.addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	public static final PropertyDescriptor OUTPUT_ZERO_POINT = new PropertyDescriptor.Builder()
+			.name("Output Zero Point")
+			.description("For a quantized model whose output tensor is uint8, the output value that stands for "
+					+ "probability 0")
+			.required(true).defaultValue(String.valueOf(ModelSignature.DEFAULT_OUTPUT_ZERO_POINT))
+			.addValidator(StandardValidators.createLongValidator(0, 255, true)).build();
+
+	public static final PropertyDescriptor SAVED_MODEL_TAGS = new PropertyDescriptor.Builder()
+			.name("SavedModel Tags")
+			.description("Comma separated tags of the meta graph to load from a SavedModel directory")
+			.required(true).defaultValue(ModelSignature.DEFAULT_TAG)
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder().name("Batch Size")
+			.description("Maximum number of FlowFiles classified together in a single model run")
+			.required(true).defaultValue("1").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor INTRA_OP_THREADS = new PropertyDescriptor.Builder()
+			.name("Intra-Op Threads")
+			.description("Threads TensorFlow uses inside a single operation, 0 lets TensorFlow use every core. "
+					+ "Set to 1 when raising Concurrent Tasks so tasks do not compete for the same cores.")
+			.required(true).defaultValue("0").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor INTER_OP_THREADS = new PropertyDescriptor.Builder()
+			.name("Inter-Op Threads")
+			.description("Threads TensorFlow uses to run independent operations, 0 lets TensorFlow decide")
+			.required(true).defaultValue("0").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor TOP_K = new PropertyDescriptor.Builder().name("Top K")
+			.description("Number of most probable labels written as label_N and probability_N attributes")
+			.required(true).defaultValue(String.valueOf(TensorFlowService.DEFAULT_TOP_K))
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor MIN_PROBABILITY = new PropertyDescriptor.Builder()
+			.name("Minimum Probability")
+			.description("Labels with a probability below this percentage are not written, "
+					+ "a FlowFile with no label above it is still routed to success")
+			.required(true).defaultValue("0").addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	public static final PropertyDescriptor MAX_CACHED_MODELS = new PropertyDescriptor.Builder()
+			.name("Max Cached Models")
+			.description("Most models kept loaded at once, the least recently used model is closed beyond this")
+			.required(true).defaultValue(String.valueOf(TensorFlowService.DEFAULT_MAX_MODELS))
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor MAX_CACHED_MODEL_SIZE = new PropertyDescriptor.Builder()
+			.name("Max Cached Model Size")
+			.description("Most graph bytes kept loaded at once, the least recently used model is closed beyond this")
+			.required(true).defaultValue("1 GB").addValidator(StandardValidators.DATA_SIZE_VALIDATOR).build();
+
+	public static final PropertyDescriptor MODEL_RELOAD_INTERVAL = new PropertyDescriptor.Builder()
+			.name("Model Reload Check Interval")
+			.description("How often a loaded model's graph file is checked, a model whose file changed is reloaded")
+			.required(true).defaultValue("10 sec").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor MAX_CONTENT_SIZE = new PropertyDescriptor.Builder()
+			.name("Max Content Size")
+			.description("FlowFiles larger than this are routed to failure without reading their content")
+			.required(true).defaultValue("50 MB")
+			.addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE - 16)).build();
+
+	public static final PropertyDescriptor RESULT_CACHE_SIZE = new PropertyDescriptor.Builder()
+			.name("Result Cache Size")
+			.description("Number of results kept for images seen before, keyed by a hash of the image bytes and the "
+					+ "model, so a resent image skips decoding and inference. 0 disables the cache.")
+			.required(true).defaultValue("0").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor RESULT_CACHE_TTL = new PropertyDescriptor.Builder()
+			.name("Result Cache TTL")
+			.description("How long a cached result is reused")
+			.required(true).defaultValue("10 min").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor RESULT_CACHE_EVICTION = new PropertyDescriptor.Builder()
+			.name("Result Cache Eviction Policy")
+			.description("Which result is dropped when the cache is full: the least recently used (LRU) "
+					+ "or the oldest (FIFO)")
+			.required(true)
+			.allowableValues(ResultCache.EvictionPolicy.LRU.name(), ResultCache.EvictionPolicy.FIFO.name())
+			.defaultValue(ResultCache.EvictionPolicy.LRU.name()).build();
+
+	public static final PropertyDescriptor PREPROCESSING_ENGINE = new PropertyDescriptor.Builder()
+			.name("Preprocessing Engine")
+			.description("How images are decoded and resized to the model input: with TensorFlow ops (TENSORFLOW, "
+					+ "JPEG only) or with ImageIO and a bilinear resize in Java (JAVA, JPEG, PNG and GIF), which "
+					+ "subsamples large images while decoding them")
+			.required(true)
+			.allowableValues(Preprocessor.Engine.TENSORFLOW.name(), Preprocessor.Engine.JAVA.name())
+			.defaultValue(Preprocessor.Engine.TENSORFLOW.name()).build();
+
+	public static final PropertyDescriptor TIMING_ATTRIBUTES = new PropertyDescriptor.Builder()
+			.name("Write Timing Attributes")
+			.description("Write the microseconds each stage took as tf.time.* attributes. Stage timings are always "
+					+ "published as counters, batch stages report the time of the whole batch.")
+			.required(true).allowableValues("true", "false").defaultValue("false")
+			.addValidator(StandardValidators.BOOLEAN_VALIDATOR).build();
+
+	public static final String ATTRIBUTE_TIME_READ = "tf.time.read";
+	public static final String ATTRIBUTE_TIME_PREPROCESS = "tf.time.preprocess";
+	public static final String ATTRIBUTE_TIME_INFERENCE = "tf.time.inference";
+	public static final String ATTRIBUTE_TIME_POST_PROCESS = "tf.time.postprocess";
+	public static final String ATTRIBUTE_BATCH_SIZE = "tf.batch.size";
+	public static final String ATTRIBUTE_CACHE_HIT = "tf.cache.hit";
+
+	public static final PropertyDescriptor PIPELINE_DEPTH = new PropertyDescriptor.Builder()
+			.name("Pipeline Depth")
+			.description("Batches each task keeps in flight so that reading content, decoding images and running "
+					+ "the model overlap, each batch committed in its own session. 0 runs every batch start to "
+					+ "finish before taking the next.")
+			.required(true).defaultValue("0").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor DYNAMIC_BATCH_WAIT = new PropertyDescriptor.Builder()
+			.name("Dynamic Batch Wait")
+			.description("Longest an image waits for images from other concurrent tasks before its model run "
+					+ "starts. Images from every task are gathered into shared runs of up to Dynamic Batch Size. "
+					+ "0 ms runs every task's batch on its own. Cannot be combined with Pipeline Depth.")
+			.required(true).defaultValue("0 ms").addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).build();
+
+	public static final PropertyDescriptor DYNAMIC_BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("Dynamic Batch Size")
+			.description("Most images in a shared model run, a run starts as soon as this many are waiting")
+			.required(true).defaultValue("32").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor TILES = new PropertyDescriptor.Builder()
+			.name("Tiles")
+			.description("Classify crops of each image instead of the whole frame, as comma separated COLUMNSxROWS "
+					+ "grids: 2x2 for four quadrants, 1x1,3x3 for the whole image and nine tiles. Each image is "
+					+ "decoded once and every tile of the batch runs in one model run, split by image beyond 1 GB of "
+					+ "input, then the label probabilities "
+					+ "are pooled across the tiles. Unset classifies the whole frame. Cannot be combined with "
+					+ "additional models, Pipeline Depth or Dynamic Batch Wait.")
+			.required(false).addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor TILE_OVERLAP = new PropertyDescriptor.Builder()
+			.name("Tile Overlap")
+			.description("Percentage of each tile shared with its neighbours, so objects on a tile border are "
+					+ "seen whole by one tile")
+			.required(true).defaultValue("0").addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	public static final PropertyDescriptor TILE_POOLING = new PropertyDescriptor.Builder()
+			.name("Tile Pooling")
+			.description("How the tiles' probabilities are merged per label: the highest of any tile (MAX) finds "
+					+ "objects seen by a single tile, the average (MEAN) favours what fills the image")
+			.required(true).allowableValues(Tiling.Pooling.MAX.name(), Tiling.Pooling.MEAN.name())
+			.defaultValue(Tiling.Pooling.MAX.name()).build();
+
+	public static final PropertyDescriptor TILE_ATTRIBUTES = new PropertyDescriptor.Builder()
+			.name("Write Tile Attributes")
+			.description("Also write each tile's labels and probabilities as tile.N.label_M and "
+					+ "tile.N.probability_M, tiles numbered from 1 in the order of the grids, row by row")
+			.required(true).allowableValues("true", "false").defaultValue("false")
+			.addValidator(StandardValidators.BOOLEAN_VALIDATOR).build();
+
+	public static final PropertyDescriptor SEQUENCE_KEY = new PropertyDescriptor.Builder()
+			.name("Sequence Key Attribute")
+			.description("Treat FlowFiles as frames of camera streams keyed by this attribute, and the frames of "
+					+ "an animated GIF as a stream of their own. A frame runs the model only when it differs from "
+					+ "the stream's last classified frame by Sequence Change Threshold or the stream has reused "
+					+ "results for Sequence Max Skip frames, otherwise it takes the last classified frame's results. "
+					+ "Frames are decoded with ImageIO. Unset classifies every FlowFile on its own. Cannot be "
+					+ "combined with additional models, Tiles, Pipeline Depth or Dynamic Batch Wait.")
+			.required(false).addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor SEQUENCE_CHANGE_THRESHOLD = new PropertyDescriptor.Builder()
+			.name("Sequence Change Threshold")
+			.description("Mean grey level difference, as a percentage, between a frame and its stream's last "
+					+ "classified frame at which the frame is classified again")
+			.required(true).defaultValue("5").addValidator(StandardValidators.NUMBER_VALIDATOR).build();
+
+	public static final PropertyDescriptor SEQUENCE_MAX_SKIP = new PropertyDescriptor.Builder()
+			.name("Sequence Max Skip")
+			.description("Most frames in a row that reuse their stream's results before one is classified however "
+					+ "little it changed, 0 classifies every frame")
+			.required(true).defaultValue("10").addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+			.build();
+
+	public static final PropertyDescriptor EMBEDDING_TENSORS = new PropertyDescriptor.Builder()
+			.name("Embedding Tensors")
+			.description("Comma separated float tensors to fetch in the same model run as the probabilities, "
+					+ "such as the layer before the softmax, each an operation name or name:index with a row per "
+					+ "image. Every classified FlowFile gets a child on the embedding relationship holding its "
+					+ "rows as binary content. Unset fetches only the probabilities. Cannot be combined with "
+					+ "additional models, Tiles, Sequence Key Attribute, Pipeline Depth or Dynamic Batch Wait.")
+			.required(false).addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor EMBEDDING_FORMAT = new PropertyDescriptor.Builder()
+			.name("Embedding Format")
+			.description("Element type of the embedding content, little-endian: FLOAT32 as the model produced it "
+					+ "or FLOAT16 at half the size. The content starts with a header naming each tensor and the "
+					+ "dimensions of its row.")
+			.required(true).allowableValues(Embeddings.Format.FLOAT32.name(), Embeddings.Format.FLOAT16.name())
+			.defaultValue(Embeddings.Format.FLOAT32.name()).build();
+
+	public static final String ATTRIBUTE_EMBEDDING_TENSORS = "tf.embedding.tensors";
+	public static final String ATTRIBUTE_EMBEDDING_FORMAT = "tf.embedding.format";
+
+	public static final String ATTRIBUTE_FRAMES = "tf.frames";
+	public static final String ATTRIBUTE_FRAMES_CLASSIFIED = "tf.frames.classified";
+	public static final String ATTRIBUTE_FRAME_CHANGE = "tf.frame.change";
+
 	public static final Relationship REL_SUCCESS = new Relationship.Builder().name("success")
 			.description("Successfully determined image.").build();
 	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
 			.description("Failed to determine image.").build();
+	public static final Relationship REL_EMBEDDING = new Relationship.Builder().name("embedding")
+			.description("The embeddings of each classified image, when Embedding Tensors is set").build();
 
 	private List<PropertyDescriptor> descriptors;
 
-	private Set<Relationship> relationships;
+	private volatile Set<Relationship> relationships;
+
+	private volatile TensorFlowService service;
+
+	// attribute names per model, Model Directory's first, then by namespace as extraModels
+	private volatile List<AttributeKeys> attributeKeys = Collections.emptyList();
+
+	// gathers every task's images into shared runs, null unless Dynamic Batch Wait is set
+	private volatile DynamicBatcher batcher;
+
+	// crops classified per image, null unless Tiles is set
+	private volatile Tiling tiling;
+
+	// attribute names per tile when Write Tile Attributes is set, else empty
+	private volatile List<AttributeKeys> tileKeys = Collections.emptyList();
+
+	// last classified frame of every stream, null unless Sequence Key Attribute is set
+	private volatile FrameSampler sampler;
+
+	// tensors written to the embedding relationship, null unless Embedding Tensors is set
+	private volatile List<String> embeddingTensors;
+
+	private volatile Embeddings.Format embeddingFormat;
+
+	// dynamic properties naming the models that run next to Model Directory, by namespace
+	private volatile List<PropertyDescriptor> extraModels = Collections.emptyList();
+
+	// idle direct buffers kept for reading content, sized from the FlowFiles seen so far
+	private final DirectBufferPool bufferPool = new DirectBufferPool(64L * 1024 * 1024);
+
+	private final AtomicReference<ModelCache.Stats> publishedStats = new AtomicReference<ModelCache.Stats>();
+
+	// native gauge values last added to the counters, kept across restarts so the counters follow the new service
+	private final AtomicReference<Map<String, Long>> publishedGauges = new AtomicReference<Map<String, Long>>(
+			Collections.<String, Long>emptyMap());
+
+	private final ProcessorMetrics metrics = new ProcessorMetrics();
+
+	// longest a pipelined onTrigger keeps taking new batches
+	private static final long PIPELINE_RUN_NANOS = TimeUnit.SECONDS.toNanos(1);
 
-	private TensorFlowService service;
+	// cache hit, timing and frame attributes written next to the results
+	private static final int ATTRIBUTES_PER_FLOWFILE = 9;
+
+	// frames decoded from one animated FlowFile at most
+	private static final int MAX_FRAMES = 256;
+
+	// streams whose last classified frame is remembered at most
+	private static final int MAX_STREAMS = 10000;
+
+	private volatile ExecutorService decodeExecutor;
+	private volatile ExecutorService inferenceExecutor;
 
 	@Override
 	protected void init(final ProcessorInitializationContext context) {
 		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
 		descriptors.add(MODEL_DIR);
+		descriptors.add(GRAPH_FILE);
+		descriptors.add(LABEL_FILE);
+		descriptors.add(INPUT_TENSOR);
+		descriptors.add(OUTPUT_TENSOR);
+		descriptors.add(INPUT_SIZE);
+		descriptors.add(INPUT_MEAN);
+		descriptors.add(INPUT_SCALE);
+		descriptors.add(CHANNEL_ORDER);
+		descriptors.add(OUTPUT_SCALE);
+		descriptors.add(OUTPUT_ZERO_POINT);
+		descriptors.add(SAVED_MODEL_TAGS);
+		descriptors.add(BATCH_SIZE);
+		descriptors.add(PIPELINE_DEPTH);
+		descriptors.add(DYNAMIC_BATCH_WAIT);
+		descriptors.add(DYNAMIC_BATCH_SIZE);
+		descriptors.add(TILES);
+		descriptors.add(TILE_OVERLAP);
+		descriptors.add(TILE_POOLING);
+		descriptors.add(TILE_ATTRIBUTES);
+		descriptors.add(SEQUENCE_KEY);
+		descriptors.add(SEQUENCE_CHANGE_THRESHOLD);
+		descriptors.add(SEQUENCE_MAX_SKIP);
+		descriptors.add(EMBEDDING_TENSORS);
+		descriptors.add(EMBEDDING_FORMAT);
+		descriptors.add(MAX_CONTENT_SIZE);
+		descriptors.add(PREPROCESSING_ENGINE);
+		descriptors.add(TOP_K);
+		descriptors.add(MIN_PROBABILITY);
+		descriptors.add(INTRA_OP_THREADS);
+		descriptors.add(INTER_OP_THREADS);
+		descriptors.add(MAX_CACHED_MODELS);
+		descriptors.add(MAX_CACHED_MODEL_SIZE);
+		descriptors.add(MODEL_RELOAD_INTERVAL);
+		descriptors.add(RESULT_CACHE_SIZE);
+		descriptors.add(RESULT_CACHE_TTL);
+		descriptors.add(RESULT_CACHE_EVICTION);
+		descriptors.add(TIMING_ATTRIBUTES);
 		this.descriptors = Collections.unmodifiableList(descriptors);
 
 		final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -100,73 +495,1073 @@ public class TensorFlowProcessor extends AbstractProcessor {
 		return this.relationships;
 	}
 
+	/**
+	 * offer the embedding relationship only while Embedding Tensors is set
+	 */
+	@Override
+	public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue,
+			final String newValue) {
+		if (descriptor.equals(EMBEDDING_TENSORS)) {
+			final Set<Relationship> relationships = new HashSet<Relationship>();
+			relationships.add(REL_SUCCESS);
+			relationships.add(REL_FAILURE);
+			if (newValue != null) {
+				relationships.add(REL_EMBEDDING);
+			}
+			this.relationships = Collections.unmodifiableSet(relationships);
+		}
+	}
+
 	@Override
 	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
 		return descriptors;
 	}
 
+	@Override
+	protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+		return new PropertyDescriptor.Builder().name(propertyDescriptorName)
+				.description("Model directory whose results are written as " + propertyDescriptorName
+						+ ".label_N and " + propertyDescriptorName + ".probability_N")
+				.required(false).dynamic(true).expressionLanguageSupported(true)
+				.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+	}
+
+	/**
+	 * a model directory given without expression language must hold a readable
+	 * graph and label file, the model itself is loaded and checked when the
+	 * processor is scheduled
+	 */
+	@Override
+	protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+		final List<ValidationResult> results = new ArrayList<ValidationResult>();
+		validateModelDir(context, MODEL_DIR, results);
+		for (PropertyDescriptor descriptor : context.getProperties().keySet()) {
+			if (!descriptor.isDynamic()) {
+				continue;
+			}
+			if (!NAMESPACE.matcher(descriptor.getName()).matches()) {
+				results.add(new ValidationResult.Builder().subject(descriptor.getName()).valid(false)
+						.explanation("a namespace may only hold letters, digits, '_', '-' and '.'").build());
+			} else {
+				validateModelDir(context, descriptor, results);
+			}
+		}
+		if (context.getProperty(PIPELINE_DEPTH).asInteger() > 0
+				&& context.getProperty(DYNAMIC_BATCH_WAIT).asTimePeriod(TimeUnit.NANOSECONDS) > 0) {
+			results.add(new ValidationResult.Builder().subject(DYNAMIC_BATCH_WAIT.getDisplayName()).valid(false)
+					.explanation("dynamic batching cannot be combined with a Pipeline Depth").build());
+		}
+		if (context.getProperty(TILES).isSet()) {
+			try {
+				tiling(context);
+			} catch (IllegalArgumentException e) {
+				results.add(new ValidationResult.Builder().subject(TILES.getDisplayName())
+						.input(context.getProperty(TILES).getValue()).valid(false).explanation(e.getMessage()).build());
+			}
+			if (context.getProperty(PIPELINE_DEPTH).asInteger() > 0
+					|| context.getProperty(DYNAMIC_BATCH_WAIT).asTimePeriod(TimeUnit.NANOSECONDS) > 0) {
+				results.add(new ValidationResult.Builder().subject(TILES.getDisplayName()).valid(false)
+						.explanation("tiling cannot be combined with a Pipeline Depth or Dynamic Batch Wait").build());
+			}
+			for (PropertyDescriptor descriptor : context.getProperties().keySet()) {
+				if (descriptor.isDynamic()) {
+					results.add(new ValidationResult.Builder().subject(TILES.getDisplayName()).valid(false)
+							.explanation("tiling runs a single model, remove " + descriptor.getName()).build());
+				}
+			}
+		}
+		if (context.getProperty(SEQUENCE_KEY).isSet()) {
+			if (context.getProperty(PIPELINE_DEPTH).asInteger() > 0
+					|| context.getProperty(DYNAMIC_BATCH_WAIT).asTimePeriod(TimeUnit.NANOSECONDS) > 0
+					|| context.getProperty(TILES).isSet()) {
+				results.add(new ValidationResult.Builder().subject(SEQUENCE_KEY.getDisplayName()).valid(false)
+						.explanation("frame sequences cannot be combined with Tiles, a Pipeline Depth or Dynamic "
+								+ "Batch Wait").build());
+			}
+			for (PropertyDescriptor descriptor : context.getProperties().keySet()) {
+				if (descriptor.isDynamic()) {
+					results.add(new ValidationResult.Builder().subject(SEQUENCE_KEY.getDisplayName()).valid(false)
+							.explanation("frame sequences run a single model, remove " + descriptor.getName())
+							.build());
+				}
+			}
+		}
+		if (context.getProperty(EMBEDDING_TENSORS).isSet()) {
+			try {
+				embeddingTensors(context);
+			} catch (IllegalArgumentException e) {
+				results.add(new ValidationResult.Builder().subject(EMBEDDING_TENSORS.getDisplayName())
+						.input(context.getProperty(EMBEDDING_TENSORS).getValue()).valid(false)
+						.explanation(e.getMessage()).build());
+			}
+			if (context.getProperty(PIPELINE_DEPTH).asInteger() > 0
+					|| context.getProperty(DYNAMIC_BATCH_WAIT).asTimePeriod(TimeUnit.NANOSECONDS) > 0
+					|| context.getProperty(TILES).isSet() || context.getProperty(SEQUENCE_KEY).isSet()) {
+				results.add(new ValidationResult.Builder().subject(EMBEDDING_TENSORS.getDisplayName()).valid(false)
+						.explanation("embeddings cannot be combined with Tiles, Sequence Key Attribute, a Pipeline "
+								+ "Depth or Dynamic Batch Wait").build());
+			}
+			for (PropertyDescriptor descriptor : context.getProperties().keySet()) {
+				if (descriptor.isDynamic()) {
+					results.add(new ValidationResult.Builder().subject(EMBEDDING_TENSORS.getDisplayName())
+							.valid(false).explanation("embeddings come from a single model, remove "
+									+ descriptor.getName()).build());
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             when a tensor name is empty
+	 */
+	private static List<String> embeddingTensors(PropertyContext context) {
+		final List<String> tensors = new ArrayList<String>();
+		for (String tensor : context.getProperty(EMBEDDING_TENSORS).getValue().split(",", -1)) {
+			if (tensor.trim().isEmpty()) {
+				throw new IllegalArgumentException("Expected comma separated tensor names, found an empty one");
+			}
+			tensors.add(tensor.trim());
+		}
+		return Collections.unmodifiableList(tensors);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             when a grid is malformed or the overlap out of range
+	 */
+	private static Tiling tiling(PropertyContext context) {
+		return Tiling.parse(context.getProperty(TILES).getValue(), context.getProperty(TILE_OVERLAP).asFloat() / 100f,
+				Tiling.Pooling.valueOf(context.getProperty(TILE_POOLING).getValue()));
+	}
+
+	private static final Pattern NAMESPACE = Pattern.compile("[\\w-]+(\\.[\\w-]+)*");
+
+	private static void validateModelDir(final ValidationContext context, final PropertyDescriptor property,
+			final List<ValidationResult> results) {
+		final String modelDir = context.getProperty(property).getValue();
+		if (modelDir == null || context.isExpressionLanguagePresent(modelDir)) {
+			return;
+		}
+		final Path dir = Paths.get(modelDir);
+		final ModelSignature signature;
+		try {
+			signature = modelSignature(context).forDirectory(dir);
+		} catch (ModelLoadException | IllegalArgumentException e) {
+			results.add(new ValidationResult.Builder().subject(property.getDisplayName()).input(modelDir)
+					.valid(false).explanation(e.getMessage()).build());
+			return;
+		}
+		for (Path path : new Path[] { signature.graphPath(dir), signature.labelPath(dir) }) {
+			if (!Files.isReadable(path)) {
+				results.add(new ValidationResult.Builder().subject(property.getDisplayName()).input(modelDir)
+						.valid(false).explanation("cannot read " + path).build());
+			}
+		}
+	}
+
+	/**
+	 * @return how models are fed unless their directory has a descriptor
+	 * @throws IllegalArgumentException
+	 *             when the input scale is 0 or the output scale not positive
+	 */
+	static ModelSignature modelSignature(PropertyContext context) {
+		final String[] size = context.getProperty(INPUT_SIZE).getValue().split("x");
+		return new ModelSignature(context.getProperty(GRAPH_FILE).getValue(),
+				context.getProperty(LABEL_FILE).getValue(), context.getProperty(INPUT_TENSOR).getValue(),
+				context.getProperty(OUTPUT_TENSOR).getValue(), Integer.parseInt(size[0]), Integer.parseInt(size[1]),
+				context.getProperty(INPUT_MEAN).asFloat(), context.getProperty(INPUT_SCALE).asFloat(),
+				ModelSignature.ChannelOrder.valueOf(context.getProperty(CHANNEL_ORDER).getValue()),
+				ModelSignature.parseTags(context.getProperty(SAVED_MODEL_TAGS).getValue()),
+				context.getProperty(OUTPUT_SCALE).asFloat(), context.getProperty(OUTPUT_ZERO_POINT).asInteger());
+	}
+
 	@OnScheduled
 	public void onScheduled(final ProcessContext context) {
-		service = new TensorFlowService();
+		final int resultCacheSize = context.getProperty(RESULT_CACHE_SIZE).asInteger();
+		final ResultCache resultCache = resultCacheSize == 0 ? null
+				: new ResultCache(resultCacheSize,
+						context.getProperty(RESULT_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS),
+						ResultCache.EvictionPolicy.valueOf(context.getProperty(RESULT_CACHE_EVICTION).getValue()));
+		service = new TensorFlowService(context.getProperty(INTRA_OP_THREADS).asInteger(),
+				context.getProperty(INTER_OP_THREADS).asInteger(), context.getProperty(MAX_CACHED_MODELS).asInteger(),
+				context.getProperty(MAX_CACHED_MODEL_SIZE).asDataSize(DataUnit.B).longValue(),
+				context.getProperty(MODEL_RELOAD_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS), resultCache,
+				Preprocessor.Engine.valueOf(context.getProperty(PREPROCESSING_ENGINE).getValue()),
+				modelSignature(context));
+		publishedStats.set(service.getModelCacheStats());
+
+		final List<PropertyDescriptor> extras = new ArrayList<PropertyDescriptor>();
+		for (PropertyDescriptor descriptor : context.getProperties().keySet()) {
+			if (descriptor.isDynamic()) {
+				extras.add(descriptor);
+			}
+		}
+		extras.sort((a, b) -> a.getName().compareTo(b.getName()));
+		extraModels = Collections.unmodifiableList(extras);
+		final int topK = context.getProperty(TOP_K).asInteger();
+		final List<AttributeKeys> keys = new ArrayList<AttributeKeys>(extras.size() + 1);
+		keys.add(new AttributeKeys("", topK));
+		for (PropertyDescriptor extra : extras) {
+			keys.add(new AttributeKeys(extra.getName() + ".", topK));
+		}
+		attributeKeys = keys;
+
+		tiling = context.getProperty(TILES).isSet() ? tiling(context) : null;
+		final List<AttributeKeys> tiles = new ArrayList<AttributeKeys>();
+		if (tiling != null && context.getProperty(TILE_ATTRIBUTES).asBoolean()) {
+			for (int t = 1; t <= tiling.size(); t++) {
+				tiles.add(new AttributeKeys("tile." + t + ".", topK));
+			}
+		}
+		tileKeys = tiles;
+		sampler = context.getProperty(SEQUENCE_KEY).isSet()
+				? new FrameSampler(context.getProperty(SEQUENCE_CHANGE_THRESHOLD).asFloat() / 100f,
+						context.getProperty(SEQUENCE_MAX_SKIP).asInteger(), MAX_STREAMS)
+				: null;
+		embeddingTensors = context.getProperty(EMBEDDING_TENSORS).isSet() ? embeddingTensors(context) : null;
+		embeddingFormat = Embeddings.Format.valueOf(context.getProperty(EMBEDDING_FORMAT).getValue());
+
+		// load, check and warm up the configured models before the first FlowFile
+		final List<PropertyDescriptor> models = new ArrayList<PropertyDescriptor>(extras);
+		models.add(0, MODEL_DIR);
+		// a tiled batch is split into runs of whole images, other batches run whole
+		final int runSize = tiling != null ? tiling.size()
+				: context.getProperty(DYNAMIC_BATCH_WAIT).asTimePeriod(TimeUnit.NANOSECONDS) > 0
+						? context.getProperty(DYNAMIC_BATCH_SIZE).asInteger()
+						: context.getProperty(BATCH_SIZE).asInteger();
+		for (PropertyDescriptor model : models) {
+			if (context.getProperty(model).isExpressionLanguagePresent()) {
+				continue;
+			}
+			try {
+				service.validateModel(context.getProperty(model).getValue(), runSize);
+				if (embeddingTensors != null) {
+					service.validateEmbeddings(context.getProperty(model).getValue(), embeddingTensors);
+				}
+			} catch (ModelLoadException e) {
+				getLogger().error("Model is not usable: " + e.getMessage());
+				onStopped();
+				throw e;
+			}
+		}
+
+		final int pipelineDepth = context.getProperty(PIPELINE_DEPTH).asInteger();
+		if (pipelineDepth > 0) {
+			decodeExecutor = Executors.newSingleThreadExecutor(stageThreads("decode"));
+			inferenceExecutor = Executors.newSingleThreadExecutor(stageThreads("inference"));
+		}
+		final long batchWait = context.getProperty(DYNAMIC_BATCH_WAIT).asTimePeriod(TimeUnit.NANOSECONDS);
+		if (batchWait > 0) {
+			batcher = new DynamicBatcher(service, context.getProperty(DYNAMIC_BATCH_SIZE).asInteger(), batchWait,
+					"TensorFlowProcessor[" + getIdentifier() + "] batcher");
+		}
 		return;
 	}
 
+	private ThreadFactory stageThreads(final String stage) {
+		final String name = "TensorFlowProcessor[" + getIdentifier() + "] " + stage;
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * release the native graphs and sessions, only once no onTrigger thread can
+	 * still be running inference on them
+	 */
+	@OnStopped
+	public void onStopped() {
+		// every onTrigger drains its pipeline before returning, so the stages are idle
+		if (decodeExecutor != null) {
+			decodeExecutor.shutdown();
+			inferenceExecutor.shutdown();
+			decodeExecutor = null;
+			inferenceExecutor = null;
+		}
+		if (batcher != null) {
+			batcher.close();
+			batcher = null;
+		}
+		if (service != null) {
+			service.close();
+			final NativeResources.Snapshot leaked = service.getNativeResources().snapshot();
+			if (!leaked.isEmpty()) {
+				getLogger().warn("Native memory leaked, still open after stopping: " + leaked);
+			}
+			service = null;
+		}
+	}
+
 	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory)
+			throws ProcessException {
+		if (decodeExecutor != null) {
+			onTriggerPipelined(context, sessionFactory);
+			return;
+		}
+		final ProcessSession session = sessionFactory.createSession();
+		try {
+			onTrigger(context, session);
+			session.commit();
+		} catch (final Throwable t) {
+			session.rollback(true);
+			throw t;
+		}
+	}
+
+	/**
+	 * classify one batch, the session is committed or rolled back by the
+	 * caller
+	 */
 	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-		FlowFile flowFile = session.get();
-		if (flowFile == null) {
-			flowFile = session.create();
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			return;
 		}
 		try {
-			flowFile.getAttributes();
+			for (Entry<List<String>, List<FlowFile>> batch : groupByModel(context, session, flowFiles).entrySet()) {
+				final Pending pending = read(context, session, batch.getKey(), batch.getValue());
+				if (pending == null) {
+					continue;
+				}
+				try {
+					final int topK = context.getProperty(TOP_K).asInteger();
+					final float minProbability = context.getProperty(MIN_PROBABILITY).asFloat() / 100f;
+					complete(context, session, pending, classifyBatch(context, pending, topK, minProbability));
+				} catch (ModelLoadException e) {
+					failModel(session, pending, e);
+				} finally {
+					pending.close();
+				}
+			}
+			publishCacheStats(session);
+		} catch (
+
+		final Throwable t) {
+			getLogger().error("Unable to process TensorFlow Processor file " + t.getLocalizedMessage());
+			throw new ProcessException(t);
+		}
+	}
+
+	/**
+	 * Keep up to Pipeline Depth batches in flight, each in its own session.
+	 * This thread reads content and finishes batches in order, writing
+	 * attributes and committing, while the decode and inference threads work
+	 * on the batches in between. Reading stops once the queue is empty or the
+	 * run has taken longer than {@link #PIPELINE_RUN_NANOS}, and every batch in
+	 * flight is finished before returning.
+	 */
+	private void onTriggerPipelined(final ProcessContext context, final ProcessSessionFactory sessionFactory) {
+		final int depth = context.getProperty(PIPELINE_DEPTH).asInteger();
+		final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+		final int topK = context.getProperty(TOP_K).asInteger();
+		final float minProbability = context.getProperty(MIN_PROBABILITY).asFloat() / 100f;
+		final long deadline = System.nanoTime() + PIPELINE_RUN_NANOS;
+		final ArrayDeque<InFlight> inFlight = new ArrayDeque<InFlight>(depth);
+		Throwable failure = null;
+		boolean reading = true;
+
+		for (;;) {
+			while (reading && inFlight.size() < depth) {
+				final ProcessSession session = sessionFactory.createSession();
+				final List<FlowFile> flowFiles = session.get(batchSize);
+				if (flowFiles.isEmpty()) {
+					session.commit();
+					reading = false;
+					break;
+				}
+				final InFlight flight = new InFlight(session);
+				try {
+					for (Entry<List<String>, List<FlowFile>> batch : groupByModel(context, session, flowFiles).entrySet()) {
+						final Pending pending = read(context, session, batch.getKey(), batch.getValue());
+						if (pending != null) {
+							flight.add(pending, submit(pending, topK, minProbability));
+						}
+					}
+					inFlight.add(flight);
+				} catch (final Throwable t) {
+					flight.abort();
+					failure = t;
+					reading = false;
+					break;
+				}
+				if (System.nanoTime() - deadline > 0) {
+					reading = false;
+				}
+			}
+
+			final InFlight oldest = inFlight.poll();
+			if (oldest == null) {
+				break;
+			}
+			try {
+				oldest.complete(context);
+			} catch (final Throwable t) {
+				if (failure == null) {
+					failure = t;
+				}
+				reading = false;
+			}
+		}
+
+		if (failure != null) {
+			getLogger().error("Unable to process TensorFlow Processor file " + failure.getLocalizedMessage());
+			throw failure instanceof ProcessException ? (ProcessException) failure : new ProcessException(failure);
+		}
+	}
+
+	/**
+	 * classify a batch the way the processor is configured to
+	 * 
+	 * @return per model, the results of the batch's images
+	 */
+	private List<List<List<InceptionResult>>> classifyBatch(final ProcessContext context, final Pending pending,
+			final int topK, final float minProbability) {
+		if (batcher != null) {
+			return classifyShared(pending, topK, minProbability);
+		}
+		if (tiling != null) {
+			return classifyTiled(pending, topK, minProbability);
+		}
+		if (sampler != null) {
+			return classifySequence(context, pending, topK, minProbability);
+		}
+		if (embeddingTensors != null) {
+			return classifyEmbedded(pending, topK, minProbability);
+		}
+		return classify(pending, topK, minProbability);
+	}
+
+	/**
+	 * @return per model, the results of the batch's images
+	 */
+	private List<List<List<InceptionResult>>> classify(final Pending pending, final int topK,
+			final float minProbability) {
+		if (pending.models.size() == 1) {
+			return Collections.singletonList(service.getInceptionBatch(pending.images, pending.models.get(0), topK,
+					minProbability, pending.timings));
+		}
+		return service.getInceptionFanOut(pending.images, pending.models, topK, minProbability, pending.timings);
+	}
+
+	/**
+	 * classify the batch's tiles in one model run, keeping each tile's results
+	 * with the pending images
+	 * 
+	 * @return the pooled results of the batch's images
+	 */
+	private List<List<List<InceptionResult>>> classifyTiled(final Pending pending, final int topK,
+			final float minProbability) {
+		pending.tiled = service.getInceptionTiled(pending.images, pending.models.get(0), tiling, topK,
+				minProbability, pending.timings);
+		final List<List<InceptionResult>> results = new ArrayList<List<InceptionResult>>(pending.tiled.size());
+		for (Tiling.Result result : pending.tiled) {
+			results.add(result == null ? null : result.getPooled());
+		}
+		return Collections.singletonList(results);
+	}
+
+	/**
+	 * classify the batch in one model run that also fetches the embedding
+	 * tensors, keeping them with the pending images
+	 * 
+	 * @return the results of the batch's images
+	 */
+	private List<List<List<InceptionResult>>> classifyEmbedded(final Pending pending, final int topK,
+			final float minProbability) {
+		pending.embeddings = service.getEmbeddings(pending.images, pending.models.get(0), embeddingTensors, topK,
+				minProbability, pending.timings);
+		return Collections.singletonList(pending.embeddings.getResults());
+	}
+
+	/**
+	 * sample the frames of the batch's FlowFiles against their streams and
+	 * classify those that changed, resized into the model input as they are
+	 * decoded and run in as few runs as the input size allows. A FlowFile gets
+	 * the results of its frame, or of an animation's frames merged.
+	 * 
+	 * @return the results of the batch's images
+	 */
+	private List<List<List<InceptionResult>>> classifySequence(final ProcessContext context, final Pending pending,
+			final int topK, final float minProbability) {
+		final FrameSampler sampler = this.sampler;
+		final String model = pending.models.get(0);
+		final String keyAttribute = context.getProperty(SEQUENCE_KEY).getValue();
+		// every frame of the batch gets its results before the batch ends
+		final Object run = new Object();
+		final BatchTimings timings = pending.timings;
+		pending.frames = new ArrayList<List<FrameSampler.Frame>>(pending.images.size());
+		try (TensorFlowService.FrameRuns runs = service.frameRuns(model, topK, minProbability, timings)) {
+			for (int i = 0; i < pending.images.size(); i++) {
+				final String key = pending.flowFiles.get(i).getAttribute(keyAttribute);
+				final FrameSampler.Stream stream = key == null ? sampler.newStream() : sampler.stream(key);
+				final List<FrameSampler.Frame> frames = new ArrayList<FrameSampler.Frame>(1);
+				final long start = System.nanoTime();
+				final long ran = timings.getInferenceNanos() + timings.getPostProcessNanos();
+				try {
+					service.decodeFrames(pending.images.get(i), model, MAX_FRAMES, image -> {
+						final FrameSampler.Frame frame = sampler.sample(stream, image, run);
+						if (frame.isClassified()) {
+							// an animation draws its next frame over this one, so resize it now
+							runs.add(image, frame::setResults);
+						}
+						frames.add(frame);
+					});
+					pending.frames.add(frames);
+				} catch (IOException e) {
+					getLogger().warn("Failed to decode frames of {}: {}",
+							new Object[] { pending.flowFiles.get(i), e.getMessage() });
+					pending.frames.add(null);
+				}
+				// runs that filled up while decoding are not preprocessing
+				timings.setPreprocessNanos(i, System.nanoTime() - start
+						- (timings.getInferenceNanos() + timings.getPostProcessNanos() - ran));
+			}
+			runs.flush();
+		}
+		final List<List<InceptionResult>> results = new ArrayList<List<InceptionResult>>(pending.frames.size());
+		for (List<FrameSampler.Frame> frames : pending.frames) {
+			final List<List<InceptionResult>> merged = new ArrayList<List<InceptionResult>>(frames == null ? 0
+					: frames.size());
+			for (int f = 0; frames != null && f < frames.size(); f++) {
+				if (frames.get(f).getResults() != null) {
+					merged.add(frames.get(f).getResults());
+				}
+			}
+			results.add(merged.isEmpty() ? null : FrameSampler.merge(merged, topK));
+		}
+		return Collections.singletonList(results);
+	}
 
-			// read all bytes of the flowfile (tensor requires whole image)
+	/**
+	 * decode every image on this thread, queue it with the batcher and wait
+	 * for all of them
+	 * 
+	 * @return per model, the results of the batch's images
+	 */
+	private List<List<List<InceptionResult>>> classifyShared(final Pending pending, final int topK,
+			final float minProbability) {
+		final List<CompletableFuture<DynamicBatcher.Slot>> queued = new ArrayList<>(pending.images.size());
+		for (ImageContent image : pending.images) {
+			queued.add(batcher.submit(image, pending.models, topK, minProbability));
+		}
+		RuntimeException failure = null;
+		pending.slots = new ArrayList<DynamicBatcher.Slot>(queued.size());
+		for (CompletableFuture<DynamicBatcher.Slot> slot : queued) {
+			try {
+				pending.slots.add(slot.join());
+			} catch (CompletionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		final List<List<List<InceptionResult>>> modelResults = new ArrayList<>(pending.models.size());
+		for (int m = 0; m < pending.models.size(); m++) {
+			final List<List<InceptionResult>> results = new ArrayList<List<InceptionResult>>(pending.slots.size());
+			for (DynamicBatcher.Slot slot : pending.slots) {
+				results.add(slot.getResults().get(m));
+			}
+			modelResults.add(results);
+		}
+		return modelResults;
+	}
+
+	private CompletableFuture<List<List<List<InceptionResult>>>> submit(final Pending pending, final int topK,
+			final float minProbability) {
+		final TensorFlowService service = this.service;
+		if (pending.models.size() > 1) {
+			// the models of a fan out run in parallel on the service's own threads
+			return CompletableFuture.supplyAsync(() -> service.getInceptionFanOut(pending.images, pending.models,
+					topK, minProbability, pending.timings), inferenceExecutor);
+		}
+		return CompletableFuture
+				.supplyAsync(() -> service.prepareBatch(pending.images, pending.models.get(0), topK, minProbability,
+						pending.timings), decodeExecutor)
+				.thenApplyAsync(service::runBatch, inferenceExecutor)
+				.thenApply(Collections::singletonList);
+	}
+
+	/**
+	 * group a batch by model so every model runs once per batch, the models
+	 * named by dynamic properties follow the FlowFile's own. A FlowFile whose
+	 * model directory comes out empty goes to failure.
+	 */
+	private Map<List<String>, List<FlowFile>> groupByModel(final ProcessContext context,
+			final ProcessSession session, final List<FlowFile> flowFiles) {
+		final List<PropertyDescriptor> extras = extraModels;
+		final Map<List<String>, List<FlowFile>> batches = new LinkedHashMap<List<String>, List<FlowFile>>();
+		for (FlowFile flowFile : flowFiles) {
 			String modelDir = flowFile.getAttribute(MODEL_DIR_NAME);
 			if (modelDir == null) {
 				modelDir = context.getProperty(MODEL_DIR_NAME).evaluateAttributeExpressions(flowFile).getValue();
 			}
-			if (modelDir == null) {
-				modelDir = "/models";
+			if (modelDir == null || modelDir.trim().isEmpty()) {
+				failEmptyModel(session, flowFile, MODEL_DIR.getDisplayName());
+				continue;
+			}
+			final List<String> models = new ArrayList<String>(extras.size() + 1);
+			models.add(modelDir);
+			String empty = null;
+			for (PropertyDescriptor extra : extras) {
+				final String extraDir = context.getProperty(extra).evaluateAttributeExpressions(flowFile).getValue();
+				if (extraDir == null || extraDir.trim().isEmpty()) {
+					empty = extra.getName();
+					break;
+				}
+				models.add(extraDir);
+			}
+			if (empty != null) {
+				failEmptyModel(session, flowFile, empty);
+				continue;
 			}
-			final String model = modelDir;
+			List<FlowFile> batch = batches.get(models);
+			if (batch == null) {
+				batch = new ArrayList<FlowFile>();
+				batches.put(models, batch);
+			}
+			batch.add(flowFile);
+		}
+		return batches;
+	}
 
-			try {
-				final HashMap<String, String> attributes = new HashMap<String, String>();
+	/**
+	 * add the model cache counter growth since the last publish, each delta is
+	 * claimed by exactly one thread, and drop expired cached results
+	 */
+	private void publishCacheStats(final ProcessSession session) {
+		final ResultCache resultCache = service.getResultCache();
+		if (resultCache != null) {
+			resultCache.expire();
+		}
+		final ModelCache.Stats current = service.getModelCacheStats();
+		final ModelCache.Stats previous = publishedStats.getAndSet(current);
+		if (previous == null) {
+			return;
+		}
+		for (Entry<String, Long> counter : current.since(previous).toCounters().entrySet()) {
+			if (counter.getValue() != 0) {
+				session.adjustCounter(counter.getKey(), counter.getValue(), false);
+			}
+		}
+		publishNativeGauges(session);
+	}
 
+	/**
+	 * move the Native ... counters to the live tensors, graphs and sessions
+	 * and the bytes they hold, so each counter reads as a gauge
+	 */
+	private void publishNativeGauges(final ProcessSession session) {
+		final Map<String, Long> current = service.getNativeResources().snapshot().toGauges();
+		final Map<String, Long> previous = publishedGauges.getAndSet(current);
+		for (Entry<String, Long> gauge : current.entrySet()) {
+			final Long published = previous.get(gauge.getKey());
+			final long delta = gauge.getValue() - (published == null ? 0 : published);
+			if (delta != 0 || published == null) {
+				session.adjustCounter(gauge.getKey(), delta, false);
+			}
+		}
+	}
+
+	/**
+	 * @return stage latency and batch size histograms since the processor was
+	 *         created
+	 */
+	public ProcessorMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * read the content of one model's FlowFiles, oversized ones go straight to
+	 * failure
+	 * 
+	 * @return the images to classify, or null if none were left
+	 */
+	private Pending read(final ProcessContext context, final ProcessSession session, final List<String> models,
+			final List<FlowFile> batch) {
+		final long maxContentSize = context.getProperty(MAX_CONTENT_SIZE).asDataSize(DataUnit.B).longValue();
+		final Pending pending = new Pending(models, batch.size());
+		try {
+			// read the whole image (tensor requires whole image) straight into a pooled buffer
+			for (final FlowFile flowFile : batch) {
+				if (flowFile.getSize() > maxContentSize) {
+					getLogger().warn("{} is {} bytes, larger than the {} byte maximum, routing to failure",
+							new Object[] { flowFile, flowFile.getSize(), maxContentSize });
+					session.transfer(flowFile, REL_FAILURE);
+					continue;
+				}
+				final long start = System.nanoTime();
 				session.read(flowFile, new InputStreamCallback() {
 					@Override
 					public void process(InputStream input) throws IOException {
-						byte[] byteArray = IOUtils.toByteArray(input);
-						getLogger().debug(
-								String.format("read %d bytes from incoming file", new Object[] { byteArray.length }));
-						List<InceptionResult> results = service.getInception(byteArray, model);
-
-						if (results != null) {
-							getLogger().debug(String.format("Found %d results", new Object[] { results.size() }));
-
-							for (InceptionResult inceptionResult : results) {
-								attributes.put(String.format("label_%d", inceptionResult.getDisplayRank()), inceptionResult.getLabel() );
-								attributes.put(String.format("probability_%d", inceptionResult.getDisplayRank()), inceptionResult.getProbability());										
-							}
+						pending.images.add(ImageContent.read(input, (int) flowFile.getSize(), bufferPool));
+						if (getLogger().isDebugEnabled()) {
+							getLogger().debug("read {} bytes from incoming file", new Object[] { flowFile.getSize() });
 						}
 					}
 				});
-				if (attributes.size() == 0) {
-					session.transfer(flowFile, REL_FAILURE);
-				} else {
-					flowFile = session.putAllAttributes(flowFile, attributes);
-					session.transfer(flowFile, REL_SUCCESS);
+				pending.readNanos[pending.flowFiles.size()] = System.nanoTime() - start;
+				metrics.record(Stage.CONTENT_READ, pending.readNanos[pending.flowFiles.size()], session);
+				pending.flowFiles.add(flowFile);
+			}
+		} catch (RuntimeException e) {
+			pending.close();
+			throw e;
+		}
+		if (pending.flowFiles.isEmpty()) {
+			return null;
+		}
+		pending.timings = new BatchTimings(pending.images.size());
+		return pending;
+	}
+
+	private void failEmptyModel(final ProcessSession session, final FlowFile flowFile, final String property) {
+		getLogger().error("{} has no model directory, {} evaluated to an empty value, routing to failure",
+				new Object[] { flowFile, property });
+		session.transfer(flowFile, REL_FAILURE);
+	}
+
+	private void failModel(final ProcessSession session, final Pending pending, final ModelLoadException e) {
+		// a model selected by attribute is unusable, retrying would not help
+		getLogger().error("Unable to load model " + String.join(", ", pending.models) + ": "
+				+ e.getMessage());
+		session.transfer(pending.flowFiles, REL_FAILURE);
+	}
+
+	/**
+	 * record the batch's timings and route its FlowFiles, a FlowFile goes to
+	 * failure unless every model classified it
+	 */
+	private void complete(final ProcessContext context, final ProcessSession session, final Pending pending,
+			final List<List<List<InceptionResult>>> modelResults) {
+		final List<FlowFile> flowFiles = pending.flowFiles;
+		final boolean resultCache = service.getResultCache() != null;
+		for (int i = 0; i < flowFiles.size(); i++) {
+			final BatchTimings timings = pending.timings(i);
+			if (timings.isCached(pending.index(i))) {
+				session.adjustCounter("Result Cache Hits", 1, false);
+				continue;
+			}
+			if (resultCache) {
+				session.adjustCounter("Result Cache Misses", 1, false);
+			}
+			metrics.record(Stage.PREPROCESS, timings.getPreprocessNanos(pending.index(i)), session);
+		}
+		for (BatchTimings timings : pending.runs()) {
+			if (timings.getRunSize() > 0) {
+				metrics.recordBatchSize(timings.getRunSize(), session);
+				metrics.record(Stage.INFERENCE, timings.getInferenceNanos(), session);
+				metrics.record(Stage.POST_PROCESS, timings.getPostProcessNanos(), session);
+			}
+		}
+
+		final boolean timingAttributes = context.getProperty(TIMING_ATTRIBUTES).asBoolean();
+		final List<AttributeKeys> keys = attributeKeys;
+		final List<AttributeKeys> tiles = pending.tiled == null ? Collections.<AttributeKeys>emptyList() : tileKeys;
+		for (int i = 0; i < flowFiles.size(); i++) {
+			FlowFile flowFile = flowFiles.get(i);
+			final List<InceptionResult> results = modelResults.get(0).get(i);
+			boolean classified = results != null;
+			for (int m = 1; m < modelResults.size(); m++) {
+				classified &= modelResults.get(m).get(i) != null;
+			}
+			if (!classified) {
+				session.transfer(flowFile, REL_FAILURE);
+			} else {
+				if (getLogger().isDebugEnabled()) {
+					getLogger().debug("Found {} results", new Object[] { results.size() });
+				}
+				final long start = System.nanoTime();
+				final BatchTimings timings = pending.timings(i);
+				int size = ATTRIBUTES_PER_FLOWFILE;
+				for (List<List<InceptionResult>> model : modelResults) {
+					size += 2 * model.get(i).size();
+				}
+				for (int t = 0; t < tiles.size(); t++) {
+					size += 2 * pending.tiled.get(i).getTiles().get(t).size();
+				}
+				final Map<String, String> attributes = new HashMap<String, String>(size * 4 / 3 + 1);
+				for (int m = 0; m < modelResults.size(); m++) {
+					putResults(keys.get(m), modelResults.get(m).get(i), attributes);
+				}
+				for (int t = 0; t < tiles.size(); t++) {
+					putResults(tiles.get(t), pending.tiled.get(i).getTiles().get(t), attributes);
 				}
-			} catch (Exception e) {
-				throw new ProcessException(e);
+				if (pending.frames != null) {
+					putFrames(pending.frames.get(i), attributes, session);
+				}
+				if (resultCache) {
+					attributes.put(ATTRIBUTE_CACHE_HIT, String.valueOf(timings.isCached(pending.index(i))));
+				}
+				if (timingAttributes) {
+					attributes.put(ATTRIBUTE_TIME_READ, micros(pending.readNanos[i]));
+					attributes.put(ATTRIBUTE_TIME_PREPROCESS, micros(timings.getPreprocessNanos(pending.index(i))));
+					attributes.put(ATTRIBUTE_TIME_INFERENCE, micros(timings.getInferenceNanos()));
+					attributes.put(ATTRIBUTE_TIME_POST_PROCESS, micros(timings.getPostProcessNanos()));
+					attributes.put(ATTRIBUTE_BATCH_SIZE, String.valueOf(timings.getRunSize()));
+				}
+				flowFile = session.putAllAttributes(flowFile, attributes);
+				metrics.record(Stage.ATTRIBUTE_WRITE, System.nanoTime() - start, session);
+				if (pending.embeddings != null) {
+					writeEmbeddings(session, flowFile, pending.embeddings, i);
+				}
+				session.transfer(flowFile, REL_SUCCESS);
 			}
+		}
+	}
 
-			session.commit();
-		} catch (
+	/**
+	 * send the image's embeddings on as a child, its rows written straight
+	 * from the bytes copied out of the tensors
+	 */
+	private void writeEmbeddings(final ProcessSession session, final FlowFile parent, final Embeddings embeddings,
+			final int image) {
+		final Embeddings.Format format = embeddingFormat;
+		FlowFile child = session.create(parent);
+		child = session.write(child, new OutputStreamCallback() {
+			@Override
+			public void process(OutputStream out) throws IOException {
+				embeddings.write(image, format, out);
+			}
+		});
+		final Map<String, String> attributes = new HashMap<String, String>(4);
+		attributes.put(CoreAttributes.MIME_TYPE.key(), "application/octet-stream");
+		attributes.put(ATTRIBUTE_EMBEDDING_TENSORS, String.join(",", embeddings.getTensors()));
+		attributes.put(ATTRIBUTE_EMBEDDING_FORMAT, format.name());
+		child = session.putAllAttributes(child, attributes);
+		session.transfer(child, REL_EMBEDDING);
+	}
 
-		final Throwable t) {
-			getLogger().error("Unable to process TensorFlow Processor file " + t.getLocalizedMessage());
-			throw new ProcessException(t);
+	/**
+	 * write how many of a FlowFile's frames ran the model and count them
+	 */
+	private static void putFrames(final List<FrameSampler.Frame> frames, final Map<String, String> attributes,
+			final ProcessSession session) {
+		int classified = 0;
+		for (FrameSampler.Frame frame : frames) {
+			classified += frame.isClassified() ? 1 : 0;
+		}
+		attributes.put(ATTRIBUTE_FRAMES, String.valueOf(frames.size()));
+		attributes.put(ATTRIBUTE_FRAMES_CLASSIFIED, String.valueOf(classified));
+		attributes.put(ATTRIBUTE_FRAME_CHANGE, InceptionResult.percent(frames.get(frames.size() - 1).getChange()));
+		session.adjustCounter("Frames Classified", classified, false);
+		session.adjustCounter("Frames Skipped", frames.size() - classified, false);
+	}
+
+	/**
+	 * FlowFiles of one set of models whose content has been read, with their
+	 * images held in pooled buffers until closed.
+	 */
+	private static final class Pending implements AutoCloseable {
+		// the FlowFiles' model first, then those of the dynamic properties
+		final List<String> models;
+		final List<FlowFile> flowFiles;
+		final List<ImageContent> images;
+		final long[] readNanos;
+		BatchTimings timings;
+		// where each image ran when the batcher classified them, else null
+		List<DynamicBatcher.Slot> slots;
+		// pooled and per tile results when the images were tiled, else null
+		List<Tiling.Result> tiled;
+		// each image's sampled frames in sequence mode, null where undecodable, else null
+		List<List<FrameSampler.Frame>> frames;
+		// labels and embedding rows of the images when Embedding Tensors is set, else null
+		Embeddings embeddings;
+
+		Pending(List<String> models, int size) {
+			this.models = models;
+			this.flowFiles = new ArrayList<FlowFile>(size);
+			this.images = new ArrayList<ImageContent>(size);
+			this.readNanos = new long[size];
+		}
+
+		/**
+		 * @return timings of the run that classified the image
+		 */
+		BatchTimings timings(int image) {
+			return slots == null ? timings : slots.get(image).getTimings();
+		}
+
+		/**
+		 * @return the image's index in {@link #timings(int)}
+		 */
+		int index(int image) {
+			return slots == null ? image : slots.get(image).getIndex();
+		}
+
+		/**
+		 * @return the runs this batch reports, a shared run is reported by the
+		 *         batch holding its first image
+		 */
+		List<BatchTimings> runs() {
+			if (slots == null) {
+				return Collections.singletonList(timings);
+			}
+			final List<BatchTimings> runs = new ArrayList<BatchTimings>();
+			for (DynamicBatcher.Slot slot : slots) {
+				if (slot.isFirst()) {
+					runs.add(slot.getTimings());
+				}
+			}
+			return runs;
+		}
+
+		@Override
+		public void close() {
+			for (ImageContent image : images) {
+				image.close();
+			}
+		}
+	}
+
+	/**
+	 * One session's batches on their way through the decode and inference
+	 * threads.
+	 */
+	private final class InFlight {
+		final ProcessSession session;
+		final List<Pending> pending = new ArrayList<Pending>();
+		final List<CompletableFuture<List<List<List<InceptionResult>>>>> results = new ArrayList<>();
+
+		InFlight(ProcessSession session) {
+			this.session = session;
+		}
+
+		void add(Pending batch, CompletableFuture<List<List<List<InceptionResult>>>> result) {
+			pending.add(batch);
+			results.add(result);
+		}
+
+		/**
+		 * wait for every batch, route and commit
+		 */
+		void complete(ProcessContext context) {
+			try {
+				for (int i = 0; i < pending.size(); i++) {
+					final List<List<List<InceptionResult>>> batchResults;
+					try {
+						batchResults = results.get(i).join();
+					} catch (CompletionException e) {
+						if (e.getCause() instanceof ModelLoadException) {
+							failModel(session, pending.get(i), (ModelLoadException) e.getCause());
+							continue;
+						}
+						throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+					}
+					TensorFlowProcessor.this.complete(context, session, pending.get(i), batchResults);
+				}
+				publishCacheStats(session);
+				session.commit();
+			} catch (RuntimeException e) {
+				session.rollback(true);
+				throw e;
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * roll back once no stage still reads the pooled buffers
+		 */
+		void abort() {
+			for (CompletableFuture<List<List<List<InceptionResult>>>> result : results) {
+				try {
+					result.join();
+				} catch (CompletionException | CancellationException e) {
+					// rolling back anyway
+				}
+			}
+			close();
+			session.rollback(true);
+		}
+
+		private void close() {
+			for (Pending batch : pending) {
+				batch.close();
+			}
+		}
+	}
+
+	private static String micros(long nanos) {
+		return String.valueOf(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	static Map<String, String> resultAttributes(final List<InceptionResult> results) {
+		return resultAttributes("", results);
+	}
+
+	/**
+	 * @param prefix
+	 *            put before every attribute name, a namespace and a dot or
+	 *            empty
+	 */
+	static Map<String, String> resultAttributes(final String prefix, final List<InceptionResult> results) {
+		final HashMap<String, String> attributes = new HashMap<String, String>();
+		putResults(new AttributeKeys(prefix, results.size()), results, attributes);
+		return attributes;
+	}
+
+	/**
+	 * write label_N and probability_N, reading a {@link Classification}'s
+	 * indices and scores directly so the probability is the only string made
+	 */
+	static void putResults(final AttributeKeys keys, final List<InceptionResult> results,
+			final Map<String, String> attributes) {
+		if (results instanceof Classification) {
+			final Classification classification = (Classification) results;
+			for (int rank = 0; rank < classification.size(); rank++) {
+				attributes.put(keys.label(rank), classification.label(rank));
+				attributes.put(keys.probability(rank), InceptionResult.percent(classification.score(rank)));
+			}
+			return;
+		}
+		for (InceptionResult inceptionResult : results) {
+			attributes.put(keys.label(inceptionResult.getRank()), inceptionResult.getLabel());
+			attributes.put(keys.probability(inceptionResult.getRank()), inceptionResult.getProbability());
+		}
+	}
+
+	/**
+	 * The label_N and probability_N names under one prefix, built once rather
+	 * than formatted for every FlowFile.
+	 */
+	static final class AttributeKeys {
+		private final String prefix;
+		private final String[] labels;
+		private final String[] probabilities;
+
+		/**
+		 * @param prefix
+		 *            a namespace and a dot or empty
+		 * @param ranks
+		 *            names to build, later ranks are built when asked for
+		 */
+		AttributeKeys(String prefix, int ranks) {
+			this.prefix = prefix;
+			this.labels = new String[ranks];
+			this.probabilities = new String[ranks];
+			for (int rank = 0; rank < ranks; rank++) {
+				labels[rank] = prefix + "label_" + (rank + 1);
+				probabilities[rank] = prefix + "probability_" + (rank + 1);
+			}
+		}
+
+		String label(int rank) {
+			return rank < labels.length ? labels[rank] : prefix + "label_" + (rank + 1);
+		}
+
+		String probability(int rank) {
+			return rank < probabilities.length ? probabilities[rank] : prefix + "probability_" + (rank + 1);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,437 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.behavior.EventDriven;
+import org.apache.nifi.annotation.behavior.SideEffectFree;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+@EventDriven
+@SupportsBatching
+@SideEffectFree
+@Tags({ "tensorflow", "computer vision", "image", "record" })
+@CapabilityDescription("Run TensorFlow Image Recognition on every record of a FlowFile. Each record holds an image "
+		+ "or the path of an image file, the top labels are written back into the record, and images are run through "
+		+ "the model in batches so throughput scales with records rather than FlowFiles.")
+@SeeAlso({ TensorFlowProcessor.class })
+@WritesAttributes({ @WritesAttribute(attribute = "record.count", description = "Number of records written"),
+		@WritesAttribute(attribute = "mime.type", description = "MIME type given by the Record Writer"),
+		@WritesAttribute(attribute = "tf.unclassified.count", description = "Records whose image could not be "
+				+ "read or decoded, written with a null results field") })
+/**
+ * 
+ * @author tspann
+ *
+ */
+public class TensorFlowRecordProcessor extends AbstractProcessor {
+
+	public static final String ATTRIBUTE_RECORD_COUNT = "record.count";
+	public static final String ATTRIBUTE_UNCLASSIFIED_COUNT = "tf.unclassified.count";
+
+	public static final String RESULT_LABEL = "label";
+	public static final String RESULT_PROBABILITY = "probability";
+	public static final String RESULT_RANK = "rank";
+
+	static final RecordSchema RESULT_SCHEMA = new SimpleRecordSchema(Collections.unmodifiableList(
+			Arrays.asList(new RecordField(RESULT_LABEL, RecordFieldType.STRING.getDataType()),
+					new RecordField(RESULT_PROBABILITY, RecordFieldType.FLOAT.getDataType()),
+					new RecordField(RESULT_RANK, RecordFieldType.INT.getDataType()))));
+
+	public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder().name("Record Reader")
+			.description("Reads the incoming records").identifiesControllerService(RecordReaderFactory.class)
+			.required(true).build();
+
+	public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder().name("Record Writer")
+			.description("Writes the classified records").identifiesControllerService(RecordSetWriterFactory.class)
+			.required(true).build();
+
+	public static final PropertyDescriptor IMAGE_FIELD = new PropertyDescriptor.Builder().name("Image Field")
+			.description("Record field holding the encoded image as bytes, or the path of an image file as a "
+					+ "string. Image bytes are not copied to the output record, a path is.")
+			.required(true).defaultValue("image").addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor RESULTS_FIELD = new PropertyDescriptor.Builder().name("Results Field")
+			.description("Record field the results are written to, an array of records holding the label, the "
+					+ "probability as a percentage and the rank starting at 1")
+			.required(true).defaultValue("results").addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("Inference Batch Size")
+			.description("Maximum number of records classified together in a single model run")
+			.required(true).defaultValue("16").addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+
+	public static final PropertyDescriptor MAX_IMAGE_SIZE = new PropertyDescriptor.Builder()
+			.name("Max Image Size")
+			.description("Images larger than this are not classified and get a null results field")
+			.required(true).defaultValue("50 MB")
+			.addValidator(StandardValidators.createDataSizeBoundsValidator(1, Integer.MAX_VALUE - 16)).build();
+
+	public static final Relationship REL_SUCCESS = new Relationship.Builder().name("success")
+			.description("Records with their results").build();
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("FlowFiles whose records could not be read or written, or whose model could not be loaded")
+			.build();
+
+	private List<PropertyDescriptor> descriptors;
+
+	private Set<Relationship> relationships;
+
+	private volatile TensorFlowService service;
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		descriptors.add(RECORD_READER);
+		descriptors.add(RECORD_WRITER);
+		descriptors.add(TensorFlowProcessor.MODEL_DIR);
+		descriptors.add(TensorFlowProcessor.GRAPH_FILE);
+		descriptors.add(TensorFlowProcessor.LABEL_FILE);
+		descriptors.add(TensorFlowProcessor.INPUT_TENSOR);
+		descriptors.add(TensorFlowProcessor.OUTPUT_TENSOR);
+		descriptors.add(TensorFlowProcessor.INPUT_SIZE);
+		descriptors.add(TensorFlowProcessor.INPUT_MEAN);
+		descriptors.add(TensorFlowProcessor.INPUT_SCALE);
+		descriptors.add(TensorFlowProcessor.CHANNEL_ORDER);
+		descriptors.add(TensorFlowProcessor.OUTPUT_SCALE);
+		descriptors.add(TensorFlowProcessor.OUTPUT_ZERO_POINT);
+		descriptors.add(TensorFlowProcessor.SAVED_MODEL_TAGS);
+		descriptors.add(IMAGE_FIELD);
+		descriptors.add(RESULTS_FIELD);
+		descriptors.add(BATCH_SIZE);
+		descriptors.add(MAX_IMAGE_SIZE);
+		descriptors.add(TensorFlowProcessor.PREPROCESSING_ENGINE);
+		descriptors.add(TensorFlowProcessor.TOP_K);
+		descriptors.add(TensorFlowProcessor.MIN_PROBABILITY);
+		descriptors.add(TensorFlowProcessor.INTRA_OP_THREADS);
+		descriptors.add(TensorFlowProcessor.INTER_OP_THREADS);
+		descriptors.add(TensorFlowProcessor.MAX_CACHED_MODELS);
+		descriptors.add(TensorFlowProcessor.MAX_CACHED_MODEL_SIZE);
+		descriptors.add(TensorFlowProcessor.MODEL_RELOAD_INTERVAL);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		relationships.add(REL_SUCCESS);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) {
+		service = new TensorFlowService(context.getProperty(TensorFlowProcessor.INTRA_OP_THREADS).asInteger(),
+				context.getProperty(TensorFlowProcessor.INTER_OP_THREADS).asInteger(),
+				context.getProperty(TensorFlowProcessor.MAX_CACHED_MODELS).asInteger(),
+				context.getProperty(TensorFlowProcessor.MAX_CACHED_MODEL_SIZE).asDataSize(DataUnit.B).longValue(),
+				context.getProperty(TensorFlowProcessor.MODEL_RELOAD_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS),
+				null, Preprocessor.Engine
+						.valueOf(context.getProperty(TensorFlowProcessor.PREPROCESSING_ENGINE).getValue()),
+				TensorFlowProcessor.modelSignature(context));
+
+		if (!context.getProperty(TensorFlowProcessor.MODEL_DIR).isExpressionLanguagePresent()) {
+			try {
+				service.validateModel(context.getProperty(TensorFlowProcessor.MODEL_DIR).getValue(),
+						context.getProperty(BATCH_SIZE).asInteger());
+			} catch (ModelLoadException e) {
+				getLogger().error("Model is not usable: " + e.getMessage());
+				onStopped();
+				throw e;
+			}
+		}
+	}
+
+	@OnStopped
+	public void onStopped() {
+		if (service != null) {
+			service.close();
+			final NativeResources.Snapshot leaked = service.getNativeResources().snapshot();
+			if (!leaked.isEmpty()) {
+				getLogger().warn("Native memory leaked, still open after stopping: " + leaked);
+			}
+			service = null;
+		}
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+		FlowFile flowFile = session.get();
+		if (flowFile == null) {
+			return;
+		}
+		final FlowFile original = flowFile;
+		final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER)
+				.asControllerService(RecordReaderFactory.class);
+		final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER)
+				.asControllerService(RecordSetWriterFactory.class);
+		final Batch batch = new Batch(service,
+				context.getProperty(TensorFlowProcessor.MODEL_DIR).evaluateAttributeExpressions(flowFile).getValue(),
+				context.getProperty(IMAGE_FIELD).getValue(), context.getProperty(RESULTS_FIELD).getValue(),
+				context.getProperty(BATCH_SIZE).asInteger(),
+				context.getProperty(MAX_IMAGE_SIZE).asDataSize(DataUnit.B).longValue(),
+				context.getProperty(TensorFlowProcessor.TOP_K).asInteger(),
+				context.getProperty(TensorFlowProcessor.MIN_PROBABILITY).asFloat() / 100f);
+		final Map<String, String> attributes = new HashMap<String, String>();
+
+		try {
+			flowFile = session.write(flowFile, new StreamCallback() {
+				@Override
+				public void process(InputStream in, OutputStream out) throws IOException {
+					try (RecordReader reader = readerFactory.createRecordReader(original, in, getLogger())) {
+						final RecordSchema schema = outputSchema(reader.getSchema(), batch.imageField,
+								batch.resultsField);
+						try (RecordSetWriter writer = writerFactory.createWriter(getLogger(),
+								writerFactory.getSchema(original.getAttributes(), schema), out)) {
+							writer.beginRecordSet();
+							Record record;
+							while ((record = reader.nextRecord()) != null) {
+								if (batch.add(record, schema)) {
+									batch.classify(writer);
+								}
+							}
+							batch.classify(writer);
+							final WriteResult result = writer.finishRecordSet();
+							attributes.putAll(result.getAttributes());
+							attributes.put(ATTRIBUTE_RECORD_COUNT, String.valueOf(result.getRecordCount()));
+							attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+						}
+					} catch (MalformedRecordException | SchemaNotFoundException e) {
+						throw new ProcessException("Could not read records: " + e.getMessage(), e);
+					}
+				}
+			});
+		} catch (ProcessException | ModelLoadException e) {
+			getLogger().error("Unable to classify records of {}: {}", new Object[] { flowFile, e.getMessage() }, e);
+			session.transfer(flowFile, REL_FAILURE);
+			return;
+		}
+
+		attributes.put(ATTRIBUTE_UNCLASSIFIED_COUNT, String.valueOf(batch.unclassified));
+		flowFile = session.putAllAttributes(flowFile, attributes);
+		session.adjustCounter("Records Classified", batch.classified, false);
+		session.transfer(flowFile, REL_SUCCESS);
+	}
+
+	/**
+	 * the incoming fields, less image bytes and any existing results field,
+	 * followed by the results
+	 */
+	static RecordSchema outputSchema(RecordSchema input, String imageField, String resultsField) {
+		final List<RecordField> fields = new ArrayList<RecordField>();
+		for (RecordField field : input.getFields()) {
+			if (field.getFieldName().equals(resultsField) || (field.getFieldName().equals(imageField)
+					&& field.getDataType().getFieldType() == RecordFieldType.ARRAY)) {
+				continue;
+			}
+			fields.add(field);
+		}
+		fields.add(new RecordField(resultsField,
+				RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.RECORD.getRecordDataType(RESULT_SCHEMA)),
+				true));
+		return new SimpleRecordSchema(fields);
+	}
+
+	/**
+	 * Records waiting for one model run, along with the settings for the
+	 * FlowFile they came from.
+	 */
+	private final class Batch {
+		final TensorFlowService service;
+		final String modelDir;
+		final String imageField;
+		final String resultsField;
+		final int size;
+		final long maxImageSize;
+		final int topK;
+		final float minProbability;
+
+		final List<Map<String, Object>> records;
+		final List<ImageContent> images;
+		final int[] imageOf;
+		RecordSchema schema;
+		int classified;
+		int unclassified;
+
+		Batch(TensorFlowService service, String modelDir, String imageField, String resultsField, int size,
+				long maxImageSize, int topK, float minProbability) {
+			this.service = service;
+			this.modelDir = modelDir;
+			this.imageField = imageField;
+			this.resultsField = resultsField;
+			this.size = size;
+			this.maxImageSize = maxImageSize;
+			this.topK = topK;
+			this.minProbability = minProbability;
+			this.records = new ArrayList<Map<String, Object>>(size);
+			this.images = new ArrayList<ImageContent>(size);
+			this.imageOf = new int[size];
+		}
+
+		/**
+		 * @return true once the batch is full
+		 */
+		boolean add(Record record, RecordSchema schema) {
+			this.schema = schema;
+			final Map<String, Object> values = new LinkedHashMap<String, Object>();
+			for (String field : schema.getFieldNames()) {
+				values.put(field, record.getValue(field));
+			}
+			byte[] image = null;
+			try {
+				image = imageBytes(record.getValue(imageField));
+			} catch (IOException e) {
+				getLogger().warn("Unable to read image of record " + (classified + unclassified + records.size())
+						+ ": " + e.getMessage());
+			}
+			imageOf[records.size()] = image == null ? -1 : images.size();
+			if (image != null) {
+				images.add(ImageContent.wrap(image));
+			}
+			records.add(values);
+			return records.size() == size;
+		}
+
+		void classify(RecordSetWriter writer) throws IOException {
+			if (records.isEmpty()) {
+				return;
+			}
+			final List<List<InceptionResult>> results = images.isEmpty() ? Collections.emptyList()
+					: service.getInceptionBatch(images, modelDir, topK, minProbability);
+			for (int i = 0; i < records.size(); i++) {
+				final Map<String, Object> values = records.get(i);
+				final List<InceptionResult> imageResults = imageOf[i] < 0 ? null : results.get(imageOf[i]);
+				if (imageResults == null) {
+					unclassified++;
+				} else {
+					values.put(resultsField, resultRecords(imageResults));
+					classified++;
+				}
+				writer.write(new MapRecord(schema, values));
+			}
+			records.clear();
+			images.clear();
+		}
+
+		private byte[] imageBytes(Object value) throws IOException {
+			if (value == null) {
+				return null;
+			}
+			if (value instanceof byte[]) {
+				return checkSize((byte[]) value);
+			}
+			if (value instanceof ByteBuffer) {
+				final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+				final byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				return checkSize(bytes);
+			}
+			if (value instanceof Object[]) {
+				final Object[] array = (Object[]) value;
+				final byte[] bytes = new byte[array.length];
+				for (int i = 0; i < array.length; i++) {
+					bytes[i] = ((Number) array[i]).byteValue();
+				}
+				return checkSize(bytes);
+			}
+			if (value instanceof String) {
+				final Path path = Paths.get((String) value);
+				if (Files.size(path) > maxImageSize) {
+					throw new IOException(path + " is larger than the " + maxImageSize + " byte maximum");
+				}
+				return Files.readAllBytes(path);
+			}
+			throw new IOException("Unsupported image value of type " + value.getClass().getName());
+		}
+
+		private byte[] checkSize(byte[] bytes) throws IOException {
+			if (bytes.length > maxImageSize) {
+				throw new IOException("Image is larger than the " + maxImageSize + " byte maximum");
+			}
+			return bytes;
+		}
+	}
+
+	static Object[] resultRecords(List<InceptionResult> results) {
+		final Object[] records = new Object[results.size()];
+		for (int i = 0; i < records.length; i++) {
+			final InceptionResult result = results.get(i);
+			final Map<String, Object> values = new HashMap<String, Object>();
+			values.put(RESULT_LABEL, result.getLabel());
+			values.put(RESULT_PROBABILITY, result.getScore() * 100f);
+			values.put(RESULT_RANK, result.getDisplayRank());
+			records[i] = new MapRecord(RESULT_SCHEMA, values);
+		}
+		return records;
+	}
+}
@@ -14,35 +14,57 @@ See the License for the specific language governing permissions and
 limitations under the License.
 ==============================================================================*/
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
+import javax.imageio.ImageIO;
+
 import org.apache.commons.lang3.ArrayUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tensorflow.DataType;
 import org.tensorflow.Graph;
 import org.tensorflow.Output;
+import org.tensorflow.SavedModelBundle;
 import org.tensorflow.Session;
 import org.tensorflow.Tensor;
 import org.tensorflow.TensorFlow;
 import org.tensorflow.types.UInt8;
+
+import com.dataflowdeveloper.processors.process.NativeResources.TensorHandle;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * copied from TensorFlow example
@@ -55,37 +77,388 @@ public class TensorFlowService {
 	public static final String IMAGENET_COMP_GRAPH_LABEL_STRINGS_TXT = "imagenet_comp_graph_label_strings.txt";
 	public static final String TENSORFLOW_INCEPTION_GRAPH_PB = "tensorflow_inception_graph.pb";
 
+	// Some constants specific to the pre-trained model at:
+	// https://storage.googleapis.com/download.tensorflow.org/models/inception5h.zip
+	//
+	// - The model was trained with images scaled to 224x224 pixels.
+	// - The colors, represented as R, G, B in 1-byte each were converted to
+	// float using (value - Mean)/Scale.
+	public static final int INPUT_HEIGHT = 224;
+	public static final int INPUT_WIDTH = 224;
+	public static final float INPUT_MEAN = 117f;
+	public static final float INPUT_SCALE = 1f;
+
+	public static final String INPUT_OPERATION = "input";
+	public static final String OUTPUT_OPERATION = "output";
+
+	public static final int DEFAULT_TOP_K = 5;
+	public static final int DEFAULT_MAX_MODELS = 4;
+	public static final long DEFAULT_MAX_MODEL_BYTES = 1024L * 1024 * 1024;
+	public static final long DEFAULT_RELOAD_CHECK_MILLIS = 10000L;
+
+	private static final long MAX_POOLED_INPUT_BYTES = 64L * 1024 * 1024;
+	/** most input one model run is given, larger tiled batches are split */
+	public static final long MAX_RUN_BYTES = 1L << 30;
+	/** most images in the run that warms up a model */
+	public static final int MAX_WARM_UP_IMAGES = 4;
+
 	private final Logger logger = LoggerFactory.getLogger(TensorFlowService.class);
-	private Map<Path, byte[]> modelCache = new HashMap<Path, byte[]>();
-	private Map<Path, List<String>> labelCache = new HashMap<Path, List<String>>();
+	private final byte[] sessionConfig;
+	private final Preprocessor.Engine engine;
+	private final ModelSignature defaultSignature;
+	private final Map<String, Preprocessor> preprocessors = new ConcurrentHashMap<String, Preprocessor>();
+	// tiles and frames for models whose engine cannot, by preprocessing key
+	private final Map<String, JavaImagePreprocessor> javaPreprocessors =
+			new ConcurrentHashMap<String, JavaImagePreprocessor>();
+	private final DirectBufferPool inputBuffers = new DirectBufferPool(MAX_POOLED_INPUT_BYTES);
+	private final ModelCache modelCache;
+	private final ResultCache resultCache;
+	private final ThreadLocal<TopK> topK = ThreadLocal.withInitial(TopK::new);
+	private final NativeResources nativeResources = new NativeResources();
+	// runs the extra models of a fan-out next to the calling thread
+	private final ExecutorService modelRuns = Executors.newCachedThreadPool(runnable -> {
+		final Thread thread = new Thread(runnable, "TensorFlowService model run");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public TensorFlowService() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param intraOpThreads
+	 *            threads used inside a single op, 0 lets TensorFlow decide
+	 * @param interOpThreads
+	 *            threads used to run independent ops, 0 lets TensorFlow decide
+	 */
+	public TensorFlowService(int intraOpThreads, int interOpThreads) {
+		this(intraOpThreads, interOpThreads, DEFAULT_MAX_MODELS, DEFAULT_MAX_MODEL_BYTES,
+				DEFAULT_RELOAD_CHECK_MILLIS);
+	}
+
+	/**
+	 * @param intraOpThreads
+	 *            threads used inside a single op, 0 lets TensorFlow decide
+	 * @param interOpThreads
+	 *            threads used to run independent ops, 0 lets TensorFlow decide
+	 * @param maxModels
+	 *            most models kept loaded at once
+	 * @param maxModelBytes
+	 *            most graph bytes kept loaded at once
+	 * @param reloadCheckMillis
+	 *            how often a loaded model's graph file is checked for changes
+	 */
+	public TensorFlowService(int intraOpThreads, int interOpThreads, int maxModels, long maxModelBytes,
+			long reloadCheckMillis) {
+		this(intraOpThreads, interOpThreads, maxModels, maxModelBytes, reloadCheckMillis, null);
+	}
+
+	/**
+	 * @param intraOpThreads
+	 *            threads used inside a single op, 0 lets TensorFlow decide
+	 * @param interOpThreads
+	 *            threads used to run independent ops, 0 lets TensorFlow decide
+	 * @param maxModels
+	 *            most models kept loaded at once
+	 * @param maxModelBytes
+	 *            most graph bytes kept loaded at once
+	 * @param reloadCheckMillis
+	 *            how often a loaded model's graph file is checked for changes
+	 * @param resultCache
+	 *            reuses results for images seen before, null to always run the
+	 *            model
+	 */
+	public TensorFlowService(int intraOpThreads, int interOpThreads, int maxModels, long maxModelBytes,
+			long reloadCheckMillis, ResultCache resultCache) {
+		this(intraOpThreads, interOpThreads, maxModels, maxModelBytes, reloadCheckMillis, resultCache,
+				Preprocessor.Engine.TENSORFLOW);
+	}
+
+	/**
+	 * @param intraOpThreads
+	 *            threads used inside a single op, 0 lets TensorFlow decide
+	 * @param interOpThreads
+	 *            threads used to run independent ops, 0 lets TensorFlow decide
+	 * @param maxModels
+	 *            most models kept loaded at once
+	 * @param maxModelBytes
+	 *            most graph bytes kept loaded at once
+	 * @param reloadCheckMillis
+	 *            how often a loaded model's graph file is checked for changes
+	 * @param resultCache
+	 *            reuses results for images seen before, null to always run the
+	 *            model
+	 * @param engine
+	 *            decodes and resizes images
+	 */
+	public TensorFlowService(int intraOpThreads, int interOpThreads, int maxModels, long maxModelBytes,
+			long reloadCheckMillis, ResultCache resultCache, Preprocessor.Engine engine) {
+		this(intraOpThreads, interOpThreads, maxModels, maxModelBytes, reloadCheckMillis, resultCache, engine,
+				ModelSignature.DEFAULT);
+	}
 
 	/**
-	 * cache labels
+	 * @param intraOpThreads
+	 *            threads used inside a single op, 0 lets TensorFlow decide
+	 * @param interOpThreads
+	 *            threads used to run independent ops, 0 lets TensorFlow decide
+	 * @param maxModels
+	 *            most models kept loaded at once
+	 * @param maxModelBytes
+	 *            most graph bytes kept loaded at once
+	 * @param reloadCheckMillis
+	 *            how often a loaded model's graph file is checked for changes
+	 * @param resultCache
+	 *            reuses results for images seen before, null to always run the
+	 *            model
+	 * @param engine
+	 *            decodes and resizes images
+	 * @param defaultSignature
+	 *            how models are fed unless their directory has a
+	 *            {@value ModelSignature#DESCRIPTOR_FILE}
+	 */
+	public TensorFlowService(int intraOpThreads, int interOpThreads, int maxModels, long maxModelBytes,
+			long reloadCheckMillis, ResultCache resultCache, Preprocessor.Engine engine,
+			ModelSignature defaultSignature) {
+		this.resultCache = resultCache;
+		this.sessionConfig = configProto(intraOpThreads, interOpThreads);
+		this.engine = engine;
+		this.defaultSignature = defaultSignature;
+		this.modelCache = new ModelCache(maxModels, maxModelBytes, reloadCheckMillis,
+				dir -> signature(dir).graphPath(dir), this::loadModel);
+	}
+
+	/**
+	 * get the loaded model for a directory, the graph is imported and the
+	 * session opened once and reused for every image until the model is evicted
+	 * or its graph file changes. The caller must {@link TensorFlowModel#release()}
+	 * the model when done with it.
 	 * 
-	 * @param path
+	 * @param modelDir
 	 * @return
 	 */
-	private List<String> getOrCreateLabels(Path path) {
-		if (labelCache.containsKey(path)) {
-			return labelCache.get(path);
+	public TensorFlowModel acquireModel(String modelDir) {
+		return modelCache.acquire(Paths.get(modelDir));
+	}
+
+	/**
+	 * @return model cache counters
+	 */
+	public ModelCache.Stats getModelCacheStats() {
+		return modelCache.getStats();
+	}
+
+	/**
+	 * @return the tensors, graphs and sessions this service holds, all of
+	 *         them freed once it is closed and no run is left
+	 */
+	public NativeResources getNativeResources() {
+		return nativeResources;
+	}
+
+	/**
+	 * @return the result cache, null when disabled
+	 */
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * @param dir
+	 *            model directory
+	 * @return how the model in the directory is fed
+	 * @throws ModelLoadException
+	 *             when its descriptor cannot be read
+	 */
+	public ModelSignature signature(Path dir) {
+		return defaultSignature.forDirectory(dir);
+	}
+
+	private TensorFlowModel loadModel(Path dir) {
+		final ModelSignature signature = signature(dir);
+		final List<String> labels = readAllLines(signature.labelPath(dir));
+		final TensorFlowModel model;
+		if (signature.isSavedModel(dir)) {
+			model = new TensorFlowModel(dir, loadSavedModel(dir, signature), labels, sizeOf(dir), signature,
+					nativeResources);
+		} else {
+			model = new TensorFlowModel(dir, readAllBytes(signature.graphPath(dir)), labels, sessionConfig,
+					signature, nativeResources);
+		}
+		logger.debug(String.format("loaded model %s %s", new Object[] { model, signature }));
+		return model;
+	}
+
+	/**
+	 * SavedModelBundle in TensorFlow 1.6 takes no session config, so a bundle
+	 * runs with TensorFlow's default thread pools
+	 */
+	private static SavedModelBundle loadSavedModel(Path dir, ModelSignature signature) {
+		try {
+			return SavedModelBundle.load(dir.toString(), signature.getTags());
+		} catch (RuntimeException e) {
+			throw new ModelLoadException("SavedModel " + dir + " with tags " + Arrays.toString(signature.getTags())
+					+ " could not be loaded: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return bytes in every file of the directory, a SavedModel's weights are
+	 *         in its variables
+	 */
+	private static long sizeOf(Path dir) {
+		try (Stream<Path> files = Files.walk(dir)) {
+			return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+		} catch (IOException e) {
+			throw new ModelLoadException("Failed to list [" + dir + "]: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return the preprocessor producing the model's input, shared by models
+	 *         that are fed the same way
+	 */
+	private Preprocessor preprocessor(TensorFlowModel model) {
+		final ModelSignature signature = model.getSignature();
+		return preprocessors.computeIfAbsent(signature.preprocessingKey(),
+				key -> engine.create(signature, sessionConfig, nativeResources));
+	}
+
+	/**
+	 * @return the preprocessor cutting the model's tiles and resizing decoded
+	 *         frames, the model's own when it decodes in Java
+	 */
+	private JavaImagePreprocessor javaPreprocessor(TensorFlowModel model) {
+		if (engine == Preprocessor.Engine.JAVA) {
+			return (JavaImagePreprocessor) preprocessor(model);
 		}
-		labelCache.put(path, readAllLinesOrExit(path));
-		return labelCache.get(path);
+		final ModelSignature signature = model.getSignature();
+		return javaPreprocessors.computeIfAbsent(signature.preprocessingKey(),
+				key -> (JavaImagePreprocessor) Preprocessor.Engine.JAVA.create(signature, sessionConfig));
 	}
 
 	/**
-	 * cache path bytes
+	 * Load a model and run a warm-up batch of a small bundled image through it,
+	 * so a bad model is found when the processor is scheduled rather than on the
+	 * first FlowFile, and the first real batch does not pay for TensorFlow's
+	 * lazy kernel setup. The warm-up batch holds at most
+	 * {@link #MAX_WARM_UP_IMAGES} copies of the image.
 	 * 
-	 * @param path
+	 * @param modelDir
+	 * @param batchSize
+	 *            images, or tiles, in the largest run
+	 * @throws ModelLoadException
+	 *             when the model cannot be loaded, its output is not [batch,
+	 *             N], it has more labels than outputs or a run of batchSize
+	 *             images is more than {@link #MAX_RUN_BYTES}
+	 */
+	public void validateModel(String modelDir, int batchSize) {
+		TensorFlowModel model = acquireModel(modelDir);
+		try {
+			runBytes(model, batchSize);
+			final int images = Math.min(batchSize, MAX_WARM_UP_IMAGES);
+			final int imageBytes = model.getImageBytes();
+			final ByteBuffer batch = ByteBuffer.allocate(images * imageBytes).order(ByteOrder.nativeOrder());
+			try (ImageContent image = ImageContent.wrap(warmUpImage())) {
+				preprocess(model, image, batch);
+			}
+			for (int i = 1; i < images; i++) {
+				batch.put(batch.array(), 0, imageBytes);
+			}
+			batch.flip();
+			try (TensorHandle<?> input = inputTensor(model, images, batch)) {
+				final int outputs = executeInceptionGraph(model, input.get())[0].length;
+				final int labels = model.getLabels().size();
+				if (labels > outputs) {
+					throw new ModelLoadException(String.format("%s has %d labels but the model only has %d outputs",
+							modelDir, labels, outputs));
+				}
+				if (labels < outputs) {
+					logger.warn(String.format("%s has %d labels for %d outputs, the rest are reported by index",
+							modelDir, labels, outputs));
+				}
+			}
+		} catch (ModelLoadException e) {
+			throw e;
+		} catch (IOException | RuntimeException e) {
+			throw new ModelLoadException("Model " + modelDir + " failed its warm-up run: " + e.getMessage(), e);
+		} finally {
+			model.release();
+		}
+	}
+
+	/**
+	 * @return bytes of input a run of the given number of images takes
+	 * @throws ModelLoadException
+	 *             when that is more than {@link #MAX_RUN_BYTES}
+	 */
+	private static int runBytes(TensorFlowModel model, long images) {
+		final long bytes = images * model.getImageBytes();
+		if (bytes > MAX_RUN_BYTES) {
+			throw new ModelLoadException(String.format(
+					"A run of %d images of %s needs %d bytes of input, more than the %d a model run may take",
+					images, model.getDirectory(), bytes, MAX_RUN_BYTES));
+		}
+		return (int) bytes;
+	}
+
+	/**
+	 * @return a small encoded JPEG
+	 */
+	private static byte[] warmUpImage() {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB), "jpg", out);
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * close every cached graph and session
+	 */
+	public void close() {
+		modelRuns.shutdown();
+		modelCache.close();
+		for (Preprocessor preprocessor : preprocessors.values()) {
+			preprocessor.close();
+		}
+		preprocessors.clear();
+		javaPreprocessors.clear();
+	}
+
+	/**
+	 * Serialized ConfigProto with the given thread pool sizes. Only the two
+	 * varint fields are needed, so they are encoded by hand rather than pulling
+	 * in the protobuf classes.
+	 * 
+	 * @param intraOpThreads
+	 * @param interOpThreads
 	 * @return
 	 */
-	private byte[] getOrCreate(Path path) {
-		if (modelCache.containsKey(path)) {
-			return modelCache.get(path);
+	static byte[] configProto(int intraOpThreads, int interOpThreads) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (intraOpThreads > 0) {
+			// intra_op_parallelism_threads = 2
+			writeVarint(out, 2 << 3);
+			writeVarint(out, intraOpThreads);
 		}
-		byte[] graphDef = readAllBytesOrExit(path);
-		modelCache.put(path, graphDef);
-		return modelCache.get(path);
+		if (interOpThreads > 0) {
+			// inter_op_parallelism_threads = 5
+			writeVarint(out, 5 << 3);
+			writeVarint(out, interOpThreads);
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
 	}
 
 	/**
@@ -96,118 +469,1072 @@ public class TensorFlowService {
 	 * @return map
 	 */
 	public List<InceptionResult> getInception(byte[] imageBytes, String modelDir) {
+		return getInception(imageBytes, modelDir, DEFAULT_TOP_K, 0f);
+	}
+
+	/**
+	 * get inception
+	 * 
+	 * @param imageBytes
+	 * @param modelDir
+	 * @param topK
+	 *            most probable labels to return
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @return results ordered by rank
+	 */
+	public List<InceptionResult> getInception(byte[] imageBytes, String modelDir, int topK, float minProbability) {
 
-		byte[] graphDef = getOrCreate(Paths.get(modelDir, TENSORFLOW_INCEPTION_GRAPH_PB));
-		List<String> labels = getOrCreateLabels(Paths.get(modelDir, IMAGENET_COMP_GRAPH_LABEL_STRINGS_TXT));
-
-		logger.debug(String.format("getInception: %d bytes %s",
-				new Object[] { imageBytes.length, Paths.get(modelDir, TENSORFLOW_INCEPTION_GRAPH_PB) }));
-
-		List<InceptionResult> results = new ArrayList<>();
-		
-		try (Tensor<Float> image = constructAndExecuteGraphToNormalizeImage(imageBytes)) {
-			float[] labelProbabilities = executeInceptionGraph(graphDef, image);
-			float[] large = new float[labelProbabilities.length];
-			float[] labelProbabilities2 = labelProbabilities.clone();
-		    float max = 0;
-		    int index;
-		    String label = null;
-		    
-		    for (int j = 0; j < 5; j++) {
-		        max = labelProbabilities2[0];
-		        index = 0;
-		        for (int i = 1; i < labelProbabilities2.length; i++) {
-		            if (max < labelProbabilities2[i]) {
-		                max = labelProbabilities2[i];
-		                label = labels.get(i);
-		                index = i;
-		            } 
-		        }
-		        large[j] = max;
-		        labelProbabilities2[index] = Integer.MIN_VALUE;
-		        results.add(new InceptionResult(label, String.format("%.2f%%", ( large[j] )* 100f), j));
-		    }
-		    
-		    return results;
+		TensorFlowModel model = acquireModel(modelDir);
 
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("getInception: %d bytes %s", new Object[] { imageBytes.length, modelDir }));
+		}
+
+		ResultCache.Key key = null;
+		if (resultCache != null) {
+			key = ResultCache.key(model, ByteBuffer.wrap(imageBytes), topK, minProbability);
+			List<InceptionResult> cached = resultCache.get(key);
+			if (cached != null) {
+				model.release();
+				return cached;
+			}
+		}
+
+		try (TensorHandle<?> image = inputTensor(model, 1, preprocess(model, imageBytes))) {
+			List<InceptionResult> results = topResults(executeInceptionGraph(model, image.get())[0],
+					model.getLabels(), topK, minProbability);
+			if (key != null) {
+				resultCache.put(key, results);
+			}
+			return results;
 		} catch (Exception e) {
 			logger.error("Failed in tensorflow", e);
 			throw (e);
+		} finally {
+			model.release();
 		}
 	}
 
+	private ByteBuffer preprocess(TensorFlowModel model, byte[] imageBytes) {
+		final ByteBuffer input = ByteBuffer.allocate(model.getImageBytes()).order(ByteOrder.nativeOrder());
+		try {
+			preprocess(model, ImageContent.wrap(imageBytes), input);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to decode image: " + e.getMessage(), e);
+		}
+		input.flip();
+		return input;
+	}
+
 	/**
+	 * write one image in the model's input type: normalized floats, or pixels
+	 * for a quantized model
 	 * 
-	 * @param imageBytes
-	 * @return
+	 * @param model
+	 * @param image
+	 * @param out
+	 *            native order, advanced past the image
+	 * @throws IOException
+	 *             when the image cannot be decoded, nothing is written
+	 */
+	private void preprocess(TensorFlowModel model, ImageContent image, ByteBuffer out) throws IOException {
+		final Preprocessor preprocessor = preprocessor(model);
+		if (model.getInputType() == DataType.UINT8) {
+			preprocessor.pixels(image, out);
+		} else {
+			final FloatBuffer floats = out.asFloatBuffer();
+			preprocessor.normalize(image, floats);
+			out.position(out.position() + floats.position() * 4);
+		}
+	}
+
+	/**
+	 * @param model
+	 * @param images
+	 *            images in the input
+	 * @param input
+	 *            the images in the model's input type and native order
+	 * @return [images, H, W, 3] tensor to be closed by the caller
+	 */
+	private TensorHandle<?> inputTensor(TensorFlowModel model, int images, ByteBuffer input) {
+		final ModelSignature signature = model.getSignature();
+		final long[] shape = new long[] { images, signature.getHeight(), signature.getWidth(), 3 };
+		if (model.getInputType() == DataType.UINT8) {
+			return nativeResources.track(Tensor.create(UInt8.class, shape, input));
+		}
+		return nativeResources.track(Tensor.create(Float.class, shape, input));
+	}
+
+	/**
+	 * classify a batch of images with a single model run, images that cannot be
+	 * decoded get a null entry and do not fail the rest of the batch
+	 * 
+	 * @param images
+	 * @param modelDir
+	 * @return results in the order of images
+	 */
+	public List<List<InceptionResult>> getInception(List<byte[]> images, String modelDir) {
+		return getInception(images, modelDir, DEFAULT_TOP_K, 0f);
+	}
+
+	/**
+	 * classify a batch of images with a single model run, images that cannot be
+	 * decoded get a null entry and do not fail the rest of the batch
+	 * 
+	 * @param images
+	 * @param modelDir
+	 * @param topK
+	 *            most probable labels to return per image
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @return results in the order of images
+	 */
+	public List<List<InceptionResult>> getInception(List<byte[]> images, String modelDir, int topK,
+			float minProbability) {
+		List<ImageContent> contents = new ArrayList<ImageContent>(images.size());
+		for (byte[] image : images) {
+			contents.add(ImageContent.wrap(image));
+		}
+		return getInceptionBatch(contents, modelDir, topK, minProbability);
+	}
+
+	/**
+	 * classify a batch of images with a single model run, images that cannot be
+	 * decoded get a null entry and do not fail the rest of the batch
+	 * 
+	 * @param images
+	 *            encoded images, still owned by the caller
+	 * @param modelDir
+	 * @param topK
+	 *            most probable labels to return per image
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @return results in the order of images
+	 */
+	public List<List<InceptionResult>> getInceptionBatch(List<ImageContent> images, String modelDir, int topK,
+			float minProbability) {
+		return getInceptionBatch(images, modelDir, topK, minProbability, new BatchTimings(images.size()));
+	}
+
+	/**
+	 * classify a batch of images with a single model run, images that cannot be
+	 * decoded get a null entry and do not fail the rest of the batch
+	 * 
+	 * @param images
+	 *            encoded images, still owned by the caller
+	 * @param modelDir
+	 * @param topK
+	 *            most probable labels to return per image
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @param timings
+	 *            receives the time spent in each stage
+	 * @return results in the order of images
+	 */
+	public List<List<InceptionResult>> getInceptionBatch(List<ImageContent> images, String modelDir, int topK,
+			float minProbability, BatchTimings timings) {
+		return runBatch(prepareBatch(images, modelDir, topK, minProbability, timings));
+	}
+
+	/**
+	 * first half of {@link #getInceptionBatch}: acquire the model, take what
+	 * the result cache already has and decode the rest. Splitting the batch
+	 * this way lets the next batch decode while this one runs.
+	 * 
+	 * @param images
+	 *            encoded images, still owned by the caller and only read
+	 *            during this call
+	 * @param modelDir
+	 * @param topK
+	 *            most probable labels to return per image
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @param timings
+	 *            receives the time spent in each stage
+	 * @return the batch to run
 	 */
-	private static Tensor<Float> constructAndExecuteGraphToNormalizeImage(byte[] imageBytes) {
-		try (Graph g = new Graph()) {
-			GraphBuilder b = new GraphBuilder(g);
-			// Some constants specific to the pre-trained model at:
-			// https://storage.googleapis.com/download.tensorflow.org/models/inception5h.zip
-			//
-			// - The model was trained with images scaled to 224x224 pixels.
-			// - The colors, represented as R, G, B in 1-byte each were converted to
-			// float using (value - Mean)/Scale.
-			final int H = 224;
-			final int W = 224;
-			final float mean = 117f;
-			final float scale = 1f;
-
-			// Since the graph is being constructed once per execution here, we can use a
-			// constant for the
-			// input image. If the graph were to be re-used for multiple input images, a
-			// placeholder would
-			// have been more appropriate.
-			final Output<String> input = b.constant("input", imageBytes);
-			final Output<Float> output = b
-					.div(b.sub(
-							b.resizeBilinear(b.expandDims(b.cast(b.decodeJpeg(input, 3), Float.class),
-									b.constant("make_batch", 0)), b.constant("size", new int[] { H, W })),
-							b.constant("mean", mean)), b.constant("scale", scale));
-			try (Session s = new Session(g)) {
-				return s.runner().fetch(output.op().name()).run().get(0).expect(Float.class);
-			}
-		}
-	}
-
-	private static float[] executeInceptionGraph(byte[] graphDef, Tensor<Float> image) {
-		try (Graph g = new Graph()) {
-			g.importGraphDef(graphDef);
-			try (Session s = new Session(g);
-					Tensor<Float> result = s.runner().feed("input", image).fetch("output").run().get(0)
-							.expect(Float.class)) {
-				final long[] rshape = result.shape();
-				if (result.numDimensions() != 2 || rshape[0] != 1) {
-					throw new RuntimeException(String.format(
-							"Expected model to produce a [1 N] shaped tensor where N is the number of labels, instead it produced one with shape %s",
-							Arrays.toString(rshape)));
+	public PreparedBatch prepareBatch(List<ImageContent> images, String modelDir, int topK, float minProbability,
+			BatchTimings timings) {
+
+		if (logger.isDebugEnabled()) {
+			logger.debug(String.format("getInception: batch of %d %s", new Object[] { images.size(), modelDir }));
+		}
+
+		List<List<InceptionResult>> results = new ArrayList<>(Collections.nCopies(images.size(),
+				(List<InceptionResult>) null));
+		TensorFlowModel model = acquireModel(modelDir);
+		ByteBuffer buffer = null;
+		try {
+			ResultCache.Key[] keys = new ResultCache.Key[images.size()];
+			int[] rows = new int[images.size()];
+			int decoded = 0;
+			for (int i = 0; i < images.size(); i++) {
+				if (resultCache != null) {
+					keys[i] = ResultCache.key(model, images.get(i).data(), topK, minProbability);
+					List<InceptionResult> cached = resultCache.get(keys[i]);
+					if (cached != null) {
+						results.set(i, cached);
+						timings.setCached(i);
+						continue;
+					}
+				}
+				if (buffer == null) {
+					buffer = inputBuffers.acquire(runBytes(model, images.size() - i));
+				}
+				final long start = System.nanoTime();
+				try {
+					preprocess(model, images.get(i), buffer);
+					rows[decoded++] = i;
+				} catch (Exception e) {
+					logger.warn("Failed to decode image " + i + " of batch: " + e.getMessage());
 				}
-				int nlabels = (int) rshape[1];
-				return result.copyTo(new float[1][nlabels])[0];
+				timings.setPreprocessNanos(i, System.nanoTime() - start);
 			}
+			timings.setRunSize(decoded);
+			if (buffer != null) {
+				buffer.flip();
+			}
+			return new PreparedBatch(model, results, keys, rows, decoded, buffer, inputBuffers, topK,
+					minProbability, timings);
+		} catch (RuntimeException e) {
+			model.release();
+			if (buffer != null) {
+				inputBuffers.release(buffer);
+			}
+			throw e;
 		}
 	}
 
-	private static byte[] readAllBytesOrExit(Path path) {
+	/**
+	 * second half of {@link #getInceptionBatch}: run the model over the decoded
+	 * images and release it
+	 * 
+	 * @param prepared
+	 * @return results in the order of images
+	 */
+	public List<List<InceptionResult>> runBatch(PreparedBatch prepared) {
+		final List<List<InceptionResult>> results = prepared.results;
+		if (prepared.decoded == 0) {
+			prepared.close();
+			return results;
+		}
+		final TensorFlowModel model = prepared.model;
+		final BatchTimings timings = prepared.timings;
+		try (TensorHandle<?> input = inputTensor(model, prepared.decoded, prepared.input)) {
+			final long start = System.nanoTime();
+			float[][] labelProbabilities = executeInceptionGraph(model, input.get());
+			final long ran = System.nanoTime();
+			timings.setInferenceNanos(ran - start);
+			for (int j = 0; j < prepared.decoded; j++) {
+				final int row = prepared.rows[j];
+				List<InceptionResult> imageResults = topResults(labelProbabilities[j], model.getLabels(),
+						prepared.topK, prepared.minProbability);
+				results.set(row, imageResults);
+				if (resultCache != null) {
+					resultCache.put(prepared.keys[row], imageResults);
+				}
+			}
+			timings.setPostProcessNanos(System.nanoTime() - ran);
+			return results;
+		} catch (Exception e) {
+			logger.error("Failed in tensorflow", e);
+			throw (e);
+		} finally {
+			prepared.close();
+		}
+	}
+
+	/**
+	 * classify every image by the tiles of a {@link Tiling} rather than one
+	 * resize of the whole frame. Each image is decoded once, with ImageIO
+	 * whatever the preprocessing engine since TensorFlow's resize only takes
+	 * the whole frame, and the tiles of every image in the batch go through a
+	 * single model run, or as few runs of whole images as keep each within
+	 * {@link #MAX_RUN_BYTES}. Images that cannot be decoded get a null entry
+	 * and do not fail the rest of the batch. Tiled results are not cached.
+	 * 
+	 * @param images
+	 *            encoded images, still owned by the caller
+	 * @param modelDir
+	 * @param tiling
+	 *            crops to classify and how to pool them
+	 * @param topK
+	 *            most probable labels to return per image and per tile
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @param timings
+	 *            receives the time spent in each stage, the run size counts
+	 *            images rather than tiles
+	 * @return results in the order of images
+	 * @throws ModelLoadException
+	 *             when the model cannot be loaded or one image's tiles are
+	 *             more than a run may take
+	 */
+	public List<Tiling.Result> getInceptionTiled(List<ImageContent> images, String modelDir, Tiling tiling,
+			int topK, float minProbability, BatchTimings timings) {
+		final List<Tiling.Result> results = new ArrayList<>(Collections.nCopies(images.size(), (Tiling.Result) null));
+		final TensorFlowModel model = acquireModel(modelDir);
+		ByteBuffer buffer = null;
 		try {
-			return Files.readAllBytes(path);
+			final int tiles = tiling.size();
+			final JavaImagePreprocessor tiler = javaPreprocessor(model);
+			// as many images as fit in a run, a run has every tile of an image
+			final int perRun = (int) Math.max(1,
+					Math.min(images.size(), MAX_RUN_BYTES / ((long) tiles * model.getImageBytes())));
+			buffer = inputBuffers.acquire(runBytes(model, (long) perRun * tiles));
+			final int[] rows = new int[perRun];
+			final List<String> labels = model.getLabels();
+			int runSize = 0;
+			long inferenceNanos = 0;
+			long postProcessNanos = 0;
+			for (int from = 0; from < images.size(); from += perRun) {
+				buffer.clear();
+				int decoded = 0;
+				for (int i = from; i < Math.min(images.size(), from + perRun); i++) {
+					final long start = System.nanoTime();
+					try {
+						if (model.getInputType() == DataType.UINT8) {
+							tiler.pixelsTiles(images.get(i), tiling, buffer);
+						} else {
+							final FloatBuffer floats = buffer.asFloatBuffer();
+							tiler.normalizeTiles(images.get(i), tiling, floats);
+							buffer.position(buffer.position() + floats.position() * 4);
+						}
+						rows[decoded++] = i;
+					} catch (Exception e) {
+						logger.warn("Failed to decode image " + i + " of batch: " + e.getMessage());
+					}
+					timings.setPreprocessNanos(i, System.nanoTime() - start);
+				}
+				runSize += decoded;
+				if (decoded == 0) {
+					continue;
+				}
+				buffer.flip();
+				try (TensorHandle<?> input = inputTensor(model, decoded * tiles, buffer)) {
+					final long start = System.nanoTime();
+					final float[][] labelProbabilities = executeInceptionGraph(model, input.get());
+					final long ran = System.nanoTime();
+					inferenceNanos += ran - start;
+					for (int j = 0; j < decoded; j++) {
+						final int first = j * tiles;
+						final List<List<InceptionResult>> tileResults = new ArrayList<List<InceptionResult>>(tiles);
+						for (int t = 0; t < tiles; t++) {
+							tileResults.add(topResults(labelProbabilities[first + t], labels, topK, minProbability));
+						}
+						results.set(rows[j], new Tiling.Result(
+								topResults(tiling.pool(labelProbabilities, first), labels, topK, minProbability),
+								tileResults));
+					}
+					postProcessNanos += System.nanoTime() - ran;
+				}
+			}
+			timings.setRunSize(runSize);
+			timings.setInferenceNanos(inferenceNanos);
+			timings.setPostProcessNanos(postProcessNanos);
+			return results;
+		} finally {
+			model.release();
+			if (buffer != null) {
+				inputBuffers.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * classify a batch of images with a single model run that also fetches
+	 * intermediate tensors, such as the layer before the softmax, for each
+	 * image. The tensors are copied out of TensorFlow once, as bytes, and
+	 * written per image by {@link Embeddings#write}. Images that cannot be
+	 * decoded get a null entry and do not fail the rest of the batch.
+	 * Embeddings are not cached.
+	 * 
+	 * @param images
+	 *            encoded images, still owned by the caller
+	 * @param modelDir
+	 * @param tensors
+	 *            float tensors of shape [batch, ...] to fetch, operation names
+	 *            or name:index
+	 * @param topK
+	 *            most probable labels to return per image
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @param timings
+	 *            receives the time spent in each stage
+	 * @return labels and embeddings in the order of images
+	 * @throws ModelLoadException
+	 *             when the model cannot be loaded or lacks a float tensor
+	 */
+	public Embeddings getEmbeddings(List<ImageContent> images, String modelDir, List<String> tensors, int topK,
+			float minProbability, BatchTimings timings) {
+		final List<List<InceptionResult>> results = new ArrayList<>(Collections.nCopies(images.size(),
+				(List<InceptionResult>) null));
+		final int[] rows = new int[images.size()];
+		Arrays.fill(rows, -1);
+		final long[][] shapes = new long[tensors.size()][];
+		final ByteBuffer[] data = new ByteBuffer[tensors.size()];
+		final TensorFlowModel model = acquireModel(modelDir);
+		ByteBuffer buffer = null;
+		try {
+			checkEmbeddings(model, tensors);
+			buffer = inputBuffers.acquire(runBytes(model, images.size()));
+			int decoded = 0;
+			for (int i = 0; i < images.size(); i++) {
+				final long start = System.nanoTime();
+				try {
+					preprocess(model, images.get(i), buffer);
+					rows[i] = decoded++;
+				} catch (Exception e) {
+					logger.warn("Failed to decode image " + i + " of batch: " + e.getMessage());
+				}
+				timings.setPreprocessNanos(i, System.nanoTime() - start);
+			}
+			timings.setRunSize(decoded);
+			if (decoded == 0) {
+				for (int t = 0; t < tensors.size(); t++) {
+					shapes[t] = new long[] { 0 };
+				}
+				return new Embeddings(tensors, shapes, data, rows, results);
+			}
+			buffer.flip();
+			try (TensorHandle<?> input = inputTensor(model, decoded, buffer)) {
+				final ModelSignature signature = model.getSignature();
+				final Session.Runner runner = model.getSession().runner().feed(signature.getInputName(),
+						input.get()).fetch(signature.getOutputName());
+				for (String tensor : tensors) {
+					runner.fetch(tensor);
+				}
+				final long start = System.nanoTime();
+				final List<Tensor<?>> outputs = runner.run();
+				final long ran = System.nanoTime();
+				timings.setInferenceNanos(ran - start);
+				final List<TensorHandle<?>> handles = new ArrayList<TensorHandle<?>>(outputs.size());
+				for (Tensor<?> output : outputs) {
+					handles.add(nativeResources.track(output));
+				}
+				try {
+					final float[][] labelProbabilities = probabilities(outputs.get(0), decoded, signature);
+					for (int t = 0; t < tensors.size(); t++) {
+						final Tensor<?> output = outputs.get(t + 1);
+						shapes[t] = output.shape();
+						if (shapes[t].length == 0 || shapes[t][0] != decoded) {
+							throw new RuntimeException(String.format(
+									"Expected %s to have a row per image, %d, instead its shape is %s",
+									tensors.get(t), decoded, Arrays.toString(shapes[t])));
+						}
+						// one copy out of native memory, the bytes are written as they are
+						data[t] = ByteBuffer.allocate(output.numBytes()).order(ByteOrder.nativeOrder());
+						output.writeTo(data[t]);
+						data[t].clear();
+					}
+					for (int i = 0; i < images.size(); i++) {
+						if (rows[i] >= 0) {
+							results.set(i, topResults(labelProbabilities[rows[i]], model.getLabels(), topK,
+									minProbability));
+						}
+					}
+				} finally {
+					for (TensorHandle<?> handle : handles) {
+						handle.close();
+					}
+				}
+				timings.setPostProcessNanos(System.nanoTime() - ran);
+			}
+			return new Embeddings(tensors, shapes, data, rows, results);
+		} finally {
+			model.release();
+			if (buffer != null) {
+				inputBuffers.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * check that a model can be fetched the embedding tensors
+	 * 
+	 * @param modelDir
+	 * @param tensors
+	 *            operation names or name:index
+	 * @throws ModelLoadException
+	 *             when the model cannot be loaded, or a tensor is missing or
+	 *             not float
+	 */
+	public void validateEmbeddings(String modelDir, List<String> tensors) {
+		final TensorFlowModel model = acquireModel(modelDir);
+		try {
+			checkEmbeddings(model, tensors);
+		} finally {
+			model.release();
+		}
+	}
+
+	private static void checkEmbeddings(TensorFlowModel model, List<String> tensors) {
+		for (String tensor : tensors) {
+			if (model.tensorType(tensor) != DataType.FLOAT) {
+				throw new ModelLoadException(model.getDirectory() + " tensor '" + tensor
+						+ "' is quantized, only FLOAT embeddings are supported");
+			}
+		}
+	}
+
+	/**
+	 * decode every frame of an image with ImageIO, subsampled for the model
+	 * unless it is an animation
+	 * 
+	 * @param image
+	 *            encoded image, still owned by the caller
+	 * @param modelDir
+	 *            model the frames are decoded for
+	 * @param maxFrames
+	 *            frames past this are not decoded
+	 * @param frames
+	 *            receives each frame, see
+	 *            {@link JavaImagePreprocessor#decodeFrames}
+	 * @return frames decoded
+	 * @throws IOException
+	 *             when the image cannot be decoded
+	 */
+	public int decodeFrames(ImageContent image, String modelDir, int maxFrames, Consumer<BufferedImage> frames)
+			throws IOException {
+		final TensorFlowModel model = acquireModel(modelDir);
+		try {
+			return javaPreprocessor(model).decodeFrames(image.data(), maxFrames, frames);
+		} finally {
+			model.release();
+		}
+	}
+
+	/**
+	 * start classifying frames as they are decoded. Each frame is resized
+	 * straight into the model input, so nothing is held at full resolution,
+	 * and the frames run in as few runs as keep each within
+	 * {@link #MAX_RUN_BYTES}.
+	 * 
+	 * @param modelDir
+	 * @param topK
+	 *            most probable labels to return per frame
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @param timings
+	 *            receives the run size, inference and post-processing time
+	 *            summed over the runs
+	 * @return runs to add the frames to, to be closed by the caller
+	 * @throws ModelLoadException
+	 *             when the model cannot be loaded
+	 */
+	public FrameRuns frameRuns(String modelDir, int topK, float minProbability, BatchTimings timings) {
+		return frameRuns(modelDir, topK, minProbability, timings, MAX_RUN_BYTES);
+	}
+
+	FrameRuns frameRuns(String modelDir, int topK, float minProbability, BatchTimings timings, long maxRunBytes) {
+		final TensorFlowModel model = acquireModel(modelDir);
+		try {
+			return new FrameRuns(model, javaPreprocessor(model), topK, minProbability, timings, maxRunBytes);
+		} catch (RuntimeException e) {
+			model.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Frames resized into a pooled model input, run whenever a run's worth
+	 * is held and on {@link #flush()}. It holds a reference on the model until
+	 * closed.
+	 */
+	public final class FrameRuns implements AutoCloseable {
+		private final TensorFlowModel model;
+		private final JavaImagePreprocessor preprocessor;
+		private final int topK;
+		private final float minProbability;
+		private final BatchTimings timings;
+		private final int perRun;
+		private final List<Consumer<List<InceptionResult>>> held = new ArrayList<Consumer<List<InceptionResult>>>();
+		// grows by doubling up to a run's worth of frames
+		private ByteBuffer buffer;
+		private boolean closed;
+
+		private FrameRuns(TensorFlowModel model, JavaImagePreprocessor preprocessor, int topK,
+				float minProbability, BatchTimings timings, long maxRunBytes) {
+			this.model = model;
+			this.preprocessor = preprocessor;
+			this.topK = topK;
+			this.minProbability = minProbability;
+			this.timings = timings;
+			this.perRun = (int) Math.max(1, maxRunBytes / model.getImageBytes());
+		}
+
+		/**
+		 * resize a frame into the input, running the held frames once they
+		 * fill a run
+		 * 
+		 * @param frame
+		 *            decoded frame, only read during this call
+		 * @param results
+		 *            receives the frame's results once its run is done
+		 */
+		public void add(BufferedImage frame, Consumer<List<InceptionResult>> results) {
+			if (buffer == null || buffer.remaining() < model.getImageBytes()) {
+				grow();
+			}
+			if (model.getInputType() == DataType.UINT8) {
+				preprocessor.pixels(frame, buffer);
+			} else {
+				final FloatBuffer floats = buffer.asFloatBuffer();
+				preprocessor.resize(frame, floats);
+				buffer.position(buffer.position() + floats.position() * 4);
+			}
+			held.add(results);
+			if (held.size() == perRun) {
+				flush();
+			}
+		}
+
+		private void grow() {
+			final int frames = buffer == null ? 1 : Math.min(perRun, 2 * held.size());
+			final ByteBuffer grown = inputBuffers.acquire(runBytes(model, frames));
+			if (buffer != null) {
+				buffer.flip();
+				grown.put(buffer);
+				inputBuffers.release(buffer);
+			}
+			buffer = grown;
+		}
+
+		/**
+		 * run the frames held so far
+		 */
+		public void flush() {
+			if (held.isEmpty()) {
+				return;
+			}
+			buffer.flip();
+			try (TensorHandle<?> input = inputTensor(model, held.size(), buffer)) {
+				final long start = System.nanoTime();
+				final float[][] labelProbabilities = executeInceptionGraph(model, input.get());
+				final long ran = System.nanoTime();
+				timings.setInferenceNanos(timings.getInferenceNanos() + ran - start);
+				timings.setRunSize(timings.getRunSize() + held.size());
+				for (int j = 0; j < held.size(); j++) {
+					held.get(j).accept(topResults(labelProbabilities[j], model.getLabels(), topK, minProbability));
+				}
+				timings.setPostProcessNanos(timings.getPostProcessNanos() + System.nanoTime() - ran);
+			} finally {
+				held.clear();
+				buffer.clear();
+			}
+		}
+
+		/**
+		 * release the model and the input, frames still held are not run
+		 */
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				model.release();
+				if (buffer != null) {
+					inputBuffers.release(buffer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * classify a batch of images with several models. Each image is decoded
+	 * once for every group of models fed the same input, and the models run in
+	 * parallel. Images that cannot be decoded get a null entry and do not fail
+	 * the rest of the batch.
+	 * 
+	 * @param images
+	 *            encoded images, still owned by the caller
+	 * @param modelDirs
+	 *            models to run on every image
+	 * @param topK
+	 *            most probable labels to return per image
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @param timings
+	 *            receives the time spent in each stage summed over the models,
+	 *            inference is the wall time of the parallel runs
+	 * @return per model, results in the order of images
+	 * @throws ModelLoadException
+	 *             when any of the models cannot be loaded
+	 */
+	public List<List<List<InceptionResult>>> getInceptionFanOut(List<ImageContent> images, List<String> modelDirs,
+			int topK, float minProbability, BatchTimings timings) {
+		final List<PreparedBatch> prepared = prepareFanOut(images, modelDirs, topK, minProbability, timings);
+		runStacked(Collections.singletonList(prepared), timings);
+		final List<List<List<InceptionResult>>> results = new ArrayList<>(prepared.size());
+		for (PreparedBatch batch : prepared) {
+			results.add(batch.results);
+		}
+		return results;
+	}
+
+	/**
+	 * first half of {@link #getInceptionFanOut}: acquire the models, take what
+	 * the result cache already has and decode the rest once for every group of
+	 * models fed the same input
+	 * 
+	 * @param images
+	 *            encoded images, still owned by the caller and only read
+	 *            during this call
+	 * @param modelDirs
+	 *            models to run on every image
+	 * @param topK
+	 *            most probable labels to return per image
+	 * @param minProbability
+	 *            labels below this probability (0 to 1) are dropped
+	 * @param timings
+	 *            receives the time spent decoding, summed over the groups
+	 * @return per model, the batch to run with {@link #runStacked}
+	 * @throws ModelLoadException
+	 *             when any of the models cannot be loaded
+	 */
+	public List<PreparedBatch> prepareFanOut(List<ImageContent> images, List<String> modelDirs, int topK,
+			float minProbability, BatchTimings timings) {
+		final List<TensorFlowModel> models = new ArrayList<TensorFlowModel>(modelDirs.size());
+		final PreparedBatch[] prepared = new PreparedBatch[modelDirs.size()];
+		try {
+			for (String modelDir : modelDirs) {
+				models.add(acquireModel(modelDir));
+			}
+			final ContentHash[] hashes = new ContentHash[images.size()];
+			if (resultCache != null) {
+				for (int i = 0; i < images.size(); i++) {
+					hashes[i] = ContentHash.of(images.get(i).data());
+				}
+			}
+			final boolean[] missed = new boolean[images.size()];
+			for (List<Integer> group : inputGroups(models)) {
+				prepareGroup(images, models, group, hashes, prepared, missed, topK, minProbability, timings);
+			}
+			for (int i = 0; i < images.size(); i++) {
+				if (!missed[i]) {
+					timings.setCached(i);
+				}
+			}
+			return Arrays.asList(prepared);
+		} catch (RuntimeException e) {
+			for (int m = 0; m < models.size(); m++) {
+				if (prepared[m] != null) {
+					prepared[m].close();
+				} else {
+					models.get(m).release();
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return indexes of the models, grouped by the input they are fed
+	 */
+	private static Collection<List<Integer>> inputGroups(List<TensorFlowModel> models) {
+		final Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+		for (int m = 0; m < models.size(); m++) {
+			final TensorFlowModel model = models.get(m);
+			groups.computeIfAbsent(model.getSignature().preprocessingKey() + " " + model.getInputType(),
+					key -> new ArrayList<Integer>()).add(m);
+		}
+		return groups.values();
+	}
+
+	/**
+	 * decode the images the group's result cache entries do not cover, once,
+	 * and give every model of the group its own copy of the rows
+	 */
+	private void prepareGroup(List<ImageContent> images, List<TensorFlowModel> models, List<Integer> group,
+			ContentHash[] hashes, PreparedBatch[] prepared, boolean[] missed, int topK, float minProbability,
+			BatchTimings timings) {
+		final TensorFlowModel first = models.get(group.get(0));
+		final ResultCache.Key[][] keys = new ResultCache.Key[models.size()][images.size()];
+		final List<List<List<InceptionResult>>> results = new ArrayList<>(models.size());
+		for (int m = 0; m < models.size(); m++) {
+			results.add(group.contains(m)
+					? new ArrayList<>(Collections.nCopies(images.size(), (List<InceptionResult>) null))
+					: null);
+		}
+		final int[] rows = new int[images.size()];
+		int decoded = 0;
+		ByteBuffer buffer = null;
+		try {
+			for (int i = 0; i < images.size(); i++) {
+				boolean needed = resultCache == null;
+				if (resultCache != null) {
+					for (int m : group) {
+						keys[m][i] = ResultCache.key(models.get(m), hashes[i], topK, minProbability);
+						final List<InceptionResult> cached = resultCache.get(keys[m][i]);
+						if (cached == null) {
+							needed = true;
+						} else {
+							results.get(m).set(i, cached);
+						}
+					}
+				}
+				if (!needed) {
+					continue;
+				}
+				missed[i] = true;
+				if (buffer == null) {
+					buffer = inputBuffers.acquire(runBytes(first, images.size() - i));
+				}
+				final long start = System.nanoTime();
+				try {
+					preprocess(first, images.get(i), buffer);
+					rows[decoded++] = i;
+				} catch (Exception e) {
+					logger.warn("Failed to decode image " + i + " of batch: " + e.getMessage());
+				}
+				timings.setPreprocessNanos(i, timings.getPreprocessNanos(i) + System.nanoTime() - start);
+			}
+			if (buffer != null) {
+				buffer.flip();
+			}
+		} catch (RuntimeException e) {
+			if (buffer != null) {
+				inputBuffers.release(buffer);
+			}
+			throw e;
+		}
+		for (int m : group) {
+			ByteBuffer input = buffer;
+			if (m != group.get(0) && decoded > 0) {
+				input = inputBuffers.acquire(buffer.remaining());
+				input.put(buffer.duplicate()).flip();
+			}
+			prepared[m] = new PreparedBatch(models.get(m), results.get(m), keys[m], rows, decoded, input,
+					inputBuffers, topK, minProbability, timings);
+		}
+	}
+
+	/**
+	 * run the prepared batches of several callers, each with the same models in
+	 * the same order, as one model run per model. The decoded rows of every
+	 * caller are stacked into one input and the models run in parallel. The
+	 * results land in each batch's own list and every batch is closed.
+	 * 
+	 * @param batches
+	 *            per caller, the batch of each model
+	 * @param timings
+	 *            receives the run size, the wall time of the parallel runs and
+	 *            the post processing summed over the models
+	 */
+	public void runStacked(List<List<PreparedBatch>> batches, BatchTimings timings) {
+		try {
+			final int models = batches.get(0).size();
+			final List<List<PreparedBatch>> byModel = new ArrayList<List<PreparedBatch>>(models);
+			int runSize = 0;
+			for (int m = 0; m < models; m++) {
+				final List<PreparedBatch> model = new ArrayList<PreparedBatch>(batches.size());
+				int rows = 0;
+				for (List<PreparedBatch> caller : batches) {
+					model.add(caller.get(m));
+					rows += caller.get(m).decoded;
+				}
+				byModel.add(model);
+				runSize = Math.max(runSize, rows);
+			}
+			timings.setRunSize(runSize);
+			if (runSize == 0) {
+				return;
+			}
+			final long start = System.nanoTime();
+			final float[][][] outputs = new float[models][][];
+			final List<Future<float[][]>> runs = new ArrayList<Future<float[][]>>(models - 1);
+			for (int m = 1; m < models; m++) {
+				final List<PreparedBatch> model = byModel.get(m);
+				runs.add(modelRuns.submit(() -> runStacked(model)));
+			}
+			RuntimeException failure = null;
+			try {
+				outputs[0] = runStacked(byModel.get(0));
+			} catch (RuntimeException e) {
+				failure = e;
+			}
+			// every run must finish before its batches are closed
+			for (int r = 0; r < runs.size(); r++) {
+				try {
+					outputs[r + 1] = awaitRun(runs.get(r));
+				} catch (RuntimeException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			final long ran = System.nanoTime();
+			timings.setInferenceNanos(timings.getInferenceNanos() + ran - start);
+			for (int m = 0; m < models; m++) {
+				int j = 0;
+				for (PreparedBatch batch : byModel.get(m)) {
+					for (int r = 0; r < batch.decoded; r++) {
+						final int row = batch.rows[r];
+						final List<InceptionResult> imageResults = topResults(outputs[m][j++],
+								batch.model.getLabels(), batch.topK, batch.minProbability);
+						batch.results.set(row, imageResults);
+						if (resultCache != null) {
+							resultCache.put(batch.keys[row], imageResults);
+						}
+					}
+				}
+			}
+			timings.setPostProcessNanos(timings.getPostProcessNanos() + System.nanoTime() - ran);
+		} finally {
+			for (List<PreparedBatch> caller : batches) {
+				for (PreparedBatch batch : caller) {
+					batch.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the model's outputs for the decoded rows of every batch in
+	 *         turn, null when none decoded
+	 */
+	private float[][] runStacked(List<PreparedBatch> batches) {
+		final TensorFlowModel model = batches.get(0).model;
+		int rows = 0;
+		PreparedBatch only = null;
+		for (PreparedBatch batch : batches) {
+			if (batch.decoded > 0) {
+				rows += batch.decoded;
+				only = batch;
+			}
+		}
+		if (rows == 0) {
+			return null;
+		}
+		if (rows == only.decoded) {
+			try (TensorHandle<?> input = inputTensor(model, rows, only.input)) {
+				return executeInceptionGraph(model, input.get());
+			}
+		}
+		final ByteBuffer stacked = inputBuffers.acquire(runBytes(model, rows));
+		try {
+			for (PreparedBatch batch : batches) {
+				if (batch.decoded > 0) {
+					stacked.put(batch.input.duplicate());
+				}
+			}
+			stacked.flip();
+			try (TensorHandle<?> input = inputTensor(model, rows, stacked)) {
+				return executeInceptionGraph(model, input.get());
+			}
+		} finally {
+			inputBuffers.release(stacked);
+		}
+	}
+
+	/**
+	 * wait for a model run even when interrupted, its input must not be freed
+	 * under it
+	 */
+	private static float[][] awaitRun(Future<float[][]> run) {
+		boolean interrupted = false;
+		try {
+			for (;;) {
+				try {
+					return run.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+							: new IllegalStateException(e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return label indices and probabilities, nothing is formatted until the
+	 *         results are written
+	 */
+	private List<InceptionResult> topResults(float[] labelProbabilities, List<String> labels, int k,
+			float minProbability) {
+		return new Classification(labels, topK.get().select(labelProbabilities, k, minProbability));
+	}
+
+	private float[][] executeInceptionGraph(TensorFlowModel model, Tensor<?> images) {
+		final long batchSize = images.shape()[0];
+		final ModelSignature signature = model.getSignature();
+		try (TensorHandle<?> output = nativeResources.track(model.getSession().runner()
+				.feed(signature.getInputName(), images).fetch(signature.getOutputName()).run().get(0))) {
+			return probabilities(output.get(), batchSize, signature);
+		}
+	}
+
+	private static float[][] probabilities(Tensor<?> result, long batchSize, ModelSignature signature) {
+		final long[] rshape = result.shape();
+		if (result.numDimensions() != 2 || rshape[0] != batchSize) {
+			throw new RuntimeException(String.format(
+					"Expected model to produce a [%d N] shaped tensor where N is the number of labels, instead it produced one with shape %s",
+					batchSize, Arrays.toString(rshape)));
+		}
+		int nlabels = (int) rshape[1];
+		if (result.dataType() == DataType.UINT8) {
+			return dequantize(result.expect(UInt8.class).copyTo(new byte[(int) batchSize][nlabels]), signature);
+		}
+		return result.expect(Float.class).copyTo(new float[(int) batchSize][nlabels]);
+	}
+
+	/**
+	 * @return the probabilities the quantized outputs stand for
+	 */
+	static float[][] dequantize(byte[][] quantized, ModelSignature signature) {
+		final float scale = signature.getOutputScale();
+		final int zeroPoint = signature.getOutputZeroPoint();
+		final float[][] probabilities = new float[quantized.length][];
+		for (int i = 0; i < quantized.length; i++) {
+			final byte[] row = quantized[i];
+			final float[] out = new float[row.length];
+			for (int j = 0; j < row.length; j++) {
+				out[j] = ((row[j] & 0xFF) - zeroPoint) * scale;
+			}
+			probabilities[i] = out;
+		}
+		return probabilities;
+	}
+
+	/**
+	 * Read a graph through a read-only memory map. TensorFlow's Java API only
+	 * imports a GraphDef from a byte[], so one transient heap copy is needed,
+	 * but Files.readAllBytes would also stage the whole file through a
+	 * temporary direct buffer that the JDK caches per thread, leaving a model
+	 * sized block of native memory on every thread that ever loaded a model.
+	 * The returned array is dropped as soon as the graph is imported.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	private static byte[] readAllBytes(Path path) {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Graph larger than 2 GB");
+			}
+			final byte[] bytes = new byte[(int) size];
+			channel.map(MapMode.READ_ONLY, 0, size).get(bytes);
+			return bytes;
 		} catch (IOException e) {
-			System.err.println("Failed to read [" + path + "]: " + e.getMessage());
-			System.exit(1);
+			throw new ModelLoadException("Failed to read [" + path + "]: " + e.getMessage(), e);
 		}
-		return null;
 	}
 
-	private static List<String> readAllLinesOrExit(Path path) {
+	private static List<String> readAllLines(Path path) {
 		try {
 			return Files.readAllLines(path, Charset.forName("UTF-8"));
 		} catch (IOException e) {
-			System.err.println("Failed to read [" + path + "]: " + e.getMessage());
-			System.exit(0);
+			throw new ModelLoadException("Failed to read [" + path + "]: " + e.getMessage(), e);
 		}
-		return null;
 	}
 
 	// In the fullness of time, equivalents of the methods of this class should be
@@ -232,6 +1559,10 @@ public class TensorFlowService {
 			return binaryOp3("ResizeBilinear", images, size);
 		}
 
+		<T> Output<T> reverse(Output<T> input, Output<Integer> axis) {
+			return binaryOp3("ReverseV2", input, axis);
+		}
+
 		<T> Output<T> expandDims(Output<T> input, Output<Integer> dim) {
 			return binaryOp3("ExpandDims", input, dim);
 		}
@@ -246,6 +1577,10 @@ public class TensorFlowService {
 					.<UInt8>output(0);
 		}
 
+		<T> Output<T> placeholder(String name, Class<T> type) {
+			return g.opBuilder("Placeholder", name).setAttr("dtype", DataType.fromClass(type)).build().<T>output(0);
+		}
+
 		<T> Output<T> constant(String name, Object value, Class<T> type) {
 			try (Tensor<T> t = Tensor.<T>create(value, type)) {
 				return g.opBuilder("Const", name).setAttr("dtype", DataType.fromClass(type)).setAttr("value", t).build()
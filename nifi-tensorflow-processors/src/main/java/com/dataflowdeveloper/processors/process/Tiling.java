@@ -0,0 +1,213 @@
+package com.dataflowdeveloper.processors.process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Crops to classify in place of the whole frame, so objects too small to
+ * survive one resize to the model input still fill a tile. Crops come from one
+ * or more grids, "2x2" for four quadrants or "1x1,3x3" for the whole image
+ * and nine tiles, and neighbouring tiles of a grid may overlap. Every crop of
+ * an image runs in the same batch, and the per label probabilities are pooled
+ * across them.
+ *
+ * @author tspann
+ *
+ */
+public final class Tiling {
+
+	/**
+	 * How the tiles' probabilities are merged per label.
+	 */
+	public enum Pooling {
+		/** highest probability of any tile, finds objects seen by one tile */
+		MAX,
+		/** average over the tiles, favours what fills the image */
+		MEAN
+	}
+
+	private static final Pattern GRID = Pattern.compile("\\s*(\\d+)x(\\d+)\\s*");
+
+	// x, y, width and height of each crop as fractions of the image
+	private final float[] boxes;
+	private final int columns;
+	private final int rows;
+	private final Pooling pooling;
+
+	private Tiling(float[] boxes, int columns, int rows, Pooling pooling) {
+		this.boxes = boxes;
+		this.columns = columns;
+		this.rows = rows;
+		this.pooling = pooling;
+	}
+
+	/**
+	 * @param grids
+	 *            comma separated COLUMNSxROWS grids, e.g. "1x1,2x2"
+	 * @param overlap
+	 *            fraction of a tile shared with each neighbour, from 0 up to
+	 *            but excluding 1
+	 * @param pooling
+	 * @throws IllegalArgumentException
+	 *             when a grid is malformed or empty, or the overlap out of
+	 *             range
+	 */
+	public static Tiling parse(String grids, float overlap, Pooling pooling) {
+		if (!(overlap >= 0f && overlap < 1f)) {
+			throw new IllegalArgumentException("Tile overlap must be at least 0 and less than 1, not " + overlap);
+		}
+		final List<float[]> crops = new ArrayList<float[]>();
+		int maxColumns = 1;
+		int maxRows = 1;
+		for (String grid : grids.split(",", -1)) {
+			final Matcher matcher = GRID.matcher(grid);
+			if (!matcher.matches()) {
+				throw new IllegalArgumentException("Expected a grid like 2x2, not '" + grid.trim() + "'");
+			}
+			final int columns = Integer.parseInt(matcher.group(1));
+			final int rows = Integer.parseInt(matcher.group(2));
+			if (columns < 1 || rows < 1 || columns > 16 || rows > 16) {
+				throw new IllegalArgumentException("A grid has 1 to 16 columns and rows, not " + grid.trim());
+			}
+			maxColumns = Math.max(maxColumns, columns);
+			maxRows = Math.max(maxRows, rows);
+			final float width = tileSize(columns, overlap);
+			final float height = tileSize(rows, overlap);
+			for (int row = 0; row < rows; row++) {
+				for (int column = 0; column < columns; column++) {
+					// the last tile of a row or column ends at the edge whatever the rounding
+					crops.add(new float[] { Math.min(column * width * (1f - overlap), 1f - width),
+							Math.min(row * height * (1f - overlap), 1f - height), width, height });
+				}
+			}
+		}
+		final float[] boxes = new float[crops.size() * 4];
+		for (int i = 0; i < crops.size(); i++) {
+			System.arraycopy(crops.get(i), 0, boxes, i * 4, 4);
+		}
+		return new Tiling(boxes, maxColumns, maxRows, pooling);
+	}
+
+	/**
+	 * @return fraction of the image one of n tiles covers when each shares
+	 *         overlap of itself with its neighbours
+	 */
+	private static float tileSize(int n, float overlap) {
+		return 1f / (1f + (n - 1) * (1f - overlap));
+	}
+
+	/**
+	 * @return crops classified per image
+	 */
+	public int size() {
+		return boxes.length / 4;
+	}
+
+	/**
+	 * @return left edge of the tile as a fraction of the image width
+	 */
+	public float x(int tile) {
+		return boxes[tile * 4];
+	}
+
+	/**
+	 * @return top edge of the tile as a fraction of the image height
+	 */
+	public float y(int tile) {
+		return boxes[tile * 4 + 1];
+	}
+
+	/**
+	 * @return tile width as a fraction of the image width
+	 */
+	public float width(int tile) {
+		return boxes[tile * 4 + 2];
+	}
+
+	/**
+	 * @return tile height as a fraction of the image height
+	 */
+	public float height(int tile) {
+		return boxes[tile * 4 + 3];
+	}
+
+	/**
+	 * @return columns of the finest grid, an image is decoded at least this
+	 *         many model inputs wide
+	 */
+	public int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return rows of the finest grid
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	public Pooling getPooling() {
+		return pooling;
+	}
+
+	/**
+	 * merge one image's tiles
+	 *
+	 * @param probabilities
+	 *            model output, one row per tile
+	 * @param first
+	 *            row of the image's first tile, followed by the rest
+	 * @return pooled probability per label
+	 */
+	public float[] pool(float[][] probabilities, int first) {
+		final float[] pooled = probabilities[first].clone();
+		final int tiles = size();
+		for (int t = 1; t < tiles; t++) {
+			final float[] row = probabilities[first + t];
+			if (pooling == Pooling.MAX) {
+				for (int i = 0; i < pooled.length; i++) {
+					pooled[i] = Math.max(pooled[i], row[i]);
+				}
+			} else {
+				for (int i = 0; i < pooled.length; i++) {
+					pooled[i] += row[i];
+				}
+			}
+		}
+		if (pooling == Pooling.MEAN) {
+			for (int i = 0; i < pooled.length; i++) {
+				pooled[i] /= tiles;
+			}
+		}
+		return pooled;
+	}
+
+	/**
+	 * One image's pooled results with the results of each of its tiles.
+	 */
+	public static final class Result {
+		private final List<InceptionResult> pooled;
+		private final List<List<InceptionResult>> tiles;
+
+		Result(List<InceptionResult> pooled, List<List<InceptionResult>> tiles) {
+			this.pooled = pooled;
+			this.tiles = tiles;
+		}
+
+		/**
+		 * @return top labels after pooling the tiles
+		 */
+		public List<InceptionResult> getPooled() {
+			return pooled;
+		}
+
+		/**
+		 * @return top labels of each tile, in the tiling's order
+		 */
+		public List<List<InceptionResult>> getTiles() {
+			return tiles;
+		}
+	}
+}
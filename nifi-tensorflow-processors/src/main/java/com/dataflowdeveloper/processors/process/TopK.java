@@ -0,0 +1,64 @@
+package com.dataflowdeveloper.processors.process;
+
+/**
+ * Single pass top-K selection over label probabilities. The backing arrays are
+ * reused between calls, so a selector kept per thread allocates nothing once it
+ * has grown to the largest K asked for.
+ *
+ * @author tspann
+ *
+ */
+final class TopK {
+
+	private int[] indices = new int[0];
+	private float[] values = new float[0];
+	private int size;
+
+	/**
+	 * select the K highest values at or above the threshold, ties keep the lower
+	 * index first
+	 *
+	 * @param probabilities
+	 * @param k
+	 * @param threshold
+	 * @return this, ordered by descending value
+	 */
+	TopK select(float[] probabilities, int k, float threshold) {
+		if (indices.length < k) {
+			indices = new int[k];
+			values = new float[k];
+		}
+		size = 0;
+		if (k <= 0) {
+			return this;
+		}
+		for (int i = 0; i < probabilities.length; i++) {
+			final float p = probabilities[i];
+			if (p < threshold || (size == k && p <= values[size - 1])) {
+				continue;
+			}
+			// shift smaller entries down, dropping the last one when full
+			int j = size < k ? size++ : size - 1;
+			while (j > 0 && values[j - 1] < p) {
+				values[j] = values[j - 1];
+				indices[j] = indices[j - 1];
+				j--;
+			}
+			values[j] = p;
+			indices[j] = i;
+		}
+		return this;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int index(int rank) {
+		return indices[rank];
+	}
+
+	float value(int rank) {
+		return values[rank];
+	}
+}
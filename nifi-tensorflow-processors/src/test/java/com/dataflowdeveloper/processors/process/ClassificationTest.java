@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ClassificationTest {
+
+	@Test
+	public void testPercentMatchesFormat() {
+		Random random = new Random(42);
+		float[] scores = new float[20000];
+		for (int i = 0; i < scores.length; i++) {
+			// spread over many magnitudes, with exact halves among them
+			scores[i] = i % 4 == 0 ? random.nextInt(100000) / 100000f
+					: i % 4 == 1 ? random.nextInt(2000) / 200000f
+							: (float) Math.pow(10, -random.nextInt(12)) * random.nextFloat();
+		}
+		for (float score : scores) {
+			assertEquals(String.valueOf(score), String.format(Locale.ROOT, "%.2f%%", score * 100f),
+					InceptionResult.percent(score));
+		}
+		for (float score : new float[] { 0f, -0f, 1f, 0.5f, 0.00005f, 0.00125f, 0.99995f, -0.25f, -0.00001f, 40f,
+				Float.NaN, Float.POSITIVE_INFINITY, Float.MIN_VALUE, 1e30f }) {
+			assertEquals(String.valueOf(score), String.format(Locale.ROOT, "%.2f%%", score * 100f),
+					InceptionResult.percent(score));
+		}
+	}
+
+	@Test
+	public void testListView() {
+		List<String> labels = Arrays.asList("cat", "dog", "bird");
+		Classification classification = new Classification(labels,
+				new TopK().select(new float[] { 0.1f, 0.6f, 0.05f, 0.25f }, 3, 0f));
+		assertEquals(3, classification.size());
+		assertEquals(1, classification.labelIndex(0));
+		assertEquals("dog", classification.label(0));
+		// an output past the labels is named by index
+		assertEquals("3", classification.label(1));
+		assertEquals(0.1f, classification.score(2), 0f);
+		InceptionResult second = classification.get(1);
+		assertEquals("3", second.getLabel());
+		assertEquals(1, second.getRank());
+		assertEquals("25.00%", second.getProbability());
+		assertEquals("[InceptionResult [label=dog, probability=60.00%, rank=0], "
+				+ "InceptionResult [label=3, probability=25.00%, rank=1], "
+				+ "InceptionResult [label=cat, probability=10.00%, rank=2]]", classification.toString());
+	}
+
+	@Test
+	public void testAttributesMatchResults() {
+		Classification classification = new Classification(Arrays.asList("cat", "dog"),
+				new TopK().select(new float[] { 0.3f, 0.7f }, 2, 0f));
+		Map<String, String> fromList = TensorFlowProcessor.resultAttributes("bgr.",
+				Arrays.asList(classification.get(0), classification.get(1)));
+		Map<String, String> direct = new HashMap<String, String>();
+		TensorFlowProcessor.putResults(new TensorFlowProcessor.AttributeKeys("bgr.", 1), classification, direct);
+		assertEquals(fromList, direct);
+		assertEquals("dog", direct.get("bgr.label_1"));
+		assertEquals("30.00%", direct.get("bgr.probability_2"));
+		assertEquals(4, direct.size());
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ContentHashTest {
+
+	private static String hash(String value) {
+		return ContentHash.of(ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8))).toString();
+	}
+
+	@Test
+	public void testReferenceVectors() {
+		// MurmurHash3_x64_128 with seed 0
+		assertEquals("00000000000000000000000000000000", hash(""));
+		assertEquals("897859f6655555855a890e51483ab5e6", hash("a"));
+		assertEquals("029bbd41b3a7d8cb191dae486a901e5b", hash("hello"));
+		assertEquals("a7d14acf946de04bda08a7635c5bc387", hash("0123456789abcdef"));
+		assertEquals("def945aa2d61328eee72c306c2f40008", hash("0123456789abcdefg"));
+		assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", hash("The quick brown fox jumps over the lazy dog"));
+	}
+
+	@Test
+	public void testHashesRemainingBytesOfDirectBuffer() {
+		byte[] bytes = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 5);
+		direct.put(new byte[5]).put(bytes).flip().position(5);
+		assertEquals(ContentHash.of(ByteBuffer.wrap(bytes)), ContentHash.of(direct));
+		assertEquals(5, direct.position());
+		assertNotEquals(ContentHash.of(ByteBuffer.wrap(bytes)), ContentHash.of(ByteBuffer.wrap(bytes, 0, 42)));
+	}
+}
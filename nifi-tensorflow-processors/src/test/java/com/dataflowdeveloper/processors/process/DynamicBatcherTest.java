@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DynamicBatcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TensorFlowService service;
+	private List<String> model;
+
+	@Before
+	public void init() throws Exception {
+		service = new TensorFlowService();
+		model = Collections.singletonList(TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+	}
+
+	@After
+	public void close() {
+		service.close();
+	}
+
+	@Test
+	public void testFullBatchRunsBeforeTheDeadline() throws Exception {
+		List<byte[]> images = Arrays.asList(TensorFlowServiceTest.solid(0xFF0000), TensorFlowServiceTest.resource("test.txt"),
+				TensorFlowServiceTest.solid(0x0000FF), TensorFlowServiceTest.resource("test.jpg"));
+		List<List<InceptionResult>> expected = service.getInception(images, model.get(0));
+		try (DynamicBatcher batcher = new DynamicBatcher(service, 4, TimeUnit.MINUTES.toNanos(1), "test batcher")) {
+			long start = System.nanoTime();
+			List<CompletableFuture<DynamicBatcher.Slot>> slots = new ArrayList<>();
+			for (byte[] image : images) {
+				slots.add(batcher.submit(ImageContent.wrap(image), model, 5, 0f));
+			}
+			BatchTimings timings = slots.get(0).join().getTimings();
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+			assertEquals(3, timings.getRunSize());
+			for (int i = 0; i < images.size(); i++) {
+				DynamicBatcher.Slot slot = slots.get(i).join();
+				assertSame(timings, slot.getTimings());
+				assertEquals(i, slot.getIndex());
+				assertEquals(i == 0, slot.isFirst());
+				assertEquals(String.valueOf(expected.get(i)), String.valueOf(slot.getResults().get(0)));
+			}
+			assertNull(slots.get(1).join().getResults().get(0));
+		}
+	}
+
+	@Test
+	public void testDeadlineRunsPartialBatch() throws Exception {
+		try (DynamicBatcher batcher = new DynamicBatcher(service, 8, TimeUnit.MILLISECONDS.toNanos(50), "test batcher")) {
+			long start = System.nanoTime();
+			DynamicBatcher.Slot slot = batcher.submit(ImageContent.wrap(TensorFlowServiceTest.resource("test.jpg")), model,
+					5, 0f).join();
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+			assertEquals(1, slot.getTimings().getRunSize());
+			assertEquals(5, slot.getResults().get(0).size());
+		}
+	}
+
+	@Test
+	public void testCallersDecodeTheirOwnImages() throws Exception {
+		byte[] image = TensorFlowServiceTest.resource("test.jpg");
+		List<InceptionResult> expected = service.getInception(image, model.get(0));
+		try (DynamicBatcher batcher = new DynamicBatcher(service, 2, TimeUnit.MINUTES.toNanos(1), "test batcher")) {
+			byte[] first = image.clone();
+			CompletableFuture<DynamicBatcher.Slot> slot = batcher.submit(ImageContent.wrap(first), model, 5, 0f);
+			// the run waits for a second image, so only submit can have decoded the first
+			Arrays.fill(first, (byte) 0);
+			assertTrue(!slot.isDone());
+			batcher.submit(ImageContent.wrap(image), model, 5, 0f);
+			assertEquals(2, slot.join().getTimings().getRunSize());
+			assertEquals(String.valueOf(expected), String.valueOf(slot.join().getResults().get(0)));
+			assertTrue(slot.join().getTimings().getPreprocessNanos(0) > 0);
+		}
+	}
+
+	@Test
+	public void testConcurrentCallersShareRuns() throws Exception {
+		final int callers = 8;
+		final byte[] image = TensorFlowServiceTest.resource("test.jpg");
+		final List<CompletableFuture<DynamicBatcher.Slot>> slots = Collections.synchronizedList(new ArrayList<>());
+		try (DynamicBatcher batcher = new DynamicBatcher(service, callers, TimeUnit.MINUTES.toNanos(1), "test batcher")) {
+			List<Thread> threads = new ArrayList<Thread>();
+			for (int i = 0; i < callers; i++) {
+				Thread thread = new Thread(() -> slots.add(batcher.submit(ImageContent.wrap(image), model, 5, 0f)));
+				threads.add(thread);
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			int first = 0;
+			for (CompletableFuture<DynamicBatcher.Slot> slot : slots) {
+				assertEquals(callers, slot.join().getTimings().getRunSize());
+				first += slot.join().isFirst() ? 1 : 0;
+			}
+			assertEquals(1, first);
+		}
+	}
+
+	@Test
+	public void testRunsOnlyShareAKey() throws Exception {
+		byte[] image = TensorFlowServiceTest.resource("test.jpg");
+		try (DynamicBatcher batcher = new DynamicBatcher(service, 4, TimeUnit.MILLISECONDS.toNanos(20), "test batcher")) {
+			CompletableFuture<DynamicBatcher.Slot> top5 = batcher.submit(ImageContent.wrap(image), model, 5, 0f);
+			CompletableFuture<DynamicBatcher.Slot> top2 = batcher.submit(ImageContent.wrap(image), model, 2, 0f);
+			CompletableFuture<DynamicBatcher.Slot> missing = batcher.submit(ImageContent.wrap(image),
+					Collections.singletonList(folder.getRoot().toString()), 5, 0f);
+			assertEquals(5, top5.join().getResults().get(0).size());
+			assertEquals(2, top2.join().getResults().get(0).size());
+			assertEquals(1, top2.join().getTimings().getRunSize());
+			try {
+				missing.join();
+				fail("a missing model fails its run");
+			} catch (CompletionException e) {
+				assertTrue(e.getCause() instanceof ModelLoadException);
+			}
+		}
+	}
+
+	@Test
+	public void testCloseRunsWhatIsQueued() throws Exception {
+		CompletableFuture<DynamicBatcher.Slot> slot;
+		DynamicBatcher batcher = new DynamicBatcher(service, 8, TimeUnit.MINUTES.toNanos(1), "test batcher");
+		slot = batcher.submit(ImageContent.wrap(TensorFlowServiceTest.resource("test.jpg")), model, 5, 0f);
+		batcher.close();
+		assertTrue(slot.isDone());
+		assertEquals(1, slot.join().getTimings().getRunSize());
+		try {
+			batcher.submit(ImageContent.wrap(TensorFlowServiceTest.resource("test.jpg")), model, 5, 0f);
+			fail("closed batcher takes no more images");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class EmbeddingsTest {
+
+	@Test
+	public void testToHalf() {
+		float[] values = { 0f, -0f, 1f, -2f, 0.1f, 65504f, 65520f, 1e-8f, (float) Math.pow(2, -24),
+				(float) Math.pow(2, -14), Float.POSITIVE_INFINITY, Float.NaN };
+		int[] halves = { 0x0000, 0x8000, 0x3C00, 0xC000, 0x2E66, 0x7BFF, 0x7C00, 0x0000, 0x0001, 0x0400, 0x7C00,
+				0x7E00 };
+		for (int i = 0; i < values.length; i++) {
+			assertEquals(String.valueOf(values[i]), halves[i], Embeddings.toHalf(values[i]) & 0xFFFF);
+		}
+		// halfway between 1 and the next half rounds to even, just above rounds up
+		assertEquals(0x3C00, Embeddings.toHalf(1f + (float) Math.pow(2, -11)));
+		assertEquals(0x3C01, Embeddings.toHalf(1f + (float) Math.pow(2, -11) + (float) Math.pow(2, -20)));
+	}
+
+	@Test
+	public void testWrite() throws IOException {
+		ByteBuffer pooled = floats(1f, 2f, 3f, 4f, 5f, 6f);
+		ByteBuffer features = floats(10f, 11f, 12f, 13f, 20f, 21f, 22f, 23f);
+		// the third image was the first row of the run and the second was not decoded
+		Embeddings embeddings = new Embeddings(Arrays.asList("pool", "features:1"),
+				new long[][] { { 2, 3 }, { 2, 2, 2 } }, new ByteBuffer[] { pooled, features }, new int[] { 1, -1, 0 },
+				Arrays.asList(null, null, null));
+		assertTrue(embeddings.contains(0));
+		assertFalse(embeddings.contains(1));
+		assertEquals(3, embeddings.getElements(0));
+		assertEquals(4, embeddings.getElements(1));
+
+		ByteBuffer first = written(embeddings, 0, Embeddings.Format.FLOAT32);
+		assertHeader(first, 1);
+		assertEquals(4f, first.getFloat(), 0f);
+		assertEquals(5f, first.getFloat(), 0f);
+		assertEquals(6f, first.getFloat(), 0f);
+		for (float value : new float[] { 20f, 21f, 22f, 23f }) {
+			assertEquals(value, first.getFloat(), 0f);
+		}
+		assertFalse(first.hasRemaining());
+
+		ByteBuffer half = written(embeddings, 2, Embeddings.Format.FLOAT16);
+		assertHeader(half, 2);
+		for (float value : new float[] { 1f, 2f, 3f, 10f, 11f, 12f, 13f }) {
+			assertEquals(Embeddings.toHalf(value), half.getShort());
+		}
+		assertFalse(half.hasRemaining());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUndecodedImage() throws IOException {
+		new Embeddings(Arrays.asList("pool"), new long[][] { { 0, 3 } }, new ByteBuffer[] { null },
+				new int[] { -1 }, Collections.singletonList(null)).write(0, Embeddings.Format.FLOAT32,
+						new ByteArrayOutputStream());
+	}
+
+	private static ByteBuffer floats(float... values) {
+		ByteBuffer buffer = ByteBuffer.allocate(values.length * 4).order(ByteOrder.nativeOrder());
+		buffer.asFloatBuffer().put(values);
+		return buffer;
+	}
+
+	private static ByteBuffer written(Embeddings embeddings, int image, Embeddings.Format format)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		embeddings.write(image, format, out);
+		assertEquals(embeddings.size(format), out.size());
+		return ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void assertHeader(ByteBuffer content, int type) {
+		byte[] magic = new byte[4];
+		content.get(magic);
+		assertArrayEquals(Embeddings.MAGIC, magic);
+		assertEquals(Embeddings.VERSION, content.get());
+		assertEquals(type, content.get());
+		assertEquals(2, content.getShort());
+		assertEquals("pool", name(content));
+		assertEquals(1, content.get());
+		assertEquals(3, content.getInt());
+		assertEquals("features:1", name(content));
+		assertEquals(2, content.get());
+		assertEquals(2, content.getInt());
+		assertEquals(2, content.getInt());
+	}
+
+	private static String name(ByteBuffer content) {
+		byte[] name = new byte[content.getShort()];
+		content.get(name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrameSamplerTest {
+
+	@Test
+	public void testDifference() {
+		byte[] black = FrameSampler.thumbnail(solid(0x000000, 640, 480));
+		byte[] white = FrameSampler.thumbnail(solid(0xFFFFFF, 33, 17));
+		assertEquals(FrameSampler.THUMBNAIL_SIZE * FrameSampler.THUMBNAIL_SIZE, black.length);
+		assertEquals(0f, FrameSampler.difference(black, black), 0f);
+		assertEquals(1f, FrameSampler.difference(black, white), 0f);
+		// a quarter of the frame turned white
+		BufferedImage corner = solid(0x000000, 64, 64);
+		for (int y = 0; y < 32; y++) {
+			for (int x = 0; x < 32; x++) {
+				corner.setRGB(x, y, 0xFFFFFF);
+			}
+		}
+		assertEquals(0.25f, FrameSampler.difference(black, FrameSampler.thumbnail(corner)), 0.001f);
+	}
+
+	@Test
+	public void testSkipsUnchangedFrames() {
+		FrameSampler sampler = new FrameSampler(0.05f, 2, 10);
+		FrameSampler.Stream stream = sampler.stream("camera");
+		Object run = new Object();
+		BufferedImage grey = solid(0x808080, 64, 64);
+
+		FrameSampler.Frame first = sampler.sample(stream, grey, run);
+		assertTrue(first.isClassified());
+		assertEquals(1f, first.getChange(), 0f);
+		// a frame of the same run reuses results that are not in yet
+		FrameSampler.Frame second = sampler.sample(stream, solid(0x828282, 64, 64), run);
+		assertFalse(second.isClassified());
+		assertEquals(2 / 255f, second.getChange(), 0.0001f);
+		List<InceptionResult> results = Collections.singletonList(new InceptionResult("grey", 0.9f, 0));
+		first.setResults(results);
+		assertSame(results, second.getResults());
+
+		assertFalse(sampler.sample(stream, grey, new Object()).isClassified());
+		// two frames reused in a row, the next is classified however similar
+		FrameSampler.Frame forced = sampler.sample(stream, grey, new Object());
+		assertTrue(forced.isClassified());
+		assertEquals(0f, forced.getChange(), 0f);
+		assertNull(forced.getResults());
+
+		// the reference is now a frame of another run still waiting for results
+		assertTrue(sampler.sample(stream, grey, new Object()).isClassified());
+
+		// a large change is always classified
+		FrameSampler.Frame changed = sampler.sample(stream, solid(0x000000, 64, 64), run);
+		assertTrue(changed.isClassified());
+		assertEquals(0x80 / 255f, changed.getChange(), 0.01f);
+	}
+
+	@Test
+	public void testStreams() {
+		FrameSampler sampler = new FrameSampler(0.05f, 10, 2);
+		FrameSampler.Stream a = sampler.stream("a");
+		assertSame(a, sampler.stream("a"));
+		sampler.stream("b");
+		sampler.stream("a");
+		sampler.stream("c");
+		// b was seen least recently
+		assertEquals(2, sampler.getStreamCount());
+		assertSame(a, sampler.stream("a"));
+		assertNotSame(sampler.newStream(), sampler.newStream());
+		assertEquals(2, sampler.getStreamCount());
+
+		// streams never share a reference
+		Object run = new Object();
+		assertTrue(sampler.sample(a, solid(0x808080, 8, 8), run).isClassified());
+		assertTrue(sampler.sample(sampler.stream("c"), solid(0x808080, 8, 8), run).isClassified());
+		assertFalse(sampler.sample(a, solid(0x808080, 8, 8), run).isClassified());
+	}
+
+	@Test
+	public void testMerge() {
+		List<InceptionResult> first = Arrays.asList(new InceptionResult("cat", 0.6f, 0),
+				new InceptionResult("dog", 0.3f, 1));
+		List<InceptionResult> second = Arrays.asList(new InceptionResult("dog", 0.7f, 0),
+				new InceptionResult("bird", 0.2f, 1));
+		assertSame(first, FrameSampler.merge(Collections.singletonList(first), 5));
+		List<InceptionResult> merged = FrameSampler.merge(Arrays.asList(first, second), 2);
+		assertEquals(2, merged.size());
+		assertEquals("dog", merged.get(0).getLabel());
+		assertEquals(0.7f, merged.get(0).getScore(), 0f);
+		assertEquals("cat", merged.get(1).getLabel());
+		assertEquals(1, merged.get(1).getRank());
+	}
+
+	private static BufferedImage solid(int rgb, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, rgb);
+			}
+		}
+		return image;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void testBucketsAreInclusiveUpperBounds() {
+		Histogram histogram = new Histogram(1, 10, 100);
+		assertEquals(0, histogram.record(0));
+		assertEquals(0, histogram.record(1));
+		assertEquals(1, histogram.record(2));
+		assertEquals(2, histogram.record(100));
+		assertEquals(3, histogram.record(101));
+		assertArrayEquals(new long[] { 2, 1, 1, 1 }, histogram.getCounts());
+		assertEquals(5, histogram.getCount());
+		assertEquals(204, histogram.getSum());
+		assertEquals(Long.MAX_VALUE, histogram.getUpperBound(3));
+	}
+
+	@Test
+	public void testQuantileBound() {
+		Histogram histogram = new Histogram(1, 10, 100);
+		assertEquals(0, histogram.getQuantileBound(0.5));
+		for (int i = 0; i < 90; i++) {
+			histogram.record(5);
+		}
+		for (int i = 0; i < 10; i++) {
+			histogram.record(50);
+		}
+		assertEquals(10, histogram.getQuantileBound(0.5));
+		assertEquals(10, histogram.getQuantileBound(0.9));
+		assertEquals(100, histogram.getQuantileBound(0.99));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBoundsMustAscend() {
+		new Histogram(10, 10);
+	}
+
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		final Histogram histogram = new Histogram(10, 100);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 10000; i++) {
+					histogram.record(i % 200);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, histogram.getCount());
+		assertArrayEquals(new long[] { 4 * 550, 4 * 4500, 4 * 4950 }, histogram.getCounts());
+	}
+}
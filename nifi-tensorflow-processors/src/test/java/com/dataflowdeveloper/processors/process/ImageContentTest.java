@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+import org.tensorflow.Tensor;
+
+public class ImageContentTest {
+
+	private final DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+
+	@Test
+	public void testStreamedContentMatchesBytes() throws Exception {
+		byte[] image = TensorFlowServiceTest.resource("test.jpg");
+		try (ImageContent content = ImageContent.read(new ByteArrayInputStream(image), image.length, pool);
+				Tensor<String> tensor = content.toTensor()) {
+			assertEquals(image.length, content.getLength());
+			assertArrayEquals(image, tensor.bytesValue());
+			ByteBuffer data = content.data();
+			byte[] copy = new byte[data.remaining()];
+			data.get(copy);
+			assertArrayEquals(image, copy);
+		}
+	}
+
+	@Test
+	public void testBuffersAreReused() throws Exception {
+		byte[] image = new byte[300];
+		ByteBuffer first;
+		try (ImageContent content = ImageContent.read(new ByteArrayInputStream(image), image.length, pool)) {
+			first = content.data();
+		}
+		ByteBuffer pooled = pool.acquire(400);
+		pool.release(pooled);
+		assertEquals(4096, pooled.capacity());
+		assertEquals(4096, pool.getPooledBytes());
+		assertSame(pooled, pool.acquire(1000));
+		assertEquals(300, first.remaining());
+	}
+
+	@Test(expected = EOFException.class)
+	public void testShortContentFails() throws IOException {
+		ImageContent.read(new ByteArrayInputStream(new byte[10]), 20, pool);
+	}
+
+	@Test(expected = IOException.class)
+	public void testLongContentFails() throws IOException {
+		ImageContent.read(new ByteArrayInputStream(new byte[30]), 20, pool);
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Test;
+
+public class JavaImagePreprocessorTest {
+
+	private static final int FLOATS = TensorFlowService.INPUT_HEIGHT * TensorFlowService.INPUT_WIDTH * 3;
+
+	private final JavaImagePreprocessor preprocessor = new JavaImagePreprocessor(TensorFlowService.INPUT_HEIGHT,
+			TensorFlowService.INPUT_WIDTH, TensorFlowService.INPUT_MEAN, TensorFlowService.INPUT_SCALE);
+
+	@Test
+	public void testPngAndGif() throws Exception {
+		for (String format : new String[] { "png", "gif" }) {
+			BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+			fill(image, new Color(200, 100, 50));
+			float[] values = normalize(encode(image, format));
+			for (int i = 0; i < values.length; i += 3) {
+				assertEquals(format, 200 - TensorFlowService.INPUT_MEAN, values[i], 0.001f);
+				assertEquals(format, 100 - TensorFlowService.INPUT_MEAN, values[i + 1], 0.001f);
+				assertEquals(format, 50 - TensorFlowService.INPUT_MEAN, values[i + 2], 0.001f);
+			}
+		}
+	}
+
+	@Test
+	public void testResizeMatchesTensorFlow() throws Exception {
+		// a gradient in each channel shows up any difference in sampling
+		BufferedImage image = new BufferedImage(100, 80, BufferedImage.TYPE_3BYTE_BGR);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, new Color(x * 2, y * 3, (x + y) % 256).getRGB());
+			}
+		}
+		byte[] png = encode(image, "png");
+		float[] expected = new float[FLOATS];
+		for (int y = 0; y < TensorFlowService.INPUT_HEIGHT; y++) {
+			for (int x = 0; x < TensorFlowService.INPUT_WIDTH; x++) {
+				float[] pixel = bilinear(image, x * 100f / TensorFlowService.INPUT_WIDTH,
+						y * 80f / TensorFlowService.INPUT_HEIGHT);
+				for (int c = 0; c < 3; c++) {
+					expected[(y * TensorFlowService.INPUT_WIDTH + x) * 3 + c] = pixel[c]
+							- TensorFlowService.INPUT_MEAN;
+				}
+			}
+		}
+		float[] actual = normalize(png);
+		for (int i = 0; i < FLOATS; i++) {
+			assertEquals("float " + i, expected[i], actual[i], 0.01f);
+		}
+	}
+
+	@Test
+	public void testCloseToTensorFlowEngine() throws Exception {
+		byte[] jpeg = TensorFlowServiceTest.resource("test.jpg");
+		FloatBuffer tensorflow = FloatBuffer.allocate(FLOATS);
+		try (ImagePreprocessor ops = new ImagePreprocessor(TensorFlowService.INPUT_HEIGHT,
+				TensorFlowService.INPUT_WIDTH, TensorFlowService.INPUT_MEAN, TensorFlowService.INPUT_SCALE,
+				new byte[0])) {
+			ops.normalize(ImageContent.wrap(jpeg), tensorflow);
+		}
+		float[] java = normalize(jpeg);
+		double difference = 0;
+		for (int i = 0; i < FLOATS; i++) {
+			difference += Math.abs(tensorflow.get(i) - java[i]);
+		}
+		// the two JPEG decoders round their IDCTs differently
+		assertTrue("mean difference " + difference / FLOATS, difference / FLOATS < 2);
+	}
+
+	@Test
+	public void testPixelsAreRoundedResize() throws Exception {
+		byte[] jpeg = TensorFlowServiceTest.resource("test.jpg");
+		FloatBuffer resized = FloatBuffer.allocate(FLOATS);
+		new JavaImagePreprocessor(TensorFlowService.INPUT_HEIGHT, TensorFlowService.INPUT_WIDTH, 0f, 1f)
+				.normalize(ImageContent.wrap(jpeg), resized);
+		ByteBuffer pixels = ByteBuffer.allocate(FLOATS);
+		preprocessor.pixels(ImageContent.wrap(jpeg), pixels);
+		assertEquals(FLOATS, pixels.position());
+		for (int i = 0; i < FLOATS; i++) {
+			assertEquals("pixel " + i, (int) Math.rint(resized.get(i)), pixels.get(i) & 0xFF);
+		}
+
+		ByteBuffer tensorflow = ByteBuffer.allocate(FLOATS);
+		try (ImagePreprocessor ops = new ImagePreprocessor(TensorFlowService.INPUT_HEIGHT,
+				TensorFlowService.INPUT_WIDTH, TensorFlowService.INPUT_MEAN, TensorFlowService.INPUT_SCALE,
+				new byte[0])) {
+			ops.pixels(ImageContent.wrap(jpeg), tensorflow);
+		}
+		assertEquals(FLOATS, tensorflow.position());
+		double difference = 0;
+		for (int i = 0; i < FLOATS; i++) {
+			difference += Math.abs((tensorflow.get(i) & 0xFF) - (pixels.get(i) & 0xFF));
+		}
+		assertTrue("mean difference " + difference / FLOATS, difference / FLOATS < 2);
+	}
+
+	@Test
+	public void testGreyIsReplicated() throws Exception {
+		BufferedImage image = new BufferedImage(50, 50, BufferedImage.TYPE_BYTE_GRAY);
+		for (int y = 0; y < 50; y++) {
+			for (int x = 0; x < 50; x++) {
+				image.getRaster().setSample(x, y, 0, 90);
+			}
+		}
+		float[] values = normalize(encode(image, "png"));
+		for (float value : values) {
+			assertEquals(90 - TensorFlowService.INPUT_MEAN, value, 0.001f);
+		}
+	}
+
+	@Test
+	public void testLargeImageIsSubsampled() throws Exception {
+		BufferedImage image = new BufferedImage(2000, 1500, BufferedImage.TYPE_INT_RGB);
+		fill(image, new Color(10, 20, 30));
+		BufferedImage decoded = preprocessor.decode(ImageContent.wrap(encode(image, "png")).data());
+		assertEquals(2000 / 6 + 1, decoded.getWidth());
+		assertEquals(1500 / 6, decoded.getHeight());
+		float[] values = normalize(encode(image, "png"));
+		assertEquals(10 - TensorFlowService.INPUT_MEAN, values[0], 0.001f);
+		assertEquals(30 - TensorFlowService.INPUT_MEAN, values[FLOATS - 1], 0.001f);
+	}
+
+	@Test
+	public void testCorruptImageWritesNothing() throws Exception {
+		FloatBuffer out = FloatBuffer.allocate(FLOATS);
+		for (byte[] image : new byte[][] { TensorFlowServiceTest.resource("test.txt"), new byte[0],
+				truncate(TensorFlowServiceTest.resource("test.jpg"), 100) }) {
+			try {
+				preprocessor.normalize(ImageContent.wrap(image), out);
+				fail("expected an IOException");
+			} catch (IOException e) {
+				assertEquals(0, out.position());
+			}
+		}
+	}
+
+	@Test
+	public void testTilesCropTheImage() throws Exception {
+		// red left half, blue right half, two model inputs wide so nothing is subsampled
+		BufferedImage image = new BufferedImage(TensorFlowService.INPUT_WIDTH * 2, TensorFlowService.INPUT_HEIGHT,
+				BufferedImage.TYPE_INT_RGB);
+		fill(image, Color.RED);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = image.getWidth() / 2; x < image.getWidth(); x++) {
+				image.setRGB(x, y, Color.BLUE.getRGB());
+			}
+		}
+		byte[] png = encode(image, "png");
+		FloatBuffer out = FloatBuffer.allocate(FLOATS * 3);
+		preprocessor.normalizeTiles(ImageContent.wrap(png), Tiling.parse("1x1,2x1", 0f, Tiling.Pooling.MAX), out);
+		assertEquals(FLOATS * 3, out.position());
+		float[] values = out.array();
+		float[] whole = normalize(png);
+		for (int i = 0; i < FLOATS; i++) {
+			// the whole frame tile is what normalize writes
+			assertEquals("float " + i, whole[i], values[i], 0f);
+			float red = i % 3 == 0 ? 255 - TensorFlowService.INPUT_MEAN : -TensorFlowService.INPUT_MEAN;
+			float blue = i % 3 == 2 ? 255 - TensorFlowService.INPUT_MEAN : -TensorFlowService.INPUT_MEAN;
+			assertEquals("left float " + i, red, values[FLOATS + i], 0.001f);
+			assertEquals("right float " + i, blue, values[FLOATS * 2 + i], 0.001f);
+		}
+
+		ByteBuffer pixels = ByteBuffer.allocate(FLOATS * 2);
+		preprocessor.pixelsTiles(ImageContent.wrap(png), Tiling.parse("2x1", 0f, Tiling.Pooling.MAX), pixels);
+		assertEquals(FLOATS * 2, pixels.position());
+		assertEquals(255, pixels.get(0) & 0xFF);
+		assertEquals(0, pixels.get(2) & 0xFF);
+		assertEquals(0, pixels.get(FLOATS) & 0xFF);
+		assertEquals(255, pixels.get(FLOATS + 2) & 0xFF);
+	}
+
+	@Test
+	public void testTilesKeepResolution() throws Exception {
+		BufferedImage image = new BufferedImage(2000, 1500, BufferedImage.TYPE_INT_RGB);
+		fill(image, new Color(10, 20, 30));
+		// one decode for every tile, subsampled only as far as the finest grid allows
+		FloatBuffer out = FloatBuffer.allocate(FLOATS * 9);
+		preprocessor.normalizeTiles(ImageContent.wrap(encode(image, "png")),
+				Tiling.parse("3x3", 0.25f, Tiling.Pooling.MEAN), out);
+		assertEquals(FLOATS * 9, out.position());
+		assertEquals(10 - TensorFlowService.INPUT_MEAN, out.get(0), 0.001f);
+		assertEquals(30 - TensorFlowService.INPUT_MEAN, out.get(FLOATS * 9 - 1), 0.001f);
+	}
+
+	@Test
+	public void testGetRgbRowsMatchRaster() throws Exception {
+		BufferedImage image = new BufferedImage(TensorFlowService.INPUT_WIDTH * 2 + 37,
+				TensorFlowService.INPUT_HEIGHT + 11, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, new Color(x % 256, y % 256, (x * y) % 256).getRGB());
+			}
+		}
+		// a GIF decodes to an indexed image read through getRGB, the same
+		// pixels as a PNG decode to a raster read directly
+		byte[] gif = encode(image, "gif");
+		BufferedImage indexed = ImageIO.read(new ByteArrayInputStream(gif));
+		BufferedImage raster = new BufferedImage(indexed.getWidth(), indexed.getHeight(),
+				BufferedImage.TYPE_3BYTE_BGR);
+		raster.getGraphics().drawImage(indexed, 0, 0, null);
+		byte[] png = encode(raster, "png");
+		assertArrayEquals(normalize(png), normalize(gif), 0f);
+
+		Tiling tiling = Tiling.parse("1x1,3x2", 0.2f, Tiling.Pooling.MAX);
+		FloatBuffer direct = FloatBuffer.allocate(FLOATS * tiling.size());
+		FloatBuffer converted = FloatBuffer.allocate(FLOATS * tiling.size());
+		preprocessor.normalizeTiles(ImageContent.wrap(png), tiling, direct);
+		preprocessor.normalizeTiles(ImageContent.wrap(gif), tiling, converted);
+		assertArrayEquals(direct.array(), converted.array(), 0f);
+	}
+
+	@Test
+	public void testAnimatedGifFrames() throws Exception {
+		final List<Integer> colors = new ArrayList<Integer>();
+		int frames = preprocessor.decodeFrames(ImageContent.wrap(animatedGif(0xFF0000, 0x00FF00, 0x0000FF)).data(),
+				10, frame -> colors.add(frame.getRGB(frame.getWidth() / 2, frame.getHeight() / 2) & 0xFFFFFF));
+		assertEquals(3, frames);
+		assertEquals(Arrays.asList(0xFF0000, 0x00FF00, 0x0000FF), colors);
+
+		colors.clear();
+		assertEquals(2, preprocessor.decodeFrames(ImageContent.wrap(animatedGif(0xFF0000, 0x00FF00, 0x0000FF))
+				.data(), 2, frame -> colors.add(frame.getRGB(0, 0) & 0xFFFFFF)));
+		assertEquals(Arrays.asList(0xFF0000, 0x00FF00), colors);
+
+		// a still image is one frame, subsampled as decode would
+		BufferedImage large = new BufferedImage(2000, 1500, BufferedImage.TYPE_INT_RGB);
+		fill(large, new Color(10, 20, 30));
+		colors.clear();
+		assertEquals(1, preprocessor.decodeFrames(ImageContent.wrap(encode(large, "png")).data(), 10,
+				frame -> colors.add(frame.getWidth())));
+		assertEquals(Arrays.asList(2000 / 6 + 1), colors);
+	}
+
+	/**
+	 * @return a 32x32 GIF showing each colour in turn
+	 */
+	static byte[] animatedGif(int... rgb) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+			writer.setOutput(stream);
+			writer.prepareWriteSequence(null);
+			for (int color : rgb) {
+				BufferedImage frame = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+				fill(frame, new Color(color));
+				writer.writeToSequence(new IIOImage(frame, null, null), null);
+			}
+			writer.endWriteSequence();
+		} finally {
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
+	private float[] normalize(byte[] image) throws IOException {
+		FloatBuffer out = FloatBuffer.allocate(FLOATS);
+		preprocessor.normalize(ImageContent.wrap(image), out);
+		assertEquals(FLOATS, out.position());
+		return out.array();
+	}
+
+	private static float[] bilinear(BufferedImage image, float x, float y) {
+		int x0 = (int) x;
+		int y0 = (int) y;
+		int x1 = Math.min(x0 + 1, image.getWidth() - 1);
+		int y1 = Math.min(y0 + 1, image.getHeight() - 1);
+		float[] pixel = new float[3];
+		for (int c = 0; c < 3; c++) {
+			int shift = 16 - c * 8;
+			float top = lerp(channel(image, x0, y0, shift), channel(image, x1, y0, shift), x - x0);
+			float bottom = lerp(channel(image, x0, y1, shift), channel(image, x1, y1, shift), x - x0);
+			pixel[c] = lerp(top, bottom, y - y0);
+		}
+		return pixel;
+	}
+
+	private static float channel(BufferedImage image, int x, int y, int shift) {
+		return (image.getRGB(x, y) >> shift) & 0xFF;
+	}
+
+	private static float lerp(float a, float b, float t) {
+		return a + (b - a) * t;
+	}
+
+	private static void fill(BufferedImage image, Color color) {
+		Graphics2D g = image.createGraphics();
+		g.setColor(color);
+		g.fillRect(0, 0, image.getWidth(), image.getHeight());
+		g.dispose();
+	}
+
+	static byte[] encode(BufferedImage image, String format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, format, out);
+		return out.toByteArray();
+	}
+
+	private static byte[] truncate(byte[] bytes, int length) {
+		byte[] truncated = new byte[length];
+		System.arraycopy(bytes, 0, truncated, 0, length);
+		return truncated;
+	}
+}
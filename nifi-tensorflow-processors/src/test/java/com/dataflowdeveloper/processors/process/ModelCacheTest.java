@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModelCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TensorFlowService service;
+
+	@After
+	public void close() {
+		if (service != null) {
+			service.close();
+		}
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		service = new TensorFlowService(1, 1, 2, Long.MAX_VALUE, 60000);
+		String a = TestModels.createModel(folder.getRoot().toPath().resolve("a")).toString();
+		String b = TestModels.createModel(folder.getRoot().toPath().resolve("b")).toString();
+		String c = TestModels.createModel(folder.getRoot().toPath().resolve("c")).toString();
+
+		service.acquireModel(a).release();
+		service.acquireModel(b).release();
+		service.acquireModel(a).release();
+		service.acquireModel(c).release();
+		// b was least recently used
+		service.acquireModel(a).release();
+		service.acquireModel(b).release();
+
+		ModelCache.Stats stats = service.getModelCacheStats();
+		assertEquals(4, stats.getMisses());
+		assertEquals(2, stats.getHits());
+		assertEquals(2, stats.getEvictions());
+		assertEquals(2, stats.getEntries());
+	}
+
+	@Test
+	public void testEvictsBySize() throws Exception {
+		Path a = TestModels.createModel(folder.getRoot().toPath().resolve("a"));
+		Path b = TestModels.createModel(folder.getRoot().toPath().resolve("b"));
+		long graphBytes = Files.size(a.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB));
+		service = new TensorFlowService(1, 1, 10, graphBytes + 1, 60000);
+
+		service.acquireModel(a.toString()).release();
+		service.acquireModel(b.toString()).release();
+
+		ModelCache.Stats stats = service.getModelCacheStats();
+		assertEquals(1, stats.getEvictions());
+		assertEquals(graphBytes, stats.getBytes());
+	}
+
+	@Test
+	public void testModelInUseSurvivesEviction() throws Exception {
+		service = new TensorFlowService(1, 1, 1, Long.MAX_VALUE, 60000);
+		String a = TestModels.createModel(folder.getRoot().toPath().resolve("a")).toString();
+		String b = TestModels.createModel(folder.getRoot().toPath().resolve("b")).toString();
+		byte[] image = TensorFlowServiceTest.resource("test.jpg");
+
+		TensorFlowModel inUse = service.acquireModel(a);
+		service.getInception(image, b);
+		assertEquals(1, service.getModelCacheStats().getEvictions());
+		// the evicted model's session is still open for its holder
+		assertFalse(inUse.getGraph().operation("output") == null);
+		inUse.getSession().runner().fetch("weights").run().get(0).close();
+		inUse.release();
+		assertEquals(5, service.getInception(image, a).size());
+	}
+
+	@Test
+	public void testReloadsChangedGraph() throws Exception {
+		service = new TensorFlowService(1, 1, 4, Long.MAX_VALUE, 0);
+		Path dir = TestModels.createModel(folder.getRoot().toPath().resolve("model"));
+		TensorFlowModel first = service.acquireModel(dir.toString());
+		first.release();
+
+		TestModels.createModel(dir, 12);
+		Path graph = dir.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB);
+		Files.setLastModifiedTime(graph, FileTime.fromMillis(Files.getLastModifiedTime(graph).toMillis() + 5000));
+
+		TensorFlowModel second = service.acquireModel(dir.toString());
+		second.release();
+		assertNotSame(first, second);
+		assertEquals(12, second.getLabels().size());
+		assertEquals(1, service.getModelCacheStats().getReloads());
+	}
+
+	@Test
+	public void testLoadFinishingAfterCloseIsClosed() throws Exception {
+		final Path dir = folder.getRoot().toPath().resolve("model");
+		final NativeResources resources = new NativeResources();
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final ModelCache cache = new ModelCache(4, Long.MAX_VALUE, 60000, "graph.pb", path -> {
+			loading.countDown();
+			try {
+				closed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return new TensorFlowModel(path, TestModels.graphDef(3), Arrays.asList("a", "b", "c"), new byte[0],
+					ModelSignature.DEFAULT, resources);
+		});
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread loader = new Thread(() -> {
+			try {
+				cache.acquire(dir).release();
+			} catch (Throwable t) {
+				failure.set(t);
+			}
+		});
+		loader.start();
+		loading.await();
+		cache.close();
+		closed.countDown();
+		loader.join();
+
+		assertTrue(String.valueOf(failure.get()), failure.get() instanceof IllegalStateException);
+		assertEquals(1, resources.snapshot().getOpened(NativeResources.Kind.GRAPH));
+		assertEquals(0, resources.snapshot().getLive(NativeResources.Kind.GRAPH));
+		assertEquals(0, resources.snapshot().getLive(NativeResources.Kind.SESSION));
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModelSignatureTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testDirectoryWithoutDescriptorKeepsDefaults() throws Exception {
+		Path dir = TestModels.createModel(folder.getRoot().toPath().resolve("model"));
+		assertSame(ModelSignature.DEFAULT, ModelSignature.DEFAULT.forDirectory(dir));
+		assertFalse(ModelSignature.DEFAULT.isSavedModel(dir));
+		assertEquals(dir.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB),
+				ModelSignature.DEFAULT.graphPath(dir));
+		assertEquals(224 * 224 * 3, ModelSignature.DEFAULT.getImageFloats());
+	}
+
+	@Test
+	public void testPropertiesOverrideOnlyTheirKeys() {
+		Properties properties = new Properties();
+		properties.setProperty("input.width", " 160 ");
+		properties.setProperty("channel.order", "bgr");
+		properties.setProperty("tags", "serve, gpu,");
+		ModelSignature signature = ModelSignature.DEFAULT.with(properties);
+		assertEquals(160, signature.getWidth());
+		assertEquals(TensorFlowService.INPUT_HEIGHT, signature.getHeight());
+		assertEquals(ModelSignature.ChannelOrder.BGR, signature.getChannelOrder());
+		assertArrayEquals(new String[] { "serve", "gpu" }, signature.getTags());
+		assertEquals(TensorFlowService.INPUT_OPERATION, signature.getInputName());
+		assertEquals(TensorFlowService.INPUT_MEAN, signature.getMean(), 0f);
+	}
+
+	@Test
+	public void testSavedModelUsesItsOwnGraphFile() throws Exception {
+		Path dir = TestModels.createSavedModel(folder.getRoot().toPath().resolve("saved"));
+		assertTrue(ModelSignature.DEFAULT.isSavedModel(dir));
+		assertEquals(dir.resolve(ModelSignature.SAVED_MODEL_FILE), ModelSignature.DEFAULT.graphPath(dir));
+	}
+
+	@Test(expected = ModelLoadException.class)
+	public void testBadDescriptorValue() throws Exception {
+		Path dir = folder.newFolder().toPath();
+		Files.write(dir.resolve(ModelSignature.DESCRIPTOR_FILE), Arrays.asList("input.scale=0"));
+		ModelSignature.DEFAULT.forDirectory(dir);
+	}
+
+	@Test
+	public void testOutputQuantization() {
+		assertEquals(1f / 256, ModelSignature.DEFAULT.getOutputScale(), 0f);
+		Properties properties = new Properties();
+		properties.setProperty("output.scale", "0.00390625");
+		properties.setProperty("output.zero.point", "3");
+		ModelSignature signature = ModelSignature.DEFAULT.with(properties);
+		assertEquals(3, signature.getOutputZeroPoint());
+		assertEquals(0f, signature.dequantize(3), 0f);
+		assertEquals(0.5f, signature.dequantize(131), 0f);
+	}
+
+	@Test(expected = ModelLoadException.class)
+	public void testZeroPointOutOfRange() throws Exception {
+		Path dir = folder.newFolder().toPath();
+		Files.write(dir.resolve(ModelSignature.DESCRIPTOR_FILE), Arrays.asList("output.zero.point=256"));
+		ModelSignature.DEFAULT.forDirectory(dir);
+	}
+
+	@Test(expected = ModelLoadException.class)
+	public void testUnknownChannelOrder() throws Exception {
+		Path dir = folder.newFolder().toPath();
+		Files.write(dir.resolve(ModelSignature.DESCRIPTOR_FILE), Arrays.asList("channel.order=GRB"));
+		ModelSignature.DEFAULT.forDirectory(dir);
+	}
+}
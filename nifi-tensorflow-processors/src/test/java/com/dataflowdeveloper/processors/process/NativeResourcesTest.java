@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tensorflow.Tensor;
+
+import com.dataflowdeveloper.processors.process.NativeResources.Kind;
+
+public class NativeResourcesTest {
+
+	// a leaked 224x224 float input alone is 600 KB, thousands of them would be
+	// far past this
+	private static final long MAX_RSS_GROWTH = 64L * 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testTensorIsCountedOnce() {
+		NativeResources resources = new NativeResources();
+		long global = NativeResources.GLOBAL.snapshot().getOpened(Kind.TENSOR);
+		NativeResources.TensorHandle<Float> handle = resources.track(Tensor.create(new float[16], Float.class));
+		assertEquals(1, resources.snapshot().getLive(Kind.TENSOR));
+		assertEquals(64, resources.snapshot().getBytes(Kind.TENSOR));
+		assertTrue(NativeResources.GLOBAL.snapshot().getOpened(Kind.TENSOR) > global);
+		assertFalse(resources.snapshot().isEmpty());
+		handle.close();
+		handle.close();
+		assertEquals(0, resources.snapshot().getLive(Kind.TENSOR));
+		assertEquals(0, resources.snapshot().getBytes(Kind.TENSOR));
+		assertEquals(1, resources.snapshot().getOpened(Kind.TENSOR));
+		assertEquals(Long.valueOf(0), resources.snapshot().toGauges().get("Native Tensors Live"));
+	}
+
+	/**
+	 * thousands of inferences through both engines, the fan out and the
+	 * quantized model leave no tensor open and do not grow the process
+	 */
+	@Test
+	public void testSoak() throws Exception {
+		Path root = folder.getRoot().toPath();
+		List<String> models = Arrays.asList(TestModels.createModel(root.resolve("model")).toString(),
+				TestModels.createQuantizedModel(root.resolve("quantized")).toString());
+		List<ImageContent> batch = new ArrayList<ImageContent>();
+		for (int i = 0; i < 8; i++) {
+			batch.add(ImageContent.wrap(TensorFlowServiceTest.resource(i == 5 ? "test.txt" : "test.jpg")));
+		}
+		for (Preprocessor.Engine engine : Preprocessor.Engine.values()) {
+			TensorFlowService service = new TensorFlowService(0, 0, 2, Long.MAX_VALUE, 0, null, engine);
+			NativeResources resources = service.getNativeResources();
+			try {
+				soak(service, models, batch, 30);
+				NativeResources.Snapshot warm = resources.snapshot();
+				long rss = residentBytes();
+				soak(service, models, batch, 100);
+				NativeResources.Snapshot soaked = resources.snapshot();
+				assertEquals(engine.name(), 0, soaked.getLive(Kind.TENSOR));
+				assertEquals(engine.name(), 0, soaked.getBytes(Kind.TENSOR));
+				assertEquals(engine.name(), warm.getLive(Kind.GRAPH), soaked.getLive(Kind.GRAPH));
+				assertEquals(engine.name(), warm.getLive(Kind.SESSION), soaked.getLive(Kind.SESSION));
+				assertTrue(engine.name(), soaked.getOpened(Kind.TENSOR) - warm.getOpened(Kind.TENSOR) >= 100 * 4);
+				if (rss > 0) {
+					long growth = residentBytes() - rss;
+					assertTrue(engine.name() + " resident memory grew by " + growth + " bytes",
+							growth < MAX_RSS_GROWTH);
+				}
+			} finally {
+				service.close();
+			}
+			assertTrue(engine.name() + " " + resources.snapshot(), resources.snapshot().isEmpty());
+		}
+	}
+
+	/**
+	 * each round classifies the batch with a fan out over both models, each
+	 * model alone and one image on its own, 8 * 4 + 1 images in all
+	 */
+	private static void soak(TensorFlowService service, List<String> models, List<ImageContent> batch, int rounds)
+			throws Exception {
+		byte[] image = TensorFlowServiceTest.resource("test.jpg");
+		for (int round = 0; round < rounds; round++) {
+			service.getInceptionFanOut(batch, models, 5, 0f, new BatchTimings(batch.size()));
+			for (String model : models) {
+				service.getInceptionBatch(batch, model, 5, 0f, new BatchTimings(batch.size()));
+			}
+			service.getInception(image, models.get(round % 2));
+		}
+	}
+
+	/**
+	 * @return resident set size on Linux, 0 elsewhere
+	 */
+	private static long residentBytes() throws Exception {
+		Path statm = Paths.get("/proc/self/statm");
+		if (!Files.isReadable(statm)) {
+			return 0;
+		}
+		String[] pages = new String(Files.readAllBytes(statm), StandardCharsets.US_ASCII).trim().split(" ");
+		return Long.parseLong(pages[1]) * 4096;
+	}
+
+	@Test
+	public void testProcessorPublishesGauges() throws Exception {
+		TestRunner testRunner = TestRunners.newTestRunner(TensorFlowProcessor.class);
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.enqueue(TensorFlowServiceTest.resource("test.jpg"));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		testRunner.assertAllFlowFilesTransferred(TensorFlowProcessor.REL_SUCCESS, 1);
+		assertEquals(Long.valueOf(0), testRunner.getCounterValue("Native Tensors Live"));
+		// the model and the TensorFlow preprocessor
+		assertEquals(Long.valueOf(2), testRunner.getCounterValue("Native Graphs Live"));
+		assertEquals(Long.valueOf(2), testRunner.getCounterValue("Native Sessions Live"));
+		assertTrue(testRunner.getCounterValue("Native Graph Bytes") > 0);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ResultCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static ResultCache.Key key(int content) {
+		return new ResultCache.Key(1, ContentHash.of(ByteBuffer.allocate(4).putInt(0, content)), 5, 0f);
+	}
+
+	private static List<InceptionResult> results(String label) {
+		return Collections.singletonList(new InceptionResult(label, "100.00%", 0));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEviction() {
+		ResultCache cache = new ResultCache(2, 60000, ResultCache.EvictionPolicy.LRU);
+		cache.put(key(1), results("a"));
+		cache.put(key(2), results("b"));
+		assertNotNull(cache.get(key(1)));
+		cache.put(key(3), results("c"));
+		assertNotNull(cache.get(key(1)));
+		assertNull(cache.get(key(2)));
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testFirstInFirstOutEviction() {
+		ResultCache cache = new ResultCache(2, 60000, ResultCache.EvictionPolicy.FIFO);
+		cache.put(key(1), results("a"));
+		cache.put(key(2), results("b"));
+		assertNotNull(cache.get(key(1)));
+		cache.put(key(3), results("c"));
+		assertNull(cache.get(key(1)));
+		assertNotNull(cache.get(key(2)));
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		ResultCache cache = new ResultCache(10, 50, ResultCache.EvictionPolicy.LRU);
+		cache.put(key(1), results("a"));
+		assertNotNull(cache.get(key(1)));
+		Thread.sleep(100);
+		cache.put(key(2), results("b"));
+		cache.expire();
+		assertEquals(1, cache.size());
+		assertNull(cache.get(key(1)));
+	}
+
+	@Test
+	public void testExpireIsPacedByTheTimeToLive() throws Exception {
+		// a time to live shorter than the scan interval paces the scans
+		ResultCache cache = new ResultCache(10, 200, ResultCache.EvictionPolicy.LRU);
+		cache.expire();
+		cache.put(key(1), results("a"));
+		cache.expire();
+		assertEquals(1, cache.size());
+		Thread.sleep(250);
+		cache.expire();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testServiceReusesResultsUntilModelReloads() throws Exception {
+		Path model = TestModels.createModel(folder.getRoot().toPath().resolve("model"));
+		TensorFlowService service = new TensorFlowService(1, 1, 4, Long.MAX_VALUE, 0,
+				new ResultCache(10, 60000, ResultCache.EvictionPolicy.LRU));
+		try {
+			byte[] image = TensorFlowServiceTest.resource("test.jpg");
+			List<InceptionResult> first = service.getInception(image, model.toString());
+			assertSame(first, service.getInception(image, model.toString()));
+			// a different top K is a different result
+			assertEquals(2, service.getInception(image, model.toString(), 2, 0f).size());
+
+			BatchTimings timings = new BatchTimings(2);
+			List<List<InceptionResult>> batch = service.getInceptionBatch(
+					Arrays.asList(ImageContent.wrap(image), ImageContent.wrap(image)), model.toString(),
+					TensorFlowService.DEFAULT_TOP_K, 0f, timings);
+			assertSame(first, batch.get(0));
+			assertEquals(0, timings.getRunSize());
+			assertEquals(true, timings.isCached(1));
+
+			Path graph = model.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB);
+			Files.setLastModifiedTime(graph, FileTime.fromMillis(Files.getLastModifiedTime(graph).toMillis() + 5000));
+			List<InceptionResult> reloaded = service.getInception(image, model.toString());
+			assertEquals(1, service.getModelCacheStats().getReloads());
+			assertEquals(first.get(0).getLabel(), reloaded.get(0).getLabel());
+			assertEquals(3, service.getResultCache().getHits());
+			assertEquals(3, service.getResultCache().getMisses());
+		} finally {
+			service.close();
+		}
+	}
+}
@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSessionFactory;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Load test of the processor on the mock framework against the generated
+ * model, so it runs offline. Thousands of generated JPEG, PNG and GIF images
+ * of several sizes go through every batch setting at each number of
+ * concurrent tasks, and each run reports FlowFiles per second, latency
+ * percentiles, heap allocation and native memory growth. The results are
+ * written as JSON so runs before and after a change can be compared.
+ * <p>
+ * Latency is the time a FlowFile spent in the processor's stages, read from
+ * its tf.time.* attributes: every FlowFile is queued up front, so time in the
+ * queue would only measure the queue. Heap allocation counts the onTrigger
+ * threads and the processor's own stage and batcher threads. Native growth
+ * is the process resident set, the JVM's direct buffers and the bytes of the
+ * tensors and graphs still open when the run ends.
+ * <p>
+ * Left out of the default build, run it with
+ *
+ * <pre>
+ * mvn test -pl nifi-tensorflow-processors -Pload-test -Dload.flowfiles=5000 -Dload.threads=1,2,4,8
+ * </pre>
+ *
+ * load.output names the JSON file, by default a timestamped file in target.
+ */
+public class TensorFlowProcessorLoadTest {
+
+	private static final String[] SIZES = { "64x48", "320x240", "640x480", "1280x960" };
+
+	// distinct images generated per size and format
+	private static final int VARIANTS = 3;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * One combination of batch properties, run at every thread count.
+	 */
+	private static final class Settings {
+		final String name;
+		final Preprocessor.Engine engine;
+		final int batchSize;
+		final int pipelineDepth;
+		final String dynamicBatchWait;
+
+		Settings(String name, Preprocessor.Engine engine, int batchSize, int pipelineDepth,
+				String dynamicBatchWait) {
+			this.name = name;
+			this.engine = engine;
+			this.batchSize = batchSize;
+			this.pipelineDepth = pipelineDepth;
+			this.dynamicBatchWait = dynamicBatchWait;
+		}
+	}
+
+	private static final List<Settings> SETTINGS = Arrays.asList(
+			new Settings("single", Preprocessor.Engine.TENSORFLOW, 1, 0, "0 ms"),
+			new Settings("batch", Preprocessor.Engine.TENSORFLOW, 16, 0, "0 ms"),
+			new Settings("pipelined", Preprocessor.Engine.TENSORFLOW, 16, 2, "0 ms"),
+			new Settings("dynamic", Preprocessor.Engine.TENSORFLOW, 4, 0, "5 ms"),
+			// the TensorFlow engine only decodes JPEG
+			new Settings("java-mixed-formats", Preprocessor.Engine.JAVA, 16, 0, "0 ms"));
+
+	/**
+	 * The processor with the bytes its onTrigger threads allocate counted,
+	 * the mock framework's threads are gone by the time a run returns.
+	 */
+	public static class MeasuredProcessor extends TensorFlowProcessor {
+		final LongAdder allocated = new LongAdder();
+
+		@Override
+		public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory)
+				throws ProcessException {
+			final long thread = Thread.currentThread().getId();
+			final long before = threads().getThreadAllocatedBytes(thread);
+			try {
+				super.onTrigger(context, sessionFactory);
+			} finally {
+				allocated.add(threads().getThreadAllocatedBytes(thread) - before);
+			}
+		}
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		final int flowFiles = Integer.getInteger("load.flowfiles", 2000);
+		final List<Integer> threadCounts = threadCounts(System.getProperty("load.threads"));
+		final String modelDir = TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString();
+		final List<byte[]> jpegs = images("jpg");
+		final List<byte[]> mixed = new ArrayList<byte[]>(jpegs);
+		mixed.addAll(images("png"));
+		mixed.addAll(images("gif"));
+
+		final StringBuilder runs = new StringBuilder();
+		for (Settings settings : SETTINGS) {
+			for (int threads : threadCounts) {
+				final List<byte[]> images = settings.engine == Preprocessor.Engine.JAVA ? mixed : jpegs;
+				final String run = run(modelDir, settings, threads, images, flowFiles);
+				System.out.println(run);
+				runs.append(runs.length() == 0 ? "\n    " : ",\n    ").append(run);
+			}
+		}
+
+		final String json = "{\n  \"timestamp\": " + quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ",
+				Locale.ROOT).format(new Date())) + ",\n  \"java\": " + quote(System.getProperty("java.version"))
+				+ ",\n  \"os\": " + quote(System.getProperty("os.name") + " " + System.getProperty("os.arch"))
+				+ ",\n  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",\n  \"flowFiles\": "
+				+ flowFiles + ",\n  \"runs\": [" + runs + "\n  ]\n}\n";
+		String output = System.getProperty("load.output");
+		if (output == null) {
+			output = "target/load-test-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date())
+					+ ".json";
+		}
+		final Path path = Paths.get(output);
+		if (path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+		Files.write(path, json.getBytes(StandardCharsets.UTF_8));
+		System.out.println("Load test results written to " + path.toAbsolutePath());
+	}
+
+	/**
+	 * warm the processor up, then time the FlowFiles through it
+	 *
+	 * @return the run's results as a JSON object
+	 */
+	private String run(String modelDir, Settings settings, int threads, List<byte[]> images, int flowFiles) {
+		final NativeResources.Snapshot idle = NativeResources.GLOBAL.snapshot();
+		final MeasuredProcessor processor = new MeasuredProcessor();
+		final TestRunner runner = TestRunners.newTestRunner(processor);
+		runner.setProperty(TensorFlowProcessor.MODEL_DIR, modelDir);
+		runner.setProperty(TensorFlowProcessor.PREPROCESSING_ENGINE, settings.engine.name());
+		runner.setProperty(TensorFlowProcessor.BATCH_SIZE, String.valueOf(settings.batchSize));
+		runner.setProperty(TensorFlowProcessor.PIPELINE_DEPTH, String.valueOf(settings.pipelineDepth));
+		runner.setProperty(TensorFlowProcessor.DYNAMIC_BATCH_WAIT, settings.dynamicBatchWait);
+		runner.setProperty(TensorFlowProcessor.TIMING_ATTRIBUTES, "true");
+		runner.setValidateExpressionUsage(false);
+		runner.setThreadCount(threads);
+
+		// schedule, load the model and let every thread see each image once
+		for (int i = 0; i < Math.max(images.size(), threads * settings.batchSize); i++) {
+			runner.enqueue(images.get(i % images.size()));
+		}
+		drain(runner, settings, threads, true);
+		runner.clearTransferState();
+		processor.allocated.reset();
+
+		final Map<Long, Long> allocatedBefore = allocatedByThread();
+		final long rssBefore = residentBytes();
+		final long directBefore = directBytes();
+		final NativeResources.Snapshot nativeBefore = NativeResources.GLOBAL.snapshot();
+		for (int i = 0; i < flowFiles; i++) {
+			runner.enqueue(images.get(i % images.size()));
+		}
+		final long start = System.nanoTime();
+		drain(runner, settings, threads, false);
+		final long nanos = System.nanoTime() - start;
+		long allocated = processor.allocated.sum();
+		for (Map.Entry<Long, Long> thread : allocatedByThread().entrySet()) {
+			final Long before = allocatedBefore.get(thread.getKey());
+			allocated += thread.getValue() - (before == null ? 0 : before);
+		}
+		final long rssGrowth = residentBytes() - rssBefore;
+		final long directGrowth = directBytes() - directBefore;
+		final NativeResources.Snapshot nativeAfter = NativeResources.GLOBAL.snapshot();
+
+		final List<MockFlowFile> succeeded = runner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS);
+		assertEquals(settings.name, 0, runner.getFlowFilesForRelationship(TensorFlowProcessor.REL_FAILURE).size());
+		assertEquals(settings.name, flowFiles, succeeded.size());
+		final long[] latencies = new long[succeeded.size()];
+		for (int i = 0; i < latencies.length; i++) {
+			final MockFlowFile flowFile = succeeded.get(i);
+			latencies[i] = Long.parseLong(flowFile.getAttribute(TensorFlowProcessor.ATTRIBUTE_TIME_READ))
+					+ Long.parseLong(flowFile.getAttribute(TensorFlowProcessor.ATTRIBUTE_TIME_PREPROCESS))
+					+ Long.parseLong(flowFile.getAttribute(TensorFlowProcessor.ATTRIBUTE_TIME_INFERENCE))
+					+ Long.parseLong(flowFile.getAttribute(TensorFlowProcessor.ATTRIBUTE_TIME_POST_PROCESS));
+		}
+		Arrays.sort(latencies);
+		runner.clearTransferState();
+
+		// stopping must close every tensor, graph and session the run opened
+		runner.run(1, true, false);
+		final NativeResources.Snapshot stopped = NativeResources.GLOBAL.snapshot();
+		for (NativeResources.Kind kind : NativeResources.Kind.values()) {
+			assertEquals(settings.name + " leaked " + stopped, idle.getLive(kind), stopped.getLive(kind));
+		}
+
+		final double seconds = nanos / 1e9;
+		final StringBuilder json = new StringBuilder("{");
+		json.append("\"settings\": ").append(quote(settings.name));
+		json.append(", \"engine\": ").append(quote(settings.engine.name()));
+		json.append(", \"threads\": ").append(threads);
+		json.append(", \"batchSize\": ").append(settings.batchSize);
+		json.append(", \"pipelineDepth\": ").append(settings.pipelineDepth);
+		json.append(", \"dynamicBatchWait\": ").append(quote(settings.dynamicBatchWait));
+		json.append(", \"flowFiles\": ").append(flowFiles);
+		json.append(", \"seconds\": ").append(format(seconds));
+		json.append(", \"flowFilesPerSecond\": ").append(format(flowFiles / seconds));
+		json.append(", \"latencyMicros\": {\"p50\": ").append(percentile(latencies, 0.5));
+		json.append(", \"p95\": ").append(percentile(latencies, 0.95));
+		json.append(", \"p99\": ").append(percentile(latencies, 0.99));
+		json.append(", \"max\": ").append(latencies[latencies.length - 1]).append('}');
+		json.append(", \"heapAllocatedBytesPerSecond\": ").append(Math.round(allocated / seconds));
+		json.append(", \"heapAllocatedBytesPerFlowFile\": ").append(allocated / flowFiles);
+		json.append(", \"residentGrowthBytes\": ").append(rssGrowth);
+		json.append(", \"directGrowthBytes\": ").append(directGrowth);
+		json.append(", \"nativeTensorBytesGrowth\": ").append(
+				nativeAfter.getBytes(NativeResources.Kind.TENSOR) - nativeBefore.getBytes(NativeResources.Kind.TENSOR));
+		json.append(", \"nativeGraphBytesGrowth\": ").append(
+				nativeAfter.getBytes(NativeResources.Kind.GRAPH) - nativeBefore.getBytes(NativeResources.Kind.GRAPH));
+		return json.append('}').toString();
+	}
+
+	/**
+	 * trigger the processor until its queue is empty, keeping it scheduled
+	 */
+	private static void drain(TestRunner runner, Settings settings, int threads, boolean initialize) {
+		boolean first = initialize;
+		while (runner.getQueueSize().getObjectCount() > 0) {
+			final int batches = (runner.getQueueSize().getObjectCount() + settings.batchSize - 1)
+					/ settings.batchSize;
+			runner.run(Math.max(batches, threads), false, first, TimeUnit.HOURS.toMillis(1));
+			first = false;
+		}
+	}
+
+	/**
+	 * @return a noisy gradient with a dark disc per size, the noise keeps the
+	 *         encoder from compressing it unrealistically well
+	 */
+	private static List<byte[]> images(String format) throws IOException {
+		final List<byte[]> images = new ArrayList<byte[]>();
+		for (String size : SIZES) {
+			final String[] dimensions = size.split("x");
+			final int width = Integer.parseInt(dimensions[0]);
+			final int height = Integer.parseInt(dimensions[1]);
+			for (int variant = 0; variant < VARIANTS; variant++) {
+				final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				final Random random = new Random(width * 31L + height * 7L + variant);
+				final int tint = random.nextInt(0x1000000);
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						final int r = ((tint >> 16) + x * 255 / width + random.nextInt(32)) & 0xFF;
+						final int g = ((tint >> 8) + y * 255 / height + random.nextInt(32)) & 0xFF;
+						final int b = (tint + (x + y) * 127 / (width + height) + random.nextInt(32)) & 0xFF;
+						image.setRGB(x, y, (r << 16) | (g << 8) | b);
+					}
+				}
+				final Graphics2D graphics = image.createGraphics();
+				graphics.setColor(Color.DARK_GRAY);
+				graphics.fillOval(width / 4, height / 4, width / 2, height / 2);
+				graphics.dispose();
+				images.add(JavaImagePreprocessorTest.encode(image, format));
+			}
+		}
+		return images;
+	}
+
+	/**
+	 * @param threads
+	 *            comma separated thread counts, or null for 1 doubling up to
+	 *            the available processors
+	 */
+	private static List<Integer> threadCounts(String threads) {
+		final List<Integer> counts = new ArrayList<Integer>();
+		if (threads != null) {
+			for (String count : threads.split(",")) {
+				counts.add(Integer.parseInt(count.trim()));
+			}
+			return counts;
+		}
+		final int processors = Runtime.getRuntime().availableProcessors();
+		for (int count = 1; count < processors; count *= 2) {
+			counts.add(count);
+		}
+		counts.add(processors);
+		return counts;
+	}
+
+	private static com.sun.management.ThreadMXBean threads() {
+		return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	}
+
+	/**
+	 * @return bytes allocated so far by every live thread but this one
+	 */
+	private static Map<Long, Long> allocatedByThread() {
+		final long[] ids = threads().getAllThreadIds();
+		final long[] allocated = threads().getThreadAllocatedBytes(ids);
+		final Map<Long, Long> byThread = new HashMap<Long, Long>();
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] != Thread.currentThread().getId() && allocated[i] >= 0) {
+				byThread.put(ids[i], allocated[i]);
+			}
+		}
+		return byThread;
+	}
+
+	/**
+	 * @return the process's resident set, -1 where /proc is not available
+	 */
+	private static long residentBytes() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8)) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// not Linux
+		}
+		return -1;
+	}
+
+	private static long directBytes() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) {
+				return pool.getMemoryUsed();
+			}
+		}
+		return -1;
+	}
+
+	private static long percentile(long[] sorted, double quantile) {
+		return sorted[Math.max(0, (int) Math.ceil(quantile * sorted.length) - 1)];
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private static String quote(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+}
@@ -17,23 +17,39 @@
 package com.dataflowdeveloper.processors.process;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.awt.image.BufferedImage;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import javax.imageio.ImageIO;
+
+import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.tensorflow.Tensor;
 
 public class TensorFlowProcessorTest {
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	private TestRunner testRunner;
 
 	@Before
@@ -78,6 +94,461 @@ public class TensorFlowProcessorTest {
 		runAndAssertHappy();
 	}
 
+	@Test
+	public void testGeneratedModel() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		for (int i = 0; i < 3; i++) {
+			testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		}
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run(3);
+		testRunner.assertAllFlowFilesTransferred(TensorFlowProcessor.REL_SUCCESS, 3);
+		assertEquals(Long.valueOf(1), testRunner.getCounterValue("Model Cache Misses"));
+		assertEquals(Long.valueOf(3), testRunner.getCounterValue("Model Cache Hits"));
+		List<MockFlowFile> successFiles = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS);
+		for (MockFlowFile mockFile : successFiles) {
+			assertEquals(successFiles.get(0).getAttribute("label_1"), mockFile.getAttribute("label_1"));
+			assertEquals(successFiles.get(0).getAttribute("probability_1"), mockFile.getAttribute("probability_1"));
+		}
+	}
+
+	@Test
+	public void testBatchWithCorruptImage() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "4");
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.txt"));
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("TimSpann2.jpg"));
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_SUCCESS, 3);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_FAILURE, 1);
+		List<MockFlowFile> successFiles = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS);
+		assertEquals(successFiles.get(0).getAttribute("probability_1"), successFiles.get(2).getAttribute("probability_1"));
+	}
+
+	@Test
+	public void testJavaEngineClassifiesPng() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "3");
+		testRunner.setProperty(TensorFlowProcessor.PREPROCESSING_ENGINE, Preprocessor.Engine.JAVA.name());
+		BufferedImage image = ImageIO.read(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		testRunner.enqueue(JavaImagePreprocessorTest.encode(image, "png"));
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.txt"));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_SUCCESS, 2);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_FAILURE, 1);
+		List<MockFlowFile> successFiles = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS);
+		assertEquals(successFiles.get(0).getAttribute("label_1"), successFiles.get(1).getAttribute("label_1"));
+	}
+
+	@Test
+	public void testStageMetrics() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "3");
+		testRunner.setProperty(TensorFlowProcessor.TIMING_ATTRIBUTES, "true");
+		for (int i = 0; i < 3; i++) {
+			testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		}
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		testRunner.assertAllFlowFilesTransferred(TensorFlowProcessor.REL_SUCCESS, 3);
+
+		ProcessorMetrics metrics = ((TensorFlowProcessor) testRunner.getProcessor()).getMetrics();
+		assertEquals(3, metrics.getLatencies(ProcessorMetrics.Stage.CONTENT_READ).getCount());
+		assertEquals(3, metrics.getLatencies(ProcessorMetrics.Stage.PREPROCESS).getCount());
+		assertEquals(1, metrics.getLatencies(ProcessorMetrics.Stage.INFERENCE).getCount());
+		assertEquals(1, metrics.getLatencies(ProcessorMetrics.Stage.POST_PROCESS).getCount());
+		assertEquals(3, metrics.getLatencies(ProcessorMetrics.Stage.ATTRIBUTE_WRITE).getCount());
+		assertEquals(Long.valueOf(1), testRunner.getCounterValue("Batch Size 3-4"));
+		assertNotNull(testRunner.getCounterValue("Inference Time (us)"));
+
+		for (MockFlowFile mockFile : testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS)) {
+			mockFile.assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_BATCH_SIZE, "3");
+			assertTrue(Long.parseLong(mockFile.getAttribute(TensorFlowProcessor.ATTRIBUTE_TIME_INFERENCE)) > 0);
+			mockFile.assertAttributeExists(TensorFlowProcessor.ATTRIBUTE_TIME_READ);
+			mockFile.assertAttributeExists(TensorFlowProcessor.ATTRIBUTE_TIME_PREPROCESS);
+			mockFile.assertAttributeExists(TensorFlowProcessor.ATTRIBUTE_TIME_POST_PROCESS);
+		}
+	}
+
+	@Test
+	public void testResultCacheSkipsDuplicates() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.RESULT_CACHE_SIZE, "10");
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("TimSpann2.jpg"));
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run(3);
+		testRunner.assertAllFlowFilesTransferred(TensorFlowProcessor.REL_SUCCESS, 3);
+		List<MockFlowFile> successFiles = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS);
+		successFiles.get(0).assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_CACHE_HIT, "false");
+		successFiles.get(1).assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_CACHE_HIT, "false");
+		successFiles.get(2).assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_CACHE_HIT, "true");
+		assertEquals(successFiles.get(0).getAttribute("probability_1"), successFiles.get(2).getAttribute("probability_1"));
+		assertEquals(Long.valueOf(1), testRunner.getCounterValue("Result Cache Hits"));
+		assertEquals(2, ((TensorFlowProcessor) testRunner.getProcessor()).getMetrics()
+				.getLatencies(ProcessorMetrics.Stage.INFERENCE).getCount());
+	}
+
+	@Test
+	public void testTopKAndMinimumProbability() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.TOP_K, "2");
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		MockFlowFile top2 = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS).get(0);
+		top2.assertAttributeExists("label_2");
+		top2.assertAttributeNotExists("label_3");
+
+		testRunner.clearTransferState();
+		testRunner.setProperty(TensorFlowProcessor.MIN_PROBABILITY, "100");
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		testRunner.run();
+		testRunner.assertAllFlowFilesTransferred(TensorFlowProcessor.REL_SUCCESS, 1);
+		testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS).get(0).assertAttributeNotExists("label_1");
+	}
+
+	@Test
+	public void testOversizedContentFails() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.MAX_CONTENT_SIZE, "1 KB");
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "2");
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		testRunner.enqueue(new byte[10]);
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		testRunner.assertAllFlowFilesTransferred(TensorFlowProcessor.REL_FAILURE, 2);
+	}
+
+	@Test
+	public void testMissingModelIsInvalid() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR, folder.getRoot().toPath().resolve("missing").toString());
+		testRunner.assertNotValid();
+	}
+
+	@Test
+	public void testSignatureProperties() throws Exception {
+		Path dir = TestModels.createModel(folder.getRoot().toPath().resolve("model"));
+		Files.write(dir.resolve("small.pb"),
+				TestModels.graphDef(TestModels.LABEL_COUNT, 0, "pixels", "softmax", 64, 48));
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR, dir.toString());
+		testRunner.setProperty(TensorFlowProcessor.GRAPH_FILE, "missing.pb");
+		testRunner.assertNotValid();
+		testRunner.setProperty(TensorFlowProcessor.GRAPH_FILE, "small.pb");
+		testRunner.setProperty(TensorFlowProcessor.INPUT_TENSOR, "pixels");
+		testRunner.setProperty(TensorFlowProcessor.OUTPUT_TENSOR, "softmax:0");
+		testRunner.setProperty(TensorFlowProcessor.INPUT_SIZE, "64 by 48");
+		testRunner.assertNotValid();
+		testRunner.setProperty(TensorFlowProcessor.INPUT_SIZE, "64x48");
+		testRunner.setProperty(TensorFlowProcessor.INPUT_SCALE, "0");
+		testRunner.assertNotValid();
+		testRunner.setProperty(TensorFlowProcessor.INPUT_SCALE, "2");
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		testRunner.assertAllFlowFilesTransferred(TensorFlowProcessor.REL_SUCCESS, 1);
+	}
+
+	@Test(expected = AssertionError.class)
+	public void testLabelMismatchFailsScheduling() throws Exception {
+		Path dir = TestModels.createModel(folder.getRoot().toPath().resolve("model"));
+		Files.write(dir.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB), TestModels.graphDef(4));
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR, dir.toString());
+		testRunner.run();
+	}
+
+	@Test
+	public void testMissingAttributeModelFails() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"),
+				Collections.singletonMap(TensorFlowProcessor.MODEL_DIR_NAME, folder.getRoot().toString()));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		testRunner.assertAllFlowFilesTransferred(TensorFlowProcessor.REL_FAILURE, 1);
+	}
+
+	@Test
+	public void testPipelinedMatchesSequential() throws Exception {
+		String model = TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString();
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR, model);
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "2");
+		testRunner.setProperty(TensorFlowProcessor.PIPELINE_DEPTH, "3");
+		for (int i = 0; i < 7; i++) {
+			testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream(i == 3 ? "test.txt" : "test.jpg"));
+		}
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"),
+				Collections.singletonMap(TensorFlowProcessor.MODEL_DIR_NAME, folder.getRoot().toString()));
+		testRunner.setValidateExpressionUsage(false);
+		// one trigger drains the queue through the pipeline
+		testRunner.run(1);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_SUCCESS, 6);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_FAILURE, 2);
+		testRunner.assertQueueEmpty();
+		assertEquals(4, ((TensorFlowProcessor) testRunner.getProcessor()).getMetrics()
+				.getLatencies(ProcessorMetrics.Stage.INFERENCE).getCount());
+
+		TensorFlowService service = new TensorFlowService();
+		try {
+			List<InceptionResult> expected = service.getInception(TensorFlowServiceTest.resource("test.jpg"), model);
+			for (MockFlowFile mockFile : testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS)) {
+				mockFile.assertAttributeEquals("label_1", expected.get(0).getLabel());
+				mockFile.assertAttributeEquals("probability_1", expected.get(0).getProbability());
+			}
+		} finally {
+			service.close();
+		}
+	}
+
+	@Test
+	public void testDynamicBatching() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "1");
+		testRunner.setProperty(TensorFlowProcessor.TIMING_ATTRIBUTES, "true");
+		testRunner.setProperty(TensorFlowProcessor.PIPELINE_DEPTH, "2");
+		testRunner.setProperty(TensorFlowProcessor.DYNAMIC_BATCH_WAIT, "10 sec");
+		testRunner.assertNotValid();
+		testRunner.setProperty(TensorFlowProcessor.PIPELINE_DEPTH, "0");
+		// four tasks of one FlowFile fill each shared run long before the wait is up
+		testRunner.setProperty(TensorFlowProcessor.DYNAMIC_BATCH_SIZE, "4");
+		testRunner.setThreadCount(4);
+		for (int i = 0; i < 8; i++) {
+			testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.jpg"));
+		}
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run(8);
+		testRunner.assertAllFlowFilesTransferred(TensorFlowProcessor.REL_SUCCESS, 8);
+		List<MockFlowFile> successFiles = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS);
+		for (MockFlowFile mockFile : successFiles) {
+			mockFile.assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_BATCH_SIZE, "4");
+			mockFile.assertAttributeEquals("label_1", successFiles.get(0).getAttribute("label_1"));
+		}
+		ProcessorMetrics metrics = ((TensorFlowProcessor) testRunner.getProcessor()).getMetrics();
+		assertEquals(2, metrics.getLatencies(ProcessorMetrics.Stage.INFERENCE).getCount());
+		assertEquals(8, metrics.getLatencies(ProcessorMetrics.Stage.PREPROCESS).getCount());
+	}
+
+	@Test
+	public void testTiles() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "2");
+		testRunner.setProperty(TensorFlowProcessor.TOP_K, "1");
+		testRunner.setProperty(TensorFlowProcessor.TILES, "2x");
+		testRunner.assertNotValid();
+		testRunner.setProperty(TensorFlowProcessor.TILES, "1x1,2x1");
+		testRunner.setProperty(TensorFlowProcessor.PIPELINE_DEPTH, "1");
+		testRunner.assertNotValid();
+		testRunner.setProperty(TensorFlowProcessor.PIPELINE_DEPTH, "0");
+		testRunner.setProperty(TensorFlowProcessor.TILE_ATTRIBUTES, "true");
+		testRunner.assertValid();
+
+		BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 32; y++) {
+			for (int x = 0; x < 64; x++) {
+				image.setRGB(x, y, x < 32 ? 0xFF0000 : 0x0000FF);
+			}
+		}
+		testRunner.enqueue(JavaImagePreprocessorTest.encode(image, "jpg"));
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.txt"));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_SUCCESS, 1);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_FAILURE, 1);
+		MockFlowFile split = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS).get(0);
+		split.assertAttributeExists("label_1");
+		split.assertAttributeExists("tile.1.label_1");
+		split.assertAttributeEquals("tile.2.label_1", "label 0");
+		split.assertAttributeEquals("tile.3.label_1", "label " + (TestModels.LABEL_COUNT - 1));
+		split.assertAttributeNotExists("tile.3.label_2");
+		split.assertAttributeNotExists("tile.4.label_1");
+	}
+
+	@Test
+	public void testSequence() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "10");
+		testRunner.setProperty(TensorFlowProcessor.TIMING_ATTRIBUTES, "true");
+		testRunner.setProperty(TensorFlowProcessor.SEQUENCE_KEY, "camera");
+		testRunner.setProperty(TensorFlowProcessor.TILES, "2x2");
+		testRunner.assertNotValid();
+		testRunner.removeProperty(TensorFlowProcessor.TILES);
+		testRunner.assertValid();
+
+		byte[] red = TensorFlowServiceTest.solid(0xFF0000);
+		testRunner.enqueue(red, Collections.singletonMap("camera", "a"));
+		testRunner.enqueue(red, Collections.singletonMap("camera", "a"));
+		testRunner.enqueue(TensorFlowServiceTest.solid(0x0000FF), Collections.singletonMap("camera", "a"));
+		testRunner.enqueue(red, Collections.singletonMap("camera", "b"));
+		testRunner.enqueue(JavaImagePreprocessorTest.animatedGif(0xFF0000, 0xFF0000, 0x0000FF));
+		testRunner.enqueue(TensorFlowServiceTest.resource("test.txt"), Collections.singletonMap("camera", "a"));
+		testRunner.setValidateExpressionUsage(false);
+		// stay scheduled so the streams are remembered for the next batch
+		testRunner.run(1, false);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_SUCCESS, 5);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_FAILURE, 1);
+		String last = "label " + (TestModels.LABEL_COUNT - 1);
+		List<MockFlowFile> successFiles = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS);
+		String[] labels = { "label 0", "label 0", last, "label 0" };
+		String[] classified = { "1", "0", "1", "1" };
+		for (int i = 0; i < labels.length; i++) {
+			successFiles.get(i).assertAttributeEquals("label_1", labels[i]);
+			successFiles.get(i).assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_FRAMES, "1");
+			successFiles.get(i).assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_FRAMES_CLASSIFIED, classified[i]);
+			successFiles.get(i).assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_BATCH_SIZE, "5");
+		}
+		successFiles.get(0).assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_FRAME_CHANGE, "100.00%");
+		successFiles.get(1).assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_FRAME_CHANGE, "0.00%");
+		successFiles.get(1).assertAttributeEquals("probability_1", successFiles.get(0).getAttribute("probability_1"));
+		// the animation's frames are a stream of their own, its labels merged across them
+		MockFlowFile gif = successFiles.get(4);
+		gif.assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_FRAMES, "3");
+		gif.assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_FRAMES_CLASSIFIED, "2");
+		assertTrue(Arrays.asList(gif.getAttribute("label_1"), gif.getAttribute("label_2")).contains("label 0"));
+		assertTrue(Arrays.asList(gif.getAttribute("label_1"), gif.getAttribute("label_2")).contains(last));
+		assertEquals(Long.valueOf(5), testRunner.getCounterValue("Frames Classified"));
+		assertEquals(Long.valueOf(2), testRunner.getCounterValue("Frames Skipped"));
+
+		// a later batch reuses the stream's last results without a model run
+		testRunner.clearTransferState();
+		testRunner.enqueue(red, Collections.singletonMap("camera", "b"));
+		testRunner.run(1, true, false);
+		MockFlowFile reused = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS).get(0);
+		reused.assertAttributeEquals("label_1", "label 0");
+		reused.assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_FRAMES_CLASSIFIED, "0");
+		reused.assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_BATCH_SIZE, "0");
+		assertEquals(1, ((TensorFlowProcessor) testRunner.getProcessor()).getMetrics()
+				.getLatencies(ProcessorMetrics.Stage.INFERENCE).getCount());
+	}
+
+	@Test
+	public void testEmbeddings() throws Exception {
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "2");
+		assertFalse(testRunner.getProcessor().getRelationships().contains(TensorFlowProcessor.REL_EMBEDDING));
+		testRunner.setProperty(TensorFlowProcessor.EMBEDDING_TENSORS, "channel_mean,");
+		testRunner.assertNotValid();
+		testRunner.setProperty(TensorFlowProcessor.EMBEDDING_TENSORS, "channel_mean, logits");
+		testRunner.setProperty(TensorFlowProcessor.TILES, "2x2");
+		testRunner.assertNotValid();
+		testRunner.removeProperty(TensorFlowProcessor.TILES);
+		testRunner.setProperty(TensorFlowProcessor.EMBEDDING_FORMAT, Embeddings.Format.FLOAT16.name());
+		testRunner.assertValid();
+		assertTrue(testRunner.getProcessor().getRelationships().contains(TensorFlowProcessor.REL_EMBEDDING));
+
+		testRunner.enqueue(TensorFlowServiceTest.solid(0xFF0000));
+		testRunner.enqueue(TensorFlowServiceTest.resource("test.txt"));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_SUCCESS, 1);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_FAILURE, 1);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_EMBEDDING, 1);
+		MockFlowFile success = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS).get(0);
+		success.assertAttributeEquals("label_1", "label 0");
+		success.assertContentEquals(TensorFlowServiceTest.solid(0xFF0000));
+		MockFlowFile embedding = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_EMBEDDING).get(0);
+		embedding.assertAttributeEquals("label_1", "label 0");
+		embedding.assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_EMBEDDING_TENSORS, "channel_mean,logits");
+		embedding.assertAttributeEquals(TensorFlowProcessor.ATTRIBUTE_EMBEDDING_FORMAT, "FLOAT16");
+		embedding.assertAttributeEquals("mime.type", "application/octet-stream");
+		byte[] content = testRunner.getContentAsByteArray(embedding);
+		assertEquals('T', content[0]);
+		assertEquals(2, content[5]);
+		// header: magic, version, type, count, then name, rank and one dimension per tensor
+		int header = 8 + (2 + "channel_mean".length() + 1 + 4) + (2 + "logits".length() + 1 + 4);
+		assertEquals(header + 2 * (3 + TestModels.LABEL_COUNT), content.length);
+
+		testRunner.removeProperty(TensorFlowProcessor.EMBEDDING_TENSORS);
+		assertFalse(testRunner.getProcessor().getRelationships().contains(TensorFlowProcessor.REL_EMBEDDING));
+	}
+
+	@Test
+	public void testFanOut() throws Exception {
+		fanOut(0);
+	}
+
+	@Test
+	public void testPipelinedFanOut() throws Exception {
+		fanOut(2);
+	}
+
+	private void fanOut(int pipelineDepth) throws Exception {
+		Path root = folder.getRoot().toPath();
+		Path bgr = TestModels.createModel(root.resolve("bgr"));
+		Files.write(bgr.resolve(ModelSignature.DESCRIPTOR_FILE), Arrays.asList("channel.order=BGR"));
+		Path small = TestModels.createModel(root.resolve("small"));
+		Files.write(small.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB), TestModels.graphDef(
+				TestModels.LABEL_COUNT, 0, TensorFlowService.INPUT_OPERATION, TensorFlowService.OUTPUT_OPERATION, 64, 48));
+		Files.write(small.resolve(ModelSignature.DESCRIPTOR_FILE), Arrays.asList("input.width=64", "input.height=48"));
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR, TestModels.createModel(root.resolve("model")).toString());
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "2");
+		testRunner.setProperty(TensorFlowProcessor.PIPELINE_DEPTH, String.valueOf(pipelineDepth));
+		testRunner.setProperty("bgr", bgr.toString());
+		testRunner.setProperty("small.model", small.toString());
+		testRunner.setProperty("bad name", small.toString());
+		testRunner.assertNotValid();
+		testRunner.removeProperty(new PropertyDescriptor.Builder().name("bad name").dynamic(true).build());
+		testRunner.setProperty("missing", root.resolve("missing").toString());
+		testRunner.assertNotValid();
+		testRunner.removeProperty(new PropertyDescriptor.Builder().name("missing").dynamic(true).build());
+		testRunner.assertValid();
+
+		testRunner.enqueue(TensorFlowServiceTest.solid(0xFF0000));
+		testRunner.enqueue(this.getClass().getClassLoader().getResourceAsStream("test.txt"));
+		testRunner.enqueue(TensorFlowServiceTest.solid(0x0000FF));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run(2);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_SUCCESS, 2);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_FAILURE, 1);
+		String last = "label " + (TestModels.LABEL_COUNT - 1);
+		List<MockFlowFile> successFiles = testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS);
+		MockFlowFile red = successFiles.get(0);
+		red.assertAttributeEquals("label_1", "label 0");
+		red.assertAttributeEquals("bgr.label_1", last);
+		red.assertAttributeEquals("small.model.label_1", "label 0");
+		red.assertAttributeExists("small.model.probability_1");
+		MockFlowFile blue = successFiles.get(1);
+		blue.assertAttributeEquals("label_1", last);
+		blue.assertAttributeEquals("bgr.label_1", "label 0");
+		blue.assertAttributeEquals("small.model.label_1", last);
+	}
+
+	@Test
+	public void testEmptyModelDirectory() throws Exception {
+		Path model = TestModels.createModel(folder.getRoot().toPath().resolve("model"));
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR, model.toString());
+		testRunner.setProperty(TensorFlowProcessor.BATCH_SIZE, "2");
+		testRunner.setProperty("extra", model.toString());
+
+		testRunner.enqueue(TensorFlowServiceTest.solid(0xFF0000));
+		testRunner.enqueue(TensorFlowServiceTest.solid(0xFF0000),
+				Collections.singletonMap(TensorFlowProcessor.MODEL_DIR_NAME, " "));
+		testRunner.setValidateExpressionUsage(false);
+		testRunner.run();
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_SUCCESS, 1);
+		testRunner.assertTransferCount(TensorFlowProcessor.REL_FAILURE, 1);
+		testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_SUCCESS).get(0)
+				.assertAttributeEquals("extra.label_1", "label 0");
+		testRunner.getFlowFilesForRelationship(TensorFlowProcessor.REL_FAILURE).get(0)
+				.assertAttributeEquals(TensorFlowProcessor.MODEL_DIR_NAME, " ");
+	}
+
 	private void runAndDisplay() { 
 		testRunner.setValidateExpressionUsage(false);
 		testRunner.run();
@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.RecordSet;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TensorFlowRecordProcessorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final RecordSchema BYTES_SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("id", RecordFieldType.STRING.getDataType()), new RecordField("image",
+					RecordFieldType.ARRAY.getArrayDataType(RecordFieldType.BYTE.getDataType()))));
+
+	private static final RecordSchema PATH_SCHEMA = new SimpleRecordSchema(Arrays.asList(
+			new RecordField("id", RecordFieldType.STRING.getDataType()),
+			new RecordField("image", RecordFieldType.STRING.getDataType())));
+
+	private TestRunner testRunner;
+	private ListRecordReader reader;
+	private ListRecordWriter writer;
+
+	@Before
+	public void init() throws Exception {
+		testRunner = TestRunners.newTestRunner(TensorFlowRecordProcessor.class);
+		reader = new ListRecordReader();
+		writer = new ListRecordWriter();
+		testRunner.addControllerService("reader", reader);
+		testRunner.enableControllerService(reader);
+		testRunner.addControllerService("writer", writer);
+		testRunner.enableControllerService(writer);
+		testRunner.setProperty(TensorFlowRecordProcessor.RECORD_READER, "reader");
+		testRunner.setProperty(TensorFlowRecordProcessor.RECORD_WRITER, "writer");
+		testRunner.setProperty(TensorFlowProcessor.MODEL_DIR,
+				TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString());
+		testRunner.setValidateExpressionUsage(false);
+	}
+
+	private static Record record(RecordSchema schema, String id, Object image) {
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("id", id);
+		values.put("image", image);
+		return new MapRecord(schema, values);
+	}
+
+	private static Object[] boxed(byte[] bytes) {
+		Object[] boxed = new Object[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			boxed[i] = bytes[i];
+		}
+		return boxed;
+	}
+
+	@Test
+	public void testClassifiesImageBytesInBatches() throws Exception {
+		byte[] image = TensorFlowServiceTest.resource("test.jpg");
+		reader.schema = BYTES_SCHEMA;
+		reader.records = Arrays.asList(record(BYTES_SCHEMA, "a", boxed(image)),
+				record(BYTES_SCHEMA, "b", boxed("not an image".getBytes(StandardCharsets.UTF_8))),
+				record(BYTES_SCHEMA, "c", boxed(TensorFlowServiceTest.resource("TimSpann2.jpg"))),
+				record(BYTES_SCHEMA, "d", image));
+		testRunner.setProperty(TensorFlowRecordProcessor.BATCH_SIZE, "3");
+		testRunner.setProperty(TensorFlowProcessor.TOP_K, "2");
+		testRunner.enqueue(new byte[0]);
+		testRunner.run();
+
+		testRunner.assertAllFlowFilesTransferred(TensorFlowRecordProcessor.REL_SUCCESS, 1);
+		MockFlowFile out = testRunner.getFlowFilesForRelationship(TensorFlowRecordProcessor.REL_SUCCESS).get(0);
+		out.assertAttributeEquals(TensorFlowRecordProcessor.ATTRIBUTE_RECORD_COUNT, "4");
+		out.assertAttributeEquals(TensorFlowRecordProcessor.ATTRIBUTE_UNCLASSIFIED_COUNT, "1");
+		assertEquals(Long.valueOf(3), testRunner.getCounterValue("Records Classified"));
+
+		assertEquals(4, writer.written.size());
+		assertEquals(Arrays.asList("id", "results"), writer.written.get(0).getSchema().getFieldNames());
+		assertNull(writer.written.get(1).getValue("results"));
+		Object[] first = writer.written.get(0).getAsArray("results");
+		Object[] last = writer.written.get(3).getAsArray("results");
+		assertEquals(2, first.length);
+		Record top = (Record) first[0];
+		assertEquals(1, top.getValue(TensorFlowRecordProcessor.RESULT_RANK));
+		assertEquals(top.getValue(TensorFlowRecordProcessor.RESULT_LABEL),
+				((Record) last[0]).getValue(TensorFlowRecordProcessor.RESULT_LABEL));
+		assertEquals((Float) top.getValue(TensorFlowRecordProcessor.RESULT_PROBABILITY),
+				(Float) ((Record) last[0]).getValue(TensorFlowRecordProcessor.RESULT_PROBABILITY), 0.01f);
+	}
+
+	@Test
+	public void testClassifiesImagePaths() throws Exception {
+		String path = TensorFlowProcessorTest.class.getClassLoader().getResource("test.jpg").getPath();
+		reader.schema = PATH_SCHEMA;
+		reader.records = Arrays.asList(record(PATH_SCHEMA, "a", path),
+				record(PATH_SCHEMA, "b", folder.getRoot().toPath().resolve("missing.jpg").toString()));
+		testRunner.enqueue(new byte[0]);
+		testRunner.run();
+
+		testRunner.assertAllFlowFilesTransferred(TensorFlowRecordProcessor.REL_SUCCESS, 1);
+		assertEquals(Arrays.asList("id", "image", "results"), writer.written.get(0).getSchema().getFieldNames());
+		assertEquals(path, writer.written.get(0).getValue("image"));
+		assertEquals(TensorFlowService.DEFAULT_TOP_K, writer.written.get(0).getAsArray("results").length);
+		assertNull(writer.written.get(1).getValue("results"));
+	}
+
+	@Test
+	public void testUnreadableRecordsFail() throws Exception {
+		reader.failure = new MalformedRecordException("bad record");
+		testRunner.enqueue(new byte[0]);
+		testRunner.run();
+		testRunner.assertAllFlowFilesTransferred(TensorFlowRecordProcessor.REL_FAILURE, 1);
+	}
+
+	/**
+	 * Hands out a fixed list of records whatever the content.
+	 */
+	static class ListRecordReader extends AbstractControllerService implements RecordReaderFactory {
+		RecordSchema schema = BYTES_SCHEMA;
+		List<Record> records = Collections.emptyList();
+		MalformedRecordException failure;
+
+		@Override
+		public RecordReader createRecordReader(Map<String, String> variables, InputStream in, ComponentLog logger)
+				throws MalformedRecordException {
+			if (failure != null) {
+				throw failure;
+			}
+			final Iterator<Record> iterator = records.iterator();
+			return new RecordReader() {
+				@Override
+				public Record nextRecord(boolean coerceTypes, boolean dropUnknownFields) {
+					return iterator.hasNext() ? iterator.next() : null;
+				}
+
+				@Override
+				public RecordSchema getSchema() {
+					return schema;
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+
+	/**
+	 * Keeps every record written and writes one line per record.
+	 */
+	static class ListRecordWriter extends AbstractControllerService implements RecordSetWriterFactory {
+		final List<Record> written = new ArrayList<Record>();
+
+		@Override
+		public RecordSchema getSchema(Map<String, String> variables, RecordSchema readSchema) {
+			return readSchema;
+		}
+
+		@Override
+		public RecordSetWriter createWriter(ComponentLog logger, RecordSchema schema, final OutputStream out) {
+			return new RecordSetWriter() {
+				int count;
+
+				@Override
+				public WriteResult write(Record record) throws IOException {
+					written.add(record);
+					out.write((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+					count++;
+					return WriteResult.of(1, Collections.<String, String>emptyMap());
+				}
+
+				@Override
+				public WriteResult write(RecordSet recordSet) throws IOException {
+					Record record;
+					while ((record = recordSet.next()) != null) {
+						write(record);
+					}
+					return WriteResult.of(count, Collections.<String, String>emptyMap());
+				}
+
+				@Override
+				public void beginRecordSet() {
+				}
+
+				@Override
+				public WriteResult finishRecordSet() {
+					return WriteResult.of(count, Collections.<String, String>emptyMap());
+				}
+
+				@Override
+				public String getMimeType() {
+					return "text/plain";
+				}
+
+				@Override
+				public void flush() {
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+	}
+}
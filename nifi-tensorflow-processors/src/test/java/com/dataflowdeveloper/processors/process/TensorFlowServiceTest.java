@@ -0,0 +1,430 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tensorflow.DataType;
+import org.tensorflow.Graph;
+
+public class TensorFlowServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private TensorFlowService service;
+	private String modelDir;
+
+	@Before
+	public void init() throws IOException {
+		service = new TensorFlowService();
+		modelDir = TestModels.createModel(folder.getRoot().toPath().resolve("model")).toString();
+	}
+
+	@After
+	public void close() {
+		service.close();
+	}
+
+	static byte[] resource(String name) throws IOException {
+		try (InputStream in = TensorFlowServiceTest.class.getClassLoader().getResourceAsStream(name)) {
+			return IOUtils.toByteArray(in);
+		}
+	}
+
+	@Test
+	public void testModelIsLoadedOnce() throws Exception {
+		TensorFlowModel model = service.acquireModel(modelDir);
+		TensorFlowModel again = service.acquireModel(modelDir);
+		assertSame(model, again);
+		assertEquals(TestModels.LABEL_COUNT, model.getLabels().size());
+		model.release();
+		again.release();
+		assertEquals(1, service.getModelCacheStats().getMisses());
+	}
+
+	@Test
+	public void testRepeatedInceptionReusesModel() throws Exception {
+		byte[] image = resource("test.jpg");
+		List<InceptionResult> first = service.getInception(image, modelDir);
+		List<InceptionResult> second = service.getInception(image, modelDir);
+
+		assertEquals(5, first.size());
+		for (int i = 0; i < first.size(); i++) {
+			assertNotNull(first.get(i).getLabel());
+			assertEquals(first.get(i).toString(), second.get(i).toString());
+		}
+	}
+
+	@Test
+	public void testBatchMatchesSingleImages() throws Exception {
+		byte[] panda = resource("test.jpg");
+		byte[] face = resource("TimSpann2.jpg");
+		List<List<InceptionResult>> batch = service.getInception(Arrays.asList(panda, resource("test.txt"), face),
+				modelDir);
+
+		assertEquals(3, batch.size());
+		assertNull(batch.get(1));
+		assertEquals(service.getInception(panda, modelDir).toString(), batch.get(0).toString());
+		assertEquals(service.getInception(face, modelDir).toString(), batch.get(2).toString());
+	}
+
+	@Test
+	public void testConcurrentCallersShareOneModel() throws Exception {
+		final TensorFlowService shared = new TensorFlowService(1, 1);
+		final byte[] image = resource("test.jpg");
+		final String expected = service.getInception(image, modelDir).toString();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Callable<TensorFlowModel>> tasks = new ArrayList<Callable<TensorFlowModel>>();
+			for (int i = 0; i < 32; i++) {
+				tasks.add(() -> {
+					assertEquals(expected, shared.getInception(image, modelDir).toString());
+					TensorFlowModel model = shared.acquireModel(modelDir);
+					model.release();
+					return model;
+				});
+			}
+			TensorFlowModel model = shared.acquireModel(modelDir);
+			for (Future<TensorFlowModel> result : executor.invokeAll(tasks)) {
+				assertSame(model, result.get());
+			}
+			model.release();
+			assertEquals(1, shared.getModelCacheStats().getMisses());
+		} finally {
+			executor.shutdown();
+			shared.close();
+		}
+	}
+
+	@Test(expected = ModelLoadException.class)
+	public void testMissingOutputOperation() throws Exception {
+		Path dir = TestModels.createModel(folder.getRoot().toPath().resolve("no-output"));
+		try (Graph g = new Graph()) {
+			g.opBuilder("Placeholder", "input").setAttr("dtype", DataType.FLOAT).build();
+			Files.write(dir.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB), g.toGraphDef());
+		}
+		service.validateModel(dir.toString(), 1);
+	}
+
+	@Test(expected = ModelLoadException.class)
+	public void testMissingModelDirectory() throws Exception {
+		service.validateModel(folder.getRoot().toPath().resolve("missing").toString(), 1);
+	}
+
+	@Test(expected = ModelLoadException.class)
+	public void testRunTooLarge() throws Exception {
+		// 224x224x3 floats, a batch this size used to wrap around an int
+		service.validateModel(modelDir, 4000);
+	}
+
+	@Test
+	public void testFramesSplitIntoRuns() throws Exception {
+		List<byte[]> gifs = Arrays.asList(JavaImagePreprocessorTest.animatedGif(0xFF0000, 0x00FF00, 0x0000FF),
+				JavaImagePreprocessorTest.animatedGif(0x0000FF, 0xFF0000));
+		List<List<InceptionResult>> whole = new ArrayList<List<InceptionResult>>();
+		try (TensorFlowService.FrameRuns runs = service.frameRuns(modelDir, 5, 0f, new BatchTimings(0))) {
+			for (byte[] gif : gifs) {
+				service.decodeFrames(ImageContent.wrap(gif), modelDir, 10, frame -> runs.add(frame, whole::add));
+			}
+			assertTrue(whole.isEmpty());
+			runs.flush();
+		}
+
+		// a run of two frames at most, the batch's five frames need three
+		TensorFlowModel model = service.acquireModel(modelDir);
+		long runBytes = 2L * model.getImageBytes();
+		model.release();
+		BatchTimings timings = new BatchTimings(0);
+		List<List<InceptionResult>> split = new ArrayList<List<InceptionResult>>();
+		try (TensorFlowService.FrameRuns runs = service.frameRuns(modelDir, 5, 0f, timings, runBytes)) {
+			for (byte[] gif : gifs) {
+				service.decodeFrames(ImageContent.wrap(gif), modelDir, 10, frame -> runs.add(frame, split::add));
+			}
+			assertEquals(4, split.size());
+			runs.flush();
+		}
+		assertEquals(5, timings.getRunSize());
+		assertEquals(String.valueOf(whole), String.valueOf(split));
+	}
+
+	@Test
+	public void testSavedModelMatchesFrozenGraph() throws Exception {
+		Path dir = TestModels.createSavedModel(folder.getRoot().toPath().resolve("saved"));
+		byte[] image = resource("test.jpg");
+		service.validateModel(dir.toString(), 2);
+		assertEquals(service.getInception(image, modelDir).toString(),
+				service.getInception(image, dir.toString()).toString());
+	}
+
+	@Test
+	public void testDescriptorOverridesSignature() throws Exception {
+		Path dir = TestModels.createModel(folder.getRoot().toPath().resolve("mobile"));
+		Files.delete(dir.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB));
+		Files.write(dir.resolve("mobile.pb"),
+				TestModels.graphDef(TestModels.LABEL_COUNT, 0, "images", "scores", 128, 96));
+		Files.write(dir.resolve(ModelSignature.DESCRIPTOR_FILE),
+				Arrays.asList("graph.file=mobile.pb", "input.name=images:0", "output.name=scores",
+						"input.width=128", "input.height=96", "input.mean=127.5", "input.scale=127.5"));
+		service.validateModel(dir.toString(), 2);
+		TensorFlowModel model = service.acquireModel(dir.toString());
+		try {
+			assertEquals(128, model.getSignature().getWidth());
+			assertEquals(127.5f, model.getSignature().getScale(), 0f);
+		} finally {
+			model.release();
+		}
+		List<InceptionResult> results = service.getInception(resource("test.jpg"), dir.toString());
+		assertEquals(5, results.size());
+		// the same image scaled to -1..1 instead of -117..138 is far less confident
+		assertTrue(results.get(0).getScore() < service.getInception(resource("test.jpg"), modelDir).get(0)
+				.getScore());
+	}
+
+	@Test
+	public void testChannelOrder() throws Exception {
+		Path bgr = TestModels.createModel(folder.getRoot().toPath().resolve("bgr"));
+		Files.write(bgr.resolve(ModelSignature.DESCRIPTOR_FILE), Arrays.asList("channel.order=bgr"));
+		BufferedImage red = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 32; y++) {
+			for (int x = 0; x < 32; x++) {
+				red.setRGB(x, y, 0xFF0000);
+			}
+		}
+		byte[] image = JavaImagePreprocessorTest.encode(red, "jpg");
+		for (Preprocessor.Engine engine : Preprocessor.Engine.values()) {
+			TensorFlowService engineService = new TensorFlowService(0, 0, 1, Long.MAX_VALUE, 0, null, engine);
+			try {
+				// red pushes the generated model towards the first label, blue towards the last
+				assertEquals(engine.name(), "label 0", engineService.getInception(image, modelDir).get(0).getLabel());
+				assertEquals(engine.name(), "label " + (TestModels.LABEL_COUNT - 1),
+						engineService.getInception(image, bgr.toString()).get(0).getLabel());
+			} finally {
+				engineService.close();
+			}
+		}
+	}
+
+	@Test
+	public void testQuantizedModelMatchesFloatModel() throws Exception {
+		Path quantized = TestModels.createQuantizedModel(folder.getRoot().toPath().resolve("quantized"));
+		List<byte[]> images = Arrays.asList(solid(0xFF0000), resource("test.txt"), solid(0x0000FF),
+				resource("test.jpg"));
+		for (Preprocessor.Engine engine : Preprocessor.Engine.values()) {
+			TensorFlowService engineService = new TensorFlowService(0, 0, 2, Long.MAX_VALUE, 0, null, engine);
+			try {
+				engineService.validateModel(quantized.toString(), 2);
+				TensorFlowModel model = engineService.acquireModel(quantized.toString());
+				try {
+					assertEquals(DataType.UINT8, model.getInputType());
+					assertEquals(DataType.UINT8, model.getOutputType());
+					assertEquals(224 * 224 * 3, model.getImageBytes());
+				} finally {
+					model.release();
+				}
+				List<List<InceptionResult>> expected = engineService.getInception(images, modelDir);
+				List<List<InceptionResult>> actual = engineService.getInception(images, quantized.toString());
+				assertNull(actual.get(1));
+				assertEquals(engine.name(), "label 0", actual.get(0).get(0).getLabel());
+				assertEquals(engine.name(), "label " + (TestModels.LABEL_COUNT - 1), actual.get(2).get(0).getLabel());
+				for (int i : new int[] { 0, 2, 3 }) {
+					for (int rank = 0; rank < actual.get(i).size(); rank++) {
+						// one output step plus the rounding of the pixels, close
+						// labels may swap places
+						assertEquals(engine.name(), expected.get(i).get(rank).getScore(),
+								actual.get(i).get(rank).getScore(), 0.01);
+					}
+				}
+				assertEquals(actual.get(3).toString(),
+						engineService.getInception(images.get(3), quantized.toString()).toString());
+			} finally {
+				engineService.close();
+			}
+		}
+	}
+
+	static byte[] solid(int rgb) throws IOException {
+		BufferedImage image = new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 32; y++) {
+			for (int x = 0; x < 32; x++) {
+				image.setRGB(x, y, rgb);
+			}
+		}
+		return JavaImagePreprocessorTest.encode(image, "jpg");
+	}
+
+	@Test
+	public void testFanOutMatchesSingleModels() throws Exception {
+		Path bgr = TestModels.createModel(folder.getRoot().toPath().resolve("bgr"));
+		Files.write(bgr.resolve(ModelSignature.DESCRIPTOR_FILE), Arrays.asList("channel.order=BGR"));
+		Path quantized = TestModels.createQuantizedModel(folder.getRoot().toPath().resolve("quantized"));
+		List<String> models = Arrays.asList(modelDir, bgr.toString(), quantized.toString());
+		List<byte[]> images = Arrays.asList(solid(0xFF0000), resource("test.txt"), resource("test.jpg"));
+		List<ImageContent> contents = new ArrayList<ImageContent>();
+		for (byte[] image : images) {
+			contents.add(ImageContent.wrap(image));
+		}
+		BatchTimings timings = new BatchTimings(images.size());
+		List<List<List<InceptionResult>>> results = service.getInceptionFanOut(contents, models, 5, 0f, timings);
+		assertEquals(3, results.size());
+		assertEquals(2, timings.getRunSize());
+		for (int m = 0; m < models.size(); m++) {
+			List<List<InceptionResult>> expected = service.getInception(images, models.get(m));
+			assertNull(results.get(m).get(1));
+			assertEquals(expected.get(0).toString(), results.get(m).get(0).toString());
+			assertEquals(expected.get(2).toString(), results.get(m).get(2).toString());
+		}
+		assertEquals("label " + (TestModels.LABEL_COUNT - 1), results.get(1).get(0).get(0).getLabel());
+	}
+
+	@Test
+	public void testTiledRunsEveryTileInOneBatch() throws Exception {
+		BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 32; y++) {
+			for (int x = 0; x < 64; x++) {
+				image.setRGB(x, y, x < 32 ? 0xFF0000 : 0x0000FF);
+			}
+		}
+		List<ImageContent> images = Arrays.asList(ImageContent.wrap(JavaImagePreprocessorTest.encode(image, "png")),
+				ImageContent.wrap(resource("test.txt")), ImageContent.wrap(resource("test.jpg")));
+		String last = "label " + (TestModels.LABEL_COUNT - 1);
+		for (Preprocessor.Engine engine : Preprocessor.Engine.values()) {
+			TensorFlowService engineService = new TensorFlowService(0, 0, 1, Long.MAX_VALUE, 0, null, engine);
+			try {
+				BatchTimings timings = new BatchTimings(images.size());
+				List<Tiling.Result> results = engineService.getInceptionTiled(images, modelDir,
+						Tiling.parse("2x1", 0f, Tiling.Pooling.MAX), 2, 0f, timings);
+				assertEquals(2, timings.getRunSize());
+				assertNull(results.get(1));
+				Tiling.Result split = results.get(0);
+				assertEquals(engine.name(), "label 0", split.getTiles().get(0).get(0).getLabel());
+				assertEquals(engine.name(), last, split.getTiles().get(1).get(0).getLabel());
+				// max pooling keeps each half's best label at its own probability
+				for (InceptionResult pooled : split.getPooled()) {
+					List<InceptionResult> tile = split.getTiles().get(pooled.getLabel().equals(last) ? 1 : 0);
+					assertEquals(engine.name(), tile.get(0).getLabel(), pooled.getLabel());
+					assertEquals(tile.get(0).getScore(), pooled.getScore(), 1e-6);
+				}
+
+				// a single whole frame tile is the Java engine's whole frame result
+				Tiling.Result whole = engineService.getInceptionTiled(images, modelDir,
+						Tiling.parse("1x1", 0f, Tiling.Pooling.MEAN), 5, 0f, new BatchTimings(images.size())).get(2);
+				TensorFlowService java = new TensorFlowService(0, 0, 1, Long.MAX_VALUE, 0, null,
+						Preprocessor.Engine.JAVA);
+				try {
+					assertEquals(java.getInception(resource("test.jpg"), modelDir).toString(),
+							whole.getPooled().toString());
+				} finally {
+					java.close();
+				}
+			} finally {
+				engineService.close();
+			}
+		}
+	}
+
+	@Test
+	public void testEmbeddingsComeFromTheSameRun() throws Exception {
+		List<byte[]> images = Arrays.asList(solid(0xFF0000), resource("test.txt"), solid(0x0000FF));
+		List<ImageContent> contents = new ArrayList<ImageContent>();
+		for (byte[] image : images) {
+			contents.add(ImageContent.wrap(image));
+		}
+		BatchTimings timings = new BatchTimings(images.size());
+		Embeddings embeddings = service.getEmbeddings(contents, modelDir, Arrays.asList("channel_mean", "logits:0"),
+				5, 0f, timings);
+		assertEquals(2, timings.getRunSize());
+		List<List<InceptionResult>> expected = service.getInception(images, modelDir);
+		assertNull(embeddings.getResults().get(1));
+		assertEquals(expected.get(0).toString(), embeddings.getResults().get(0).toString());
+		assertEquals(expected.get(2).toString(), embeddings.getResults().get(2).toString());
+		assertEquals(3, embeddings.getElements(0));
+		assertEquals(TestModels.LABEL_COUNT, embeddings.getElements(1));
+
+		// the channel means of a red image, less the input mean, after the header
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		embeddings.write(0, Embeddings.Format.FLOAT32, out);
+		ByteBuffer red = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+		red.position((int) (embeddings.size(Embeddings.Format.FLOAT32) - 4 * (3 + TestModels.LABEL_COUNT)));
+		assertEquals(255f - TensorFlowService.INPUT_MEAN, red.getFloat(), 4f);
+		assertEquals(-TensorFlowService.INPUT_MEAN, red.getFloat(), 4f);
+		assertEquals(-TensorFlowService.INPUT_MEAN, red.getFloat(), 4f);
+		assertTrue(embeddings.contains(2));
+		assertEquals(0, service.getNativeResources().snapshot().getLive(NativeResources.Kind.TENSOR));
+	}
+
+	@Test
+	public void testEmbeddingTensorsAreChecked() throws Exception {
+		service.validateEmbeddings(modelDir, Arrays.asList("channel_mean", "logits"));
+		Path quantized = TestModels.createQuantizedModel(folder.getRoot().toPath().resolve("quantized"));
+		for (String[] embedding : new String[][] { { modelDir, "missing" }, { modelDir, "logits:1" },
+				{ quantized.toString(), TensorFlowService.OUTPUT_OPERATION } }) {
+			try {
+				service.validateEmbeddings(embedding[0], Collections.singletonList(embedding[1]));
+				fail(embedding[1]);
+			} catch (ModelLoadException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testDequantize() {
+		Properties properties = new Properties();
+		properties.setProperty("output.scale", "0.5");
+		properties.setProperty("output.zero.point", "128");
+		float[][] probabilities = TensorFlowService.dequantize(
+				new byte[][] { { (byte) 128, (byte) 130, (byte) 255 } }, ModelSignature.DEFAULT.with(properties));
+		assertArrayEquals(new float[] { 0f, 1f, 63.5f }, probabilities[0], 0f);
+	}
+
+	@Test
+	public void testValidModelWarmsUp() throws Exception {
+		service.validateModel(modelDir, 4);
+		assertEquals(1, service.getModelCacheStats().getEntries());
+	}
+}
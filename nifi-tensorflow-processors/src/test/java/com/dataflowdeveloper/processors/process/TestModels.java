@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.tensorflow.DataType;
+import org.tensorflow.Graph;
+import org.tensorflow.Output;
+import org.tensorflow.Shape;
+import org.tensorflow.Tensor;
+import org.tensorflow.types.UInt8;
+
+/**
+ * Writes a tiny stand-in for the Inception model so tests run offline: the
+ * {@code input} placeholder is averaged per channel and pushed through a fixed
+ * dense layer into a softmax named {@code output}.
+ */
+public class TestModels {
+
+	public static final int LABEL_COUNT = 8;
+
+	public static Path createModel(Path dir) throws IOException {
+		return createModel(dir, LABEL_COUNT);
+	}
+
+	public static Path createModel(Path dir, int labelCount) throws IOException {
+		Files.createDirectories(dir);
+		Files.write(dir.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB), graphDef(labelCount));
+		List<String> labels = new ArrayList<String>();
+		for (int i = 0; i < labelCount; i++) {
+			labels.add("label " + i);
+		}
+		Files.write(dir.resolve(TensorFlowService.IMAGENET_COMP_GRAPH_LABEL_STRINGS_TXT), labels,
+				StandardCharsets.UTF_8);
+		return dir;
+	}
+
+	/**
+	 * write the graph as a SavedModel tagged "serve", without variables
+	 */
+	public static Path createSavedModel(Path dir) throws IOException {
+		createModel(dir);
+		Files.delete(dir.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB));
+		ByteArrayOutputStream metaInfo = new ByteArrayOutputStream();
+		// MetaInfoDef.tags = 4
+		field(metaInfo, 4, ModelSignature.DEFAULT_TAG.getBytes(StandardCharsets.UTF_8));
+		ByteArrayOutputStream metaGraph = new ByteArrayOutputStream();
+		// MetaGraphDef.meta_info_def = 1, graph_def = 2
+		field(metaGraph, 1, metaInfo.toByteArray());
+		field(metaGraph, 2, graphDef(LABEL_COUNT));
+		ByteArrayOutputStream savedModel = new ByteArrayOutputStream();
+		// SavedModel.saved_model_schema_version = 1, meta_graphs = 2
+		varint(savedModel, 1 << 3);
+		varint(savedModel, 1);
+		field(savedModel, 2, metaGraph.toByteArray());
+		Files.write(dir.resolve(ModelSignature.SAVED_MODEL_FILE), savedModel.toByteArray());
+		return dir;
+	}
+
+	private static void field(ByteArrayOutputStream out, int number, byte[] value) {
+		varint(out, number << 3 | 2);
+		varint(out, value.length);
+		out.write(value, 0, value.length);
+	}
+
+	private static void varint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	public static byte[] graphDef(int labelCount) {
+		return graphDef(labelCount, 0);
+	}
+
+	/**
+	 * @param labelCount
+	 * @param paddingBytes
+	 *            size of an unused constant added to the graph, to give graph
+	 *            import a realistic amount of work
+	 */
+	public static byte[] graphDef(int labelCount, int paddingBytes) {
+		return graphDef(labelCount, paddingBytes, TensorFlowService.INPUT_OPERATION,
+				TensorFlowService.OUTPUT_OPERATION, TensorFlowService.INPUT_WIDTH, TensorFlowService.INPUT_HEIGHT);
+	}
+
+	/**
+	 * @param labelCount
+	 * @param paddingBytes
+	 * @param inputName
+	 *            name of the input placeholder
+	 * @param outputName
+	 *            name of the softmax
+	 * @param width
+	 *            input width
+	 * @param height
+	 *            input height
+	 */
+	public static byte[] graphDef(int labelCount, int paddingBytes, String inputName, String outputName, int width,
+			int height) {
+		try (Graph g = new Graph()) {
+			if (paddingBytes > 0) {
+				constant(g, "padding", new float[paddingBytes / 4], Float.class);
+			}
+			Output<Float> input = g.opBuilder("Placeholder", inputName).setAttr("dtype", DataType.FLOAT)
+					.setAttr("shape", Shape.make(-1, height, width, 3)).build().<Float>output(0);
+			softmax(g, input, labelCount, outputName);
+			return g.toGraphDef();
+		}
+	}
+
+	/**
+	 * write a quantized copy of the model: it takes uint8 pixels, removes the
+	 * mean itself and writes its probabilities as uint8 steps of 1/255, which
+	 * its {@value ModelSignature#DESCRIPTOR_FILE} declares
+	 */
+	public static Path createQuantizedModel(Path dir) throws IOException {
+		createModel(dir);
+		Files.write(dir.resolve(TensorFlowService.TENSORFLOW_INCEPTION_GRAPH_PB), quantizedGraphDef(LABEL_COUNT));
+		Files.write(dir.resolve(ModelSignature.DESCRIPTOR_FILE),
+				Arrays.asList("output.scale=" + (1f / 255), "output.zero.point=0"), StandardCharsets.UTF_8);
+		return dir;
+	}
+
+	public static byte[] quantizedGraphDef(int labelCount) {
+		try (Graph g = new Graph()) {
+			Output<UInt8> input = g.opBuilder("Placeholder", TensorFlowService.INPUT_OPERATION)
+					.setAttr("dtype", DataType.UINT8)
+					.setAttr("shape",
+							Shape.make(-1, TensorFlowService.INPUT_HEIGHT, TensorFlowService.INPUT_WIDTH, 3))
+					.build().<UInt8>output(0);
+			Output<Float> pixels = g.opBuilder("Cast", "to_float").addInput(input).setAttr("DstT", DataType.FLOAT)
+					.build().<Float>output(0);
+			Output<Float> centered = g.opBuilder("Sub", "centered").addInput(pixels)
+					.addInput(constant(g, "mean", TensorFlowService.INPUT_MEAN, Float.class)).build()
+					.<Float>output(0);
+			Output<Float> probabilities = softmax(g, centered, labelCount, "probabilities");
+			Output<Float> steps = g.opBuilder("Mul", "steps").addInput(probabilities)
+					.addInput(constant(g, "levels", 255f, Float.class)).build().<Float>output(0);
+			Output<Float> rounded = g.opBuilder("Round", "rounded").addInput(steps).build().<Float>output(0);
+			g.opBuilder("Cast", TensorFlowService.OUTPUT_OPERATION).addInput(rounded)
+					.setAttr("DstT", DataType.UINT8).build();
+			return g.toGraphDef();
+		}
+	}
+
+	/**
+	 * average each channel and push the averages through a fixed dense layer,
+	 * so the label follows the balance of blue against red
+	 */
+	private static Output<Float> softmax(Graph g, Output<Float> input, int labelCount, String name) {
+		Output<Integer> axes = constant(g, "axes", new int[] { 1, 2 }, Integer.class);
+		Output<Float> mean = g.opBuilder("Mean", "channel_mean").addInput(input).addInput(axes).build()
+				.<Float>output(0);
+		float[][] weights = new float[3][labelCount];
+		for (int c = 0; c < 3; c++) {
+			for (int l = 0; l < labelCount; l++) {
+				weights[c][l] = (c - 1) * (l - labelCount / 2f) * 0.05f;
+			}
+		}
+		Output<Float> w = constant(g, "weights", weights, Float.class);
+		Output<Float> logits = g.opBuilder("MatMul", "logits").addInput(mean).addInput(w).build()
+				.<Float>output(0);
+		return g.opBuilder("Softmax", name).addInput(logits).build().<Float>output(0);
+	}
+
+	private static <T> Output<T> constant(Graph g, String name, Object value, Class<T> type) {
+		try (Tensor<T> t = Tensor.<T>create(value, type)) {
+			return g.opBuilder("Const", name).setAttr("dtype", DataType.fromClass(type)).setAttr("value", t).build()
+					.<T>output(0);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class TilingTest {
+
+	@Test
+	public void testGrids() {
+		Tiling tiling = Tiling.parse("1x1, 2x2", 0f, Tiling.Pooling.MAX);
+		assertEquals(5, tiling.size());
+		assertEquals(2, tiling.getColumns());
+		assertEquals(2, tiling.getRows());
+		assertBox(tiling, 0, 0f, 0f, 1f, 1f);
+		// row by row
+		assertBox(tiling, 1, 0f, 0f, 0.5f, 0.5f);
+		assertBox(tiling, 2, 0.5f, 0f, 0.5f, 0.5f);
+		assertBox(tiling, 3, 0f, 0.5f, 0.5f, 0.5f);
+		assertBox(tiling, 4, 0.5f, 0.5f, 0.5f, 0.5f);
+	}
+
+	@Test
+	public void testOverlap() {
+		Tiling tiling = Tiling.parse("3x1", 0.5f, Tiling.Pooling.MAX);
+		assertEquals(3, tiling.size());
+		// each tile shares half of itself with the next and the last ends at the edge
+		assertBox(tiling, 0, 0f, 0f, 0.5f, 1f);
+		assertBox(tiling, 1, 0.25f, 0f, 0.5f, 1f);
+		assertBox(tiling, 2, 0.5f, 0f, 0.5f, 1f);
+	}
+
+	@Test
+	public void testInvalid() {
+		for (String grids : new String[] { "", "2", "2x", "0x2", "17x1", "2x2,", "2 x 2" }) {
+			try {
+				Tiling.parse(grids, 0f, Tiling.Pooling.MAX);
+				fail(grids);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		for (float overlap : new float[] { -0.1f, 1f, Float.NaN }) {
+			try {
+				Tiling.parse("2x2", overlap, Tiling.Pooling.MAX);
+				fail(String.valueOf(overlap));
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testPooling() {
+		float[][] probabilities = { { 9f, 9f }, { 0.8f, 0.2f }, { 0.1f, 0.9f }, { 9f, 9f } };
+		assertArrayEquals(new float[] { 0.8f, 0.9f },
+				Tiling.parse("2x1", 0f, Tiling.Pooling.MAX).pool(probabilities, 1), 0f);
+		assertArrayEquals(new float[] { 0.45f, 0.55f },
+				Tiling.parse("2x1", 0f, Tiling.Pooling.MEAN).pool(probabilities, 1), 1e-6f);
+		// the model output is left alone
+		assertArrayEquals(new float[] { 0.8f, 0.2f }, probabilities[1], 0f);
+	}
+
+	private static void assertBox(Tiling tiling, int tile, float x, float y, float width, float height) {
+		assertEquals(x, tiling.x(tile), 1e-6f);
+		assertEquals(y, tiling.y(tile), 1e-6f);
+		assertEquals(width, tiling.width(tile), 1e-6f);
+		assertEquals(height, tiling.height(tile), 1e-6f);
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.dataflowdeveloper.processors.process;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TopKTest {
+
+	@Test
+	public void testSelectsHighestInOrder() {
+		TopK top = new TopK().select(new float[] { 0.5f, 0.1f, 0.05f, 0.3f, 0.05f }, 3, 0f);
+		assertEquals(3, top.size());
+		// index 0 being the maximum must still be reported as index 0
+		assertEquals(0, top.index(0));
+		assertEquals(3, top.index(1));
+		assertEquals(1, top.index(2));
+		assertEquals(0.5f, top.value(0), 0f);
+	}
+
+	@Test
+	public void testTiesKeepLowerIndex() {
+		TopK top = new TopK().select(new float[] { 0.2f, 0.4f, 0.2f, 0.2f }, 3, 0f);
+		assertEquals(1, top.index(0));
+		assertEquals(0, top.index(1));
+		assertEquals(2, top.index(2));
+	}
+
+	@Test
+	public void testThresholdAndReuse() {
+		TopK top = new TopK();
+		top.select(new float[] { 0.1f, 0.6f, 0.3f }, 5, 0f);
+		assertEquals(3, top.size());
+		top.select(new float[] { 0.1f, 0.6f, 0.3f }, 5, 0.25f);
+		assertEquals(2, top.size());
+		assertEquals(1, top.index(0));
+		assertEquals(2, top.index(1));
+		assertEquals(0, top.select(new float[] { 0.1f }, 5, 0.5f).size());
+	}
+}